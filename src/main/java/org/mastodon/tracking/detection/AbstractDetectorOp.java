@@ -59,6 +59,23 @@ public abstract class AbstractDetectorOp
 	@Parameter( required = false )
 	protected StatusService statusService;
 
+	/**
+	 * Scratch images reused across the frames processed by this detector.
+	 * Released at the end of each run.
+	 */
+	protected final ScratchImgPool scratchPool = new ScratchImgPool();
+
+	/**
+	 * Returns the pool of scratch images used by this detector. Its counters
+	 * can be used to check how many images were allocated in the last runs.
+	 *
+	 * @return the scratch image pool.
+	 */
+	public ScratchImgPool getScratchPool()
+	{
+		return scratchPool;
+	}
+
 	@Override
 	public String getErrorMessage()
 	{
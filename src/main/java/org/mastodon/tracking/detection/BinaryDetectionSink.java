@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A {@link DetectionCreatorFactory} that streams detections to a binary file,
+ * without building any data structure in memory besides the detections of
+ * the time-point being written.
+ * <p>
+ * The file starts with a header made of the magic number {@link #MAGIC} and
+ * the format {@link #VERSION}, as two 32-bit integers. It is followed by one
+ * segment per batch of detections, that is typically one segment per
+ * time-point. A segment is made of:
+ * <ol>
+ * <li>the time-point, as a 32-bit integer;
+ * <li>the number of detections <code>n</code> in the segment, as a 32-bit
+ * integer;
+ * <li>five columns of <code>n</code> 64-bit floating-point values: the X, Y,
+ * and Z positions, the radii and the qualities of the detections.
+ * </ol>
+ * All values are little-endian. Segments can be read back with
+ * {@link #read(File, Consumer)}.
+ * <p>
+ * Detection creators for different time-points may be used concurrently.
+ * The file must be closed with {@link #close()} once the detection is
+ * complete.
+ */
+public class BinaryDetectionSink implements DetectionCreatorFactory, Closeable
+{
+
+	/**
+	 * The magic number at the beginning of detection files ("MDET").
+	 */
+	public static final int MAGIC = 0x4D444554;
+
+	/**
+	 * The version of the file format.
+	 */
+	public static final int VERSION = 1;
+
+	private static final int N_COLUMNS = 5;
+
+	private static final int HEADER_SIZE = 8;
+
+	/**
+	 * Size in bytes of the buffer through which segments are written and
+	 * read. Segments larger than this are transferred in several chunks, so
+	 * that their size in bytes may exceed {@link Integer#MAX_VALUE}.
+	 */
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final File file;
+
+	private final FileChannel channel;
+
+	private final AtomicLong nDetections = new AtomicLong();
+
+	/**
+	 * Creates a new sink that writes to the specified file. If the file
+	 * exists, it is overwritten.
+	 *
+	 * @param file
+	 *            the file to write to.
+	 * @throws IOException
+	 *             if the file cannot be opened.
+	 */
+	public BinaryDetectionSink( final File file ) throws IOException
+	{
+		this.file = file;
+		this.channel = FileChannel.open( file.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+		final ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE ).order( ByteOrder.LITTLE_ENDIAN );
+		header.putInt( MAGIC ).putInt( VERSION ).flip();
+		writeFully( header );
+	}
+
+	@Override
+	public DetectionCreator create( final int timepoint )
+	{
+		return new SegmentWriter( timepoint );
+	}
+
+	/**
+	 * Returns the number of detections written so far.
+	 *
+	 * @return the number of detections.
+	 */
+	public long getNDetections()
+	{
+		return nDetections.get();
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	@Override
+	public String toString()
+	{
+		return getClass().getSimpleName() + " -> " + file;
+	}
+
+	private void writeSegment( final int timepoint, final double[][] columns, final int n )
+	{
+		final long size = 8 + ( long ) n * N_COLUMNS * Double.BYTES;
+		final ByteBuffer buffer = ByteBuffer.allocate( ( int ) Math.min( BUFFER_SIZE, size ) ).order( ByteOrder.LITTLE_ENDIAN );
+		buffer.putInt( timepoint ).putInt( n );
+		try
+		{
+			// The segment is written in chunks, but in one piece in the file.
+			synchronized ( channel )
+			{
+				for ( final double[] column : columns )
+				{
+					int i = 0;
+					while ( i < n )
+					{
+						if ( buffer.remaining() < Double.BYTES )
+						{
+							buffer.flip();
+							writeFully( buffer );
+							buffer.clear();
+						}
+						final int m = Math.min( n - i, buffer.remaining() / Double.BYTES );
+						buffer.asDoubleBuffer().put( column, i, m );
+						buffer.position( buffer.position() + m * Double.BYTES );
+						i += m;
+					}
+				}
+				buffer.flip();
+				writeFully( buffer );
+			}
+		}
+		catch ( final IOException e )
+		{
+			throw new UncheckedIOException( e );
+		}
+		nDetections.addAndGet( n );
+	}
+
+	private void writeFully( final ByteBuffer buffer ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			channel.write( buffer );
+	}
+
+	/**
+	 * Buffers the detections of one time-point in primitive arrays, and
+	 * writes them as one segment when the batch is complete.
+	 */
+	private class SegmentWriter implements DetectionCreator
+	{
+
+		private final int timepoint;
+
+		private double[][] columns;
+
+		private int n;
+
+		private SegmentWriter( final int timepoint )
+		{
+			this.timepoint = timepoint;
+		}
+
+		@Override
+		public void preAddition()
+		{
+			columns = new double[ N_COLUMNS ][ 1024 ];
+			n = 0;
+		}
+
+		@Override
+		public void createDetection( final double[] pos, final double radius, final double quality )
+		{
+			if ( n == columns[ 0 ].length )
+				for ( int c = 0; c < N_COLUMNS; c++ )
+					columns[ c ] = Arrays.copyOf( columns[ c ], 2 * n );
+
+			columns[ 0 ][ n ] = pos[ 0 ];
+			columns[ 1 ][ n ] = pos[ 1 ];
+			columns[ 2 ][ n ] = pos[ 2 ];
+			columns[ 3 ][ n ] = radius;
+			columns[ 4 ][ n ] = quality;
+			n++;
+		}
+
+		@Override
+		public void postAddition()
+		{
+			writeSegment( timepoint, columns, n );
+			columns = null;
+		}
+	}
+
+	/**
+	 * The detections of one segment of a detection file.
+	 */
+	public static class Segment
+	{
+
+		public final int timepoint;
+
+		public final double[] x;
+
+		public final double[] y;
+
+		public final double[] z;
+
+		public final double[] radius;
+
+		public final double[] quality;
+
+		private Segment( final int timepoint, final double[] x, final double[] y, final double[] z, final double[] radius, final double[] quality )
+		{
+			this.timepoint = timepoint;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.radius = radius;
+			this.quality = quality;
+		}
+
+		public int size()
+		{
+			return x.length;
+		}
+	}
+
+	/**
+	 * Reads a detection file written by this sink, and passes its segments,
+	 * in order, to the specified consumer.
+	 *
+	 * @param file
+	 *            the file to read.
+	 * @param consumer
+	 *            the consumer of the segments.
+	 * @throws IOException
+	 *             if the file cannot be read, or is not a detection file.
+	 */
+	public static void read( final File file, final Consumer< Segment > consumer ) throws IOException
+	{
+		try (FileChannel in = FileChannel.open( file.toPath(), StandardOpenOption.READ ))
+		{
+			final ByteBuffer header = readFully( in, HEADER_SIZE );
+			if ( header.getInt() != MAGIC )
+				throw new IOException( "Not a detection file: " + file );
+			final int version = header.getInt();
+			if ( version != VERSION )
+				throw new IOException( "Unsupported detection file version: " + version );
+
+			while ( in.position() < in.size() )
+			{
+				final ByteBuffer segmentHeader = readFully( in, 8 );
+				final int timepoint = segmentHeader.getInt();
+				final int n = segmentHeader.getInt();
+				if ( n < 0 )
+					throw new IOException( "Corrupted detection file: negative segment size " + n + "." );
+				final double[][] columns = new double[ N_COLUMNS ][ n ];
+				for ( final double[] column : columns )
+				{
+					int i = 0;
+					while ( i < n )
+					{
+						final int m = Math.min( n - i, BUFFER_SIZE / Double.BYTES );
+						final DoubleBuffer db = readFully( in, m * Double.BYTES ).asDoubleBuffer();
+						db.get( column, i, m );
+						i += m;
+					}
+				}
+				consumer.accept( new Segment( timepoint, columns[ 0 ], columns[ 1 ], columns[ 2 ], columns[ 3 ], columns[ 4 ] ) );
+			}
+		}
+	}
+
+	private static ByteBuffer readFully( final FileChannel in, final int size ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( size ).order( ByteOrder.LITTLE_ENDIAN );
+		while ( buffer.hasRemaining() )
+			if ( in.read( buffer ) < 0 )
+				throw new EOFException( "Truncated detection file." );
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.IntFunction;
+
+import org.scijava.Cancelable;
+import org.scijava.app.StatusService;
+
+/**
+ * Runs the detection over a range of time-points, split in three stages:
+ * <ol>
+ * <li>the <b>load</b> stage fetches and prepares the image data of a
+ * time-point;</li>
+ * <li>the <b>filter</b> stage processes the data and returns the peaks found in
+ * it;</li>
+ * <li>the <b>write</b> stage feeds these peaks to the output, typically a
+ * {@link DetectionCreatorFactory.DetectionCreator}.</li>
+ * </ol>
+ * If the prefetch size is 0 and only one time-point is to be processed at a
+ * time, these stages are executed one after the other, for one time-point
+ * after the other, in the calling thread. Otherwise, the stages are pipelined:
+ * while up to <code>n</code> frames are filtered concurrently, the next
+ * <code>k</code> frames are loaded in the background and the peaks of the
+ * frames already filtered are written by another thread.
+ * <p>
+ * The write stage is always executed for one time-point at a time, in
+ * increasing time-point order, so that the detection creators do not have to
+ * be thread-safe. If a stage fails or if the detection is canceled, the
+ * time-points still in flight are abandoned: their pending tasks are
+ * canceled, the running ones are interrupted and nothing more is written.
+ * <p>
+ * When several time-points are filtered concurrently, the available
+ * processors are split between them, so that the within-frame and the
+ * across-frame parallelism do not oversubscribe the machine.
+ *
+ * @param <F>
+ *            the type of the object that holds the data of a time-point.
+ * @param <R>
+ *            the type of the object that holds the peaks found in a
+ *            time-point.
+ */
+public class DetectionPipeline< F, R >
+{
+
+	private final IntFunction< F > loader;
+
+	private final BiFunction< F, ExecutorService, R > filter;
+
+	private final BiConsumer< F, R > writer;
+
+	private final int prefetchSize;
+
+	private final int nParallel;
+
+	private final ExecutorService service;
+
+	/**
+	 * Creates a new detection pipeline.
+	 *
+	 * @param loader
+	 *            the load stage. Receives a time-point, and must return the
+	 *            data to process for this time-point, or <code>null</code> if
+	 *            the time-point should be skipped.
+	 * @param filter
+	 *            the filter stage. Receives the data returned by the load stage
+	 *            and an executor service to use for within-frame parallelism.
+	 *            Must return the peaks found in the data.
+	 * @param writer
+	 *            the write stage. Receives the data and the peaks of a
+	 *            time-point.
+	 * @param prefetchSize
+	 *            how many time-points to load in advance of the ones being
+	 *            filtered. If 0, no prefetching is done.
+	 * @param nParallel
+	 *            how many time-points to filter concurrently.
+	 * @param service
+	 *            the executor service passed to the filter stage when
+	 *            time-points are filtered one at a time.
+	 */
+	public DetectionPipeline(
+			final IntFunction< F > loader,
+			final BiFunction< F, ExecutorService, R > filter,
+			final BiConsumer< F, R > writer,
+			final int prefetchSize,
+			final int nParallel,
+			final ExecutorService service )
+	{
+		this.loader = loader;
+		this.filter = filter;
+		this.writer = writer;
+		this.prefetchSize = Math.max( 0, prefetchSize );
+		this.nParallel = Math.max( 1, nParallel );
+		this.service = service;
+	}
+
+	/**
+	 * Runs the pipeline on the specified time-points.
+	 *
+	 * @param minTimepoint
+	 *            the first time-point to process, inclusive.
+	 * @param maxTimepoint
+	 *            the last time-point to process, inclusive.
+	 * @param cancelable
+	 *            checked before processing each time-point. If canceled, the
+	 *            pipeline stops. When time-points are pipelined, the ones
+	 *            already being processed are abandoned and not written.
+	 * @param statusService
+	 *            used to report progress.
+	 */
+	public void run( final int minTimepoint, final int maxTimepoint, final Cancelable cancelable, final StatusService statusService )
+	{
+		if ( prefetchSize == 0 && nParallel == 1 )
+		{
+			for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
+			{
+				statusService.showProgress( tp - minTimepoint + 1, maxTimepoint - minTimepoint + 1 );
+
+				// Did we get canceled?
+				if ( cancelable.isCanceled() )
+					break;
+
+				final F frame = loader.apply( tp );
+				if ( null == frame )
+					continue;
+
+				final R peaks = filter.apply( frame, service );
+				writer.accept( frame, peaks );
+			}
+			return;
+		}
+
+		/*
+		 * Executor services used for within-frame parallelism. One per
+		 * time-point filtered concurrently.
+		 */
+
+		final BlockingQueue< ExecutorService > filterServices = new ArrayBlockingQueue<>( nParallel );
+		final List< ExecutorService > ownedServices = new ArrayList<>( nParallel );
+		if ( nParallel == 1 )
+		{
+			filterServices.add( service );
+		}
+		else
+		{
+			final int threadsPerFrame = Math.max( 1, Runtime.getRuntime().availableProcessors() / nParallel );
+			for ( int i = 0; i < nParallel; i++ )
+			{
+				final ExecutorService es = Executors.newFixedThreadPool( threadsPerFrame );
+				ownedServices.add( es );
+				filterServices.add( es );
+			}
+		}
+
+		/*
+		 * Bound the number of time-points in flight: the ones being loaded,
+		 * filtered and the one being written.
+		 */
+
+		final Semaphore inFlight = new Semaphore( prefetchSize + nParallel + 1 );
+		final AtomicInteger progress = new AtomicInteger( 0 );
+		final int nTimepoints = maxTimepoint - minTimepoint + 1;
+
+		final ExecutorService loadService = Executors.newFixedThreadPool( Math.max( 1, prefetchSize ) );
+		final ExecutorService filterService = Executors.newFixedThreadPool( nParallel );
+		final ExecutorService writeService = Executors.newSingleThreadExecutor();
+		final ArrayDeque< Future< ? > > writes = new ArrayDeque<>();
+		// Load and filter tasks that may not be done yet.
+		final ArrayDeque< Future< ? > > pending = new ArrayDeque<>();
+		// Set on failure or cancel, so that nothing more is written.
+		final AtomicBoolean stopped = new AtomicBoolean( false );
+		boolean completed = false;
+		try
+		{
+			for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
+			{
+				inFlight.acquireUninterruptibly();
+
+				// Did we get canceled?
+				if ( cancelable.isCanceled() )
+				{
+					inFlight.release();
+					break;
+				}
+
+				final int t = tp;
+				final Future< F > load = loadService.submit( () -> loader.apply( t ) );
+				final Future< R > filtered = filterService.submit( () -> {
+					final F frame = get( load );
+					if ( null == frame )
+						return null;
+
+					final ExecutorService es = filterServices.take();
+					try
+					{
+						return filter.apply( frame, es );
+					}
+					finally
+					{
+						filterServices.put( es );
+					}
+				} );
+				writes.add( writeService.submit( () -> {
+					try
+					{
+						final F frame = get( load );
+						final R peaks = get( filtered );
+						if ( null != frame && !stopped.get() )
+							writer.accept( frame, peaks );
+					}
+					finally
+					{
+						inFlight.release();
+						statusService.showProgress( progress.incrementAndGet(), nTimepoints );
+					}
+				} ) );
+				pending.add( load );
+				pending.add( filtered );
+
+				// Propagate errors as soon as they happen.
+				while ( !writes.isEmpty() && writes.peek().isDone() )
+					get( writes.poll() );
+				pending.removeIf( Future::isDone );
+			}
+
+			while ( !writes.isEmpty() && !cancelable.isCanceled() )
+				get( writes.poll() );
+			completed = writes.isEmpty();
+		}
+		finally
+		{
+			if ( completed )
+			{
+				loadService.shutdown();
+				filterService.shutdown();
+				writeService.shutdown();
+				for ( final ExecutorService es : ownedServices )
+					es.shutdown();
+			}
+			else
+			{
+				// Failed or canceled: abandon the time-points in flight.
+				stopped.set( true );
+				for ( final Future< ? > future : writes )
+					future.cancel( true );
+				for ( final Future< ? > future : pending )
+					future.cancel( true );
+				loadService.shutdownNow();
+				filterService.shutdownNow();
+				writeService.shutdownNow();
+				for ( final ExecutorService es : ownedServices )
+					es.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Waits for the specified future to complete and returns its result. If
+	 * the task failed, the error it threw is rethrown in the calling thread,
+	 * so that for instance {@link OutOfMemoryError}s are still seen by the
+	 * caller.
+	 */
+	static < T > T get( final Future< T > future )
+	{
+		if ( null == future )
+			return null;
+		try
+		{
+			return future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			final Throwable cause = e.getCause();
+			if ( cause instanceof Error )
+				throw ( Error ) cause;
+			if ( cause instanceof RuntimeException )
+				throw ( RuntimeException ) cause;
+			throw new RuntimeException( cause );
+		}
+	}
+}
@@ -0,0 +1,179 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.iterator.LocalizingZeroMinIntervalIterator;
+import net.imglib2.util.Intervals;
+
+/**
+ * Utilities to split the processing of a frame in blocks that fit in a memory
+ * budget.
+ * <p>
+ * The interval to process is partitioned in non-overlapping <i>cores</i>.
+ * Each core is then processed over a larger block, that includes a margin
+ * around the core, and only the peaks whose integer position lies in the core
+ * are kept. The margin is large enough for the local extrema search and the
+ * sub-pixel localization to see the same values they would see if the frame
+ * were processed at once, so the peaks found are the same.
+ */
+final class DetectionTiling
+{
+
+	/**
+	 * Margin, in pixels, to add around a core. Accounts for the neighborhood
+	 * used in the local extrema search (1 pixel), for the maximal number of
+	 * moves allowed during the sub-pixel localization (10 pixels) and for the
+	 * neighborhood used to fit the quadratic at the final position (1 pixel).
+	 */
+	static final long MARGIN = 12;
+
+	/**
+	 * Cores are not split below this size, whatever the budget.
+	 */
+	private static final long MIN_CORE_SIZE = 16;
+
+	/**
+	 * Returns the maximal number of voxels a block can have to fit in the
+	 * specified budget.
+	 *
+	 * @param memoryBudget
+	 *            the budget, in MB. If smaller than or equal to 0, the budget
+	 *            is considered unlimited.
+	 * @param bytesPerVoxel
+	 *            an estimate of the memory needed to process one voxel of a
+	 *            block.
+	 * @return the maximal number of voxels, or {@link Long#MAX_VALUE} if the
+	 *         budget is unlimited.
+	 */
+	static long maxVoxels( final int memoryBudget, final int bytesPerVoxel )
+	{
+		if ( memoryBudget <= 0 )
+			return Long.MAX_VALUE;
+		return Math.max( 1l, memoryBudget * 1024l * 1024l / bytesPerVoxel );
+	}
+
+	/**
+	 * Splits the specified interval in cores, so that each core, expanded by
+	 * the specified border, has less voxels than the specified maximum. Cores
+	 * are obtained by halving the largest dimension until the budget is met
+	 * or until cores reach a minimal size. If the budget is met by the whole
+	 * interval, it is returned as single core.
+	 *
+	 * @param interval
+	 *            the interval to split.
+	 * @param border
+	 *            the border around each core, in pixels.
+	 * @param maxVoxels
+	 *            the maximal number of voxels of an expanded core.
+	 * @return a new list of cores, that partition the interval.
+	 */
+	static List< Interval > split( final Interval interval, final long border, final long maxVoxels )
+	{
+		final int n = interval.numDimensions();
+		final long[] size = Intervals.dimensionsAsLongArray( interval );
+		while ( volume( size, border ) > maxVoxels )
+		{
+			int dmax = 0;
+			for ( int d = 1; d < n; d++ )
+				if ( size[ d ] > size[ dmax ] )
+					dmax = d;
+
+			if ( size[ dmax ] <= MIN_CORE_SIZE )
+				break;
+			size[ dmax ] = ( size[ dmax ] + 1 ) / 2;
+		}
+
+		final long[] nCores = new long[ n ];
+		for ( int d = 0; d < n; d++ )
+			nCores[ d ] = ( interval.dimension( d ) + size[ d ] - 1 ) / size[ d ];
+
+		final List< Interval > cores = new ArrayList<>();
+		final LocalizingZeroMinIntervalIterator it = new LocalizingZeroMinIntervalIterator( nCores );
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+		while ( it.hasNext() )
+		{
+			it.fwd();
+			for ( int d = 0; d < n; d++ )
+			{
+				min[ d ] = interval.min( d ) + it.getLongPosition( d ) * size[ d ];
+				max[ d ] = Math.min( min[ d ] + size[ d ] - 1, interval.max( d ) );
+			}
+			cores.add( new FinalInterval( min, max ) );
+		}
+		return cores;
+	}
+
+	/**
+	 * Returns the block to process for the specified core: the core expanded
+	 * by the {@link #MARGIN} and clipped to the interval processed.
+	 *
+	 * @param core
+	 *            the core.
+	 * @param interval
+	 *            the interval processed, that contains the core.
+	 * @return a new interval.
+	 */
+	static Interval block( final Interval core, final Interval interval )
+	{
+		return Intervals.intersect( Intervals.expand( core, MARGIN ), interval );
+	}
+
+	/**
+	 * Returns <code>true</code> if the specified position lies in the
+	 * specified interval.
+	 */
+	static boolean contains( final Interval core, final Localizable position )
+	{
+		for ( int d = 0; d < core.numDimensions(); d++ )
+		{
+			final long p = position.getLongPosition( d );
+			if ( p < core.min( d ) || p > core.max( d ) )
+				return false;
+		}
+		return true;
+	}
+
+	private static long volume( final long[] size, final long border )
+	{
+		long volume = 1;
+		for ( final long s : size )
+			volume *= s + 2 * border;
+		return volume;
+	}
+
+	private DetectionTiling()
+	{}
+}
@@ -30,20 +30,28 @@ package org.mastodon.tracking.detection;
 
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_ADD_BEHAVIOR;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_DETECTION_TYPE;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_LOG_STRATEGY;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MIN_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_PREFETCH_SIZE;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_ROI;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_SETUP_ID;
 import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_THRESHOLD;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_TIMEPOINTS_IN_PARALLEL;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_ADD_BEHAVIOR;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_DETECTION_TYPE;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_LOG_STRATEGY;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_PREFETCH_SIZE;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_ROI;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_SETUP_ID;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_THRESHOLD;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_TIMEPOINTS_IN_PARALLEL;
 import static org.mastodon.tracking.linking.LinkingUtils.checkMapKeys;
 import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
 
@@ -67,8 +75,11 @@ import bdv.spimdata.XmlIoSpimDataMinimal;
 import bdv.tools.brightness.ConverterSetup;
 import bdv.tools.transformation.ManualTransformation;
 import bdv.util.Affine3DHelpers;
+import bdv.viewer.Source;
 import bdv.viewer.SourceAndConverter;
 import mpicbg.spim.data.SpimDataException;
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -77,6 +88,7 @@ import net.imglib2.algorithm.localextrema.LocalExtrema.LocalNeighborhoodCheck;
 import net.imglib2.algorithm.neighborhood.RectangleShape;
 import net.imglib2.converter.Converters;
 import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.Img;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -143,7 +155,23 @@ public class DetectionUtil
 	 */
 	public static final int numDimensions( final List< SourceAndConverter< ? > > sources, final int setup, final int timepoint )
 	{
-		return Views.dropSingletonDimensions( sources.get( setup ).getSpimSource().getSource( timepoint, 0 ) ).numDimensions();
+		final Source< ? > source = sources.get( setup ).getSpimSource();
+		return SourceMetadataCache.get( source ).numDimensions( timepoint,
+				() -> Views.dropSingletonDimensions( source.getSource( timepoint, 0 ) ).numDimensions() );
+	}
+
+	/**
+	 * Discards the metadata cached for the specified sources. Must be called
+	 * when the transforms of the sources change.
+	 *
+	 * @param sources
+	 *            the image data.
+	 * @see SourceMetadataCache
+	 */
+	public static final void invalidateMetadata( final List< SourceAndConverter< ? > > sources )
+	{
+		for ( final SourceAndConverter< ? > sac : sources )
+			SourceMetadataCache.invalidate( sac.getSpimSource() );
 	}
 
 	/**
@@ -233,6 +261,12 @@ public class DetectionUtil
 	 *         not ship multiple resolution levels.
 	 */
 	public static final int determineOptimalResolutionLevel( final List< SourceAndConverter< ? > > sources, final double size, final double minSizePixel, final int timepoint, final int setup )
+	{
+		return SourceMetadataCache.get( sources.get( setup ).getSpimSource() ).optimalLevel( timepoint, size, minSizePixel,
+				() -> computeOptimalResolutionLevel( sources, size, minSizePixel, timepoint, setup ) );
+	}
+
+	private static final int computeOptimalResolutionLevel( final List< SourceAndConverter< ? > > sources, final double size, final double minSizePixel, final int timepoint, final int setup )
 	{
 		final int numMipmapLevels = sources.get( setup ).getSpimSource().getNumMipmapLevels();
 		int level = 0;
@@ -249,9 +283,9 @@ public class DetectionUtil
 			 */
 
 			final double[] sizeThisLevel = new double[ nDims ];
+			final AffineTransform3D transform = getTransform( sources, timepoint, setup, level );
 			for ( int d = 0; d < sizeThisLevel.length; d++ )
 			{
-				final AffineTransform3D transform = getTransform( sources, timepoint, setup, level );
 				sizeThisLevel[ d ] = size / Affine3DHelpers.extractScale( transform, 0 );
 				// Are we below the limit?
 				if ( sizeThisLevel[ d ] < minSizePixel )
@@ -322,9 +356,12 @@ public class DetectionUtil
 	 */
 	public static AffineTransform3D getTransform( final List< SourceAndConverter< ? > > sources, final int timepoint, final int setup, final int level )
 	{
-		final AffineTransform3D transform = new AffineTransform3D();
-		sources.get( setup ).getSpimSource().getSourceTransform( timepoint, level, transform );
-		return transform;
+		final Source< ? > source = sources.get( setup ).getSpimSource();
+		return SourceMetadataCache.get( source ).transform( timepoint, level, () -> {
+			final AffineTransform3D transform = new AffineTransform3D();
+			source.getSourceTransform( timepoint, level, transform );
+			return transform;
+		} ).copy();
 	}
 
 	/**
@@ -380,11 +417,13 @@ public class DetectionUtil
 	 */
 	public static double[] getPixelSize( final List< SourceAndConverter< ? > > sources, final int timepoint, final int setup, final int level )
 	{
-		final AffineTransform3D transform = getTransform( sources, timepoint, setup, level );
-		final double[] pixelSize = new double[ numDimensions( sources, setup, timepoint ) ];
-		for ( int d = 0; d < pixelSize.length; d++ )
-			pixelSize[ d ] = Affine3DHelpers.extractScale( transform, d );
-		return pixelSize;
+		return SourceMetadataCache.get( sources.get( setup ).getSpimSource() ).pixelSize( timepoint, level, () -> {
+			final AffineTransform3D transform = getTransform( sources, timepoint, setup, level );
+			final double[] pixelSize = new double[ numDimensions( sources, setup, timepoint ) ];
+			for ( int d = 0; d < pixelSize.length; d++ )
+				pixelSize[ d ] = Affine3DHelpers.extractScale( transform, d );
+			return pixelSize;
+		} ).clone();
 	}
 
 	/**
@@ -433,17 +472,112 @@ public class DetectionUtil
 		}
 	}
 
+	/**
+	 * Copies the specified interval of an image in a new image over floats.
+	 * The copy has the same bounds as the interval. This forces the image
+	 * data to be loaded.
+	 *
+	 * @param <T>
+	 *            the type of the pixels in the image. Must extend
+	 *            {@link RealType}.
+	 * @param img
+	 *            the image to copy.
+	 * @param interval
+	 *            the interval to copy. Must be included in the image.
+	 * @return a new image, over floats.
+	 */
+	public static final < T extends RealType< T > > RandomAccessibleInterval< FloatType > copyToFloat( final RandomAccessibleInterval< T > img, final Interval interval )
+	{
+		final Img< FloatType > copy = Util.getArrayOrCellImgFactory( interval, new FloatType() ).create( interval );
+		final Cursor< T > in = Views.flatIterable( Views.interval( img, interval ) ).cursor();
+		final Cursor< FloatType > out = copy.cursor();
+		while ( out.hasNext() )
+			out.next().setReal( in.next().getRealDouble() );
+
+		return Views.translate( copy, Intervals.minAsLongArray( interval ) );
+	}
+
+	public static final List< Point > findLocalMaxima(
+			final RandomAccessibleInterval< FloatType > source,
+			final double threshold,
+			final ExecutorService service )
+	{
+		return findLocalMaxima( source, Intervals.expand( source, 1 ), threshold, service );
+	}
+
+	/**
+	 * Finds the local maxima of the source above the specified threshold. The
+	 * search covers the specified interval shrunk by one pixel on each side,
+	 * so that every pixel searched has its full neighborhood in the
+	 * interval. The neighborhood is read from the source, mirrored beyond its
+	 * borders. Passing the source interval itself skips its 1-pixel border.
+	 *
+	 * @param source
+	 *            the image to search.
+	 * @param interval
+	 *            the interval whose interior is searched.
+	 * @param threshold
+	 *            the minimal value of a maximum.
+	 * @param service
+	 *            the executor service used to search in parallel.
+	 * @return a new list of the maxima positions.
+	 */
 	public static final List< Point > findLocalMaxima(
+			final RandomAccessibleInterval< FloatType > source,
+			final Interval interval,
+			final double threshold,
+			final ExecutorService service )
+	{
+		final FloatType val = new FloatType();
+		val.setReal( threshold );
+		return findLocalExtrema( source, interval, new LocalExtrema.MaximumCheck<>( val ), service );
+	}
+
+	public static final List< Point > findLocalMinima(
 			final RandomAccessibleInterval< FloatType > source,
 			final double threshold,
 			final ExecutorService service )
+	{
+		return findLocalMinima( source, Intervals.expand( source, 1 ), threshold, service );
+	}
+
+	/**
+	 * Finds the local minima of the source below the specified threshold. The
+	 * search covers the specified interval shrunk by one pixel on each side,
+	 * so that every pixel searched has its full neighborhood in the
+	 * interval. The neighborhood is read from the source, mirrored beyond its
+	 * borders. Passing the source interval itself skips its 1-pixel border.
+	 *
+	 * @param source
+	 *            the image to search.
+	 * @param interval
+	 *            the interval whose interior is searched.
+	 * @param threshold
+	 *            the maximal value of a minimum.
+	 * @param service
+	 *            the executor service used to search in parallel.
+	 * @return a new list of the minima positions.
+	 */
+	public static final List< Point > findLocalMinima(
+			final RandomAccessibleInterval< FloatType > source,
+			final Interval interval,
+			final double threshold,
+			final ExecutorService service )
 	{
 		final FloatType val = new FloatType();
 		val.setReal( threshold );
-		final LocalNeighborhoodCheck< Point, FloatType > localNeighborhoodCheck = new LocalExtrema.MaximumCheck<>( val );
-		final IntervalView< FloatType > extended = Views.interval( Views.extendMirrorSingle( source ), Intervals.expand( source, 1 ) );
+		return findLocalExtrema( source, interval, new LocalExtrema.MinimumCheck<>( val ), service );
+	}
+
+	private static final List< Point > findLocalExtrema(
+			final RandomAccessibleInterval< FloatType > source,
+			final Interval interval,
+			final LocalNeighborhoodCheck< Point, FloatType > localNeighborhoodCheck,
+			final ExecutorService service )
+	{
+		final IntervalView< FloatType > extended = Views.interval( Views.extendMirrorSingle( source ), interval );
 		final RectangleShape shape = new RectangleShape( 1, true );
-		final int numTasks = Runtime.getRuntime().availableProcessors() / 2;
+		final int numTasks = Math.max( 1, Runtime.getRuntime().availableProcessors() / 2 );
 		List< Point > peaks = new ArrayList<>();
 		try
 		{
@@ -473,6 +607,10 @@ public class DetectionUtil
 		settings.put( KEY_ROI, DEFAULT_ROI );
 		settings.put( KEY_ADD_BEHAVIOR, DEFAULT_ADD_BEHAVIOR );
 		settings.put( KEY_DETECTION_TYPE, DEFAULT_DETECTION_TYPE );
+		settings.put( KEY_PREFETCH_SIZE, DEFAULT_PREFETCH_SIZE );
+		settings.put( KEY_TIMEPOINTS_IN_PARALLEL, DEFAULT_TIMEPOINTS_IN_PARALLEL );
+		settings.put( KEY_MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET );
+		settings.put( KEY_LOG_STRATEGY, DEFAULT_LOG_STRATEGY );
 		return settings;
 	}
 
@@ -503,6 +641,14 @@ public class DetectionUtil
 		ok = ok & checkParameter( settings, KEY_RADIUS, Double.class, errorHolder );
 		ok = ok & checkParameter( settings, KEY_THRESHOLD, Double.class, errorHolder );
 //		ok = ok & checkParameter( settings, KEY_ADD_BEHAVIOR, String.class, errorHolder );
+		if ( null != settings.get( KEY_PREFETCH_SIZE ) )
+			ok = ok & checkParameter( settings, KEY_PREFETCH_SIZE, Integer.class, errorHolder );
+		if ( null != settings.get( KEY_TIMEPOINTS_IN_PARALLEL ) )
+			ok = ok & checkParameter( settings, KEY_TIMEPOINTS_IN_PARALLEL, Integer.class, errorHolder );
+		if ( null != settings.get( KEY_MEMORY_BUDGET ) )
+			ok = ok & checkParameter( settings, KEY_MEMORY_BUDGET, Integer.class, errorHolder );
+		if ( null != settings.get( KEY_LOG_STRATEGY ) )
+			ok = ok & checkParameter( settings, KEY_LOG_STRATEGY, String.class, errorHolder );
 
 		// Check key presence.
 		final List< String > mandatoryKeys = new ArrayList<>();
@@ -515,6 +661,10 @@ public class DetectionUtil
 		optionalKeys.add( KEY_ADD_BEHAVIOR );
 		optionalKeys.add( KEY_ROI );
 		optionalKeys.add( KEY_DETECTION_TYPE );
+		optionalKeys.add( KEY_PREFETCH_SIZE );
+		optionalKeys.add( KEY_TIMEPOINTS_IN_PARALLEL );
+		optionalKeys.add( KEY_MEMORY_BUDGET );
+		optionalKeys.add( KEY_LOG_STRATEGY );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, errorHolder );
 
 		// Check min & max time-point.
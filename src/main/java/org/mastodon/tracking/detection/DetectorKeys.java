@@ -131,6 +131,64 @@ public class DetectorKeys
 	 */
 	public static final String DEFAULT_ADD_BEHAVIOR = null;
 
+	/**
+	 * Key for the parameter specifying how many time-points to load and
+	 * convert in advance of the one being processed. Prefetched time-points are
+	 * copied in memory, so that the I/O of the next time-points overlaps with
+	 * the filtering of the current one. Expected values are {@link Integer}s
+	 * larger than or equal to 0. A value of 0 disables prefetching.
+	 */
+	public static final String KEY_PREFETCH_SIZE = "PREFETCH_SIZE";
+
+	/**
+	 * Default value for the {@link #KEY_PREFETCH_SIZE} parameter.
+	 */
+	public static final int DEFAULT_PREFETCH_SIZE = 0;
+
+	/**
+	 * Key for the parameter specifying how many time-points to process
+	 * concurrently. The available processors are split between the
+	 * time-points processed concurrently, which pays off when the frames are
+	 * too small to keep all the processors busy. Detections are still created
+	 * for one time-point at a time, in increasing order. Expected values are
+	 * {@link Integer}s larger than or equal to 1.
+	 */
+	public static final String KEY_TIMEPOINTS_IN_PARALLEL = "TIMEPOINTS_IN_PARALLEL";
+
+	/**
+	 * Default value for the {@link #KEY_TIMEPOINTS_IN_PARALLEL} parameter.
+	 */
+	public static final int DEFAULT_TIMEPOINTS_IN_PARALLEL = 1;
+
+	/**
+	 * Key for the parameter specifying the memory budget, in MB, for the
+	 * processing of one time-point. Frames that do not fit in this budget are
+	 * processed in overlapping blocks, and yield the same detections as if they
+	 * were processed at once. Expected values are {@link Integer}s. A value of
+	 * 0 or less processes each frame at once.
+	 */
+	public static final String KEY_MEMORY_BUDGET = "MEMORY_BUDGET";
+
+	/**
+	 * Default value for the {@link #KEY_MEMORY_BUDGET} parameter.
+	 */
+	public static final int DEFAULT_MEMORY_BUDGET = 0;
+
+	/**
+	 * Key for the parameter specifying how the LoG detector computes the
+	 * filter. Expected values are {@link String}s naming a
+	 * {@link LoGStrategy} (e.g. "AUTO", "FFT", "SEPARABLE").
+	 */
+	public static final String KEY_LOG_STRATEGY = "LOG_STRATEGY";
+
+	/**
+	 * Default value for the {@link #KEY_LOG_STRATEGY} parameter. The
+	 * separable filter is only scaled to match the dense kernel at its
+	 * center, so it must be selected explicitly, directly or with
+	 * {@link LoGStrategy#AUTO}.
+	 */
+	public static final String DEFAULT_LOG_STRATEGY = LoGStrategy.FFT.name();
+
 	private DetectorKeys()
 	{}
 }
@@ -28,16 +28,23 @@
  */
 package org.mastodon.tracking.detection;
 
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MEMORY_BUDGET;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_PREFETCH_SIZE;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_TIMEPOINTS_IN_PARALLEL;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_DETECTION_TYPE;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_PREFETCH_SIZE;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_ROI;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_SETUP_ID;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_THRESHOLD;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_TIMEPOINTS_IN_PARALLEL;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.mastodon.tracking.detection.DetectionCreatorFactory.DetectionCreator;
 import org.scijava.plugin.Parameter;
@@ -52,9 +59,11 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.dog.DifferenceOfGaussian;
 import net.imglib2.algorithm.dog.DogDetection;
-import net.imglib2.algorithm.dog.DogDetection.ExtremaType;
 import net.imglib2.algorithm.localextrema.RefinedPeak;
+import net.imglib2.algorithm.localextrema.SubpixelLocalization;
+import net.imglib2.img.Img;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
@@ -80,6 +89,34 @@ public class DoGDetectorOp
 	 */
 	public static final double MIN_SPOT_PIXEL_SIZE = 5d;
 
+	/**
+	 * Number of DoG steps per octave.
+	 */
+	private static final int STEPS_PER_OCTAVE = 4;
+
+	/**
+	 * Ratio between the larger and the smaller sigma of the DoG.
+	 */
+	private static final double K = Math.pow( 2.0, 1.0 / STEPS_PER_OCTAVE );
+
+	/**
+	 * Estimate of the memory needed per voxel of a block: the two float
+	 * images in which the DoG is computed.
+	 */
+	private static final int BYTES_PER_VOXEL = 8;
+
+	/**
+	 * Sigma of the Gaussian blur assumed to be present in the image, as in
+	 * {@link DogDetection}.
+	 */
+	private static final double IMAGE_SIGMA = 0.5;
+
+	/**
+	 * Minimal size of the Gaussian kernel used to smooth the image, as in
+	 * {@link DogDetection}.
+	 */
+	private static final double MIN_F = 2.;
+
 	private long processingTime;
 
 	@Override
@@ -104,147 +141,313 @@ public class DoGDetectorOp
 		final double threshold = ( double ) settings.get( KEY_THRESHOLD );
 		final Interval roi = ( Interval ) settings.get( KEY_ROI );
 		final DetectionType detectionType = DetectionType.getOrDefault( ( String ) settings.get( KEY_DETECTION_TYPE ), DetectionType.MINIMA );
+		final Object objPrefetch = settings.get( KEY_PREFETCH_SIZE );
+		final int prefetchSize = ( null == objPrefetch ) ? DEFAULT_PREFETCH_SIZE : ( int ) objPrefetch;
+		final Object objParallel = settings.get( KEY_TIMEPOINTS_IN_PARALLEL );
+		final int nParallel = ( null == objParallel ) ? DEFAULT_TIMEPOINTS_IN_PARALLEL : ( int ) objParallel;
+		final Object objBudget = settings.get( KEY_MEMORY_BUDGET );
+		final int memoryBudget = ( null == objBudget ) ? DEFAULT_MEMORY_BUDGET : ( int ) objBudget;
+		final long maxVoxels = DetectionTiling.maxVoxels( memoryBudget, BYTES_PER_VOXEL );
+		// Do not copy whole frames in memory if we are asked to save it.
+		final boolean copy = prefetchSize > 0 && memoryBudget <= 0;
 
 		statusService.showStatus( "DoG detection." );
-		for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
+		final DetectionPipeline< Frame, ArrayList< RefinedPeak< Point > > > pipeline = new DetectionPipeline<>(
+				tp -> load( sources, tp, setup, radius, roi, copy ),
+				( frame, es ) -> filter( frame, radius, threshold, detectionType, maxVoxels, scratchPool, es ),
+				( frame, peaks ) -> write( frame, peaks, radius, detectionType, detectionCreatorFactory ),
+				prefetchSize,
+				nParallel,
+				threadService.getExecutorService() );
+		try
 		{
-			statusService.showProgress( tp - minTimepoint + 1, maxTimepoint - minTimepoint + 1 );
-
-			// Did we get canceled?
-			if ( isCanceled() )
-				break;
+			pipeline.run( minTimepoint, maxTimepoint, this, statusService );
+		}
+		finally
+		{
+			scratchPool.release();
+			if ( null != logger )
+				logger.debug( scratchPool.toString() );
+		}
 
-			// Check if there is some data at this timepoint.
-			if ( !DetectionUtil.isPresent( sources, setup, tp ) )
-				continue;
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		statusService.clearStatus();
+		ok = true;
+	}
 
-			/*
-			 * Determine optimal level for detection.
-			 */
+	/**
+	 * Loads the image data of the specified time-point and determines the
+	 * interval to process in it.
+	 *
+	 * @return the data to process, or <code>null</code> if there is no data at
+	 *         this time-point.
+	 */
+	private static Frame load(
+			final List< SourceAndConverter< ? > > sources,
+			final int tp,
+			final int setup,
+			final double radius,
+			final Interval roi,
+			final boolean copy )
+	{
+		// Check if there is some data at this timepoint.
+		if ( !DetectionUtil.isPresent( sources, setup, tp ) )
+			return null;
 
-			final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, MIN_SPOT_PIXEL_SIZE / 2., tp, setup );
+		/*
+		 * Determine optimal level for detection.
+		 */
 
-			/*
-			 * Load and extends image data.
-			 */
+		final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, MIN_SPOT_PIXEL_SIZE / 2., tp, setup );
 
-			final RandomAccessibleInterval< ? > img = DetectionUtil.getImage( sources, tp, setup, level );
-			if ( !DetectionUtil.isReallyPresent( img ) )
-				continue;
+		/*
+		 * Load and extends image data.
+		 */
 
-			// If 2D, the 3rd dimension will be dropped here.
-			final RandomAccessibleInterval< ? > zeroMin = Views.dropSingletonDimensions( Views.zeroMin( img ) );
+		final RandomAccessibleInterval< ? > img = DetectionUtil.getImage( sources, tp, setup, level );
+		if ( !DetectionUtil.isReallyPresent( img ) )
+			return null;
 
-			@SuppressWarnings( { "unchecked", "rawtypes" } )
-			final RandomAccessible< FloatType > source = DetectionUtil.asExtendedFloat( ( RandomAccessibleInterval ) zeroMin );
+		// If 2D, the 3rd dimension will be dropped here.
+		final RandomAccessibleInterval< ? > zeroMin = Views.dropSingletonDimensions( Views.zeroMin( img ) );
 
-			/*
-			 * Transform ROI in higher level.
-			 */
+		/*
+		 * Transform ROI in higher level.
+		 */
 
-			final Interval interval;
-			if ( null == roi )
+		final Interval interval;
+		if ( null == roi )
+		{
+			interval = zeroMin;
+		}
+		else
+		{
+			final double[] minSource = new double[ 3 ];
+			final double[] maxSource = new double[ 3 ];
+			roi.realMin( minSource );
+			roi.realMax( maxSource );
+			final double[] minTarget = new double[ 3 ];
+			final double[] maxTarget = new double[ 3 ];
+
+			final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, tp, setup, level );
+			mipmapTransform.applyInverse( minTarget, minSource );
+			mipmapTransform.applyInverse( maxTarget, maxSource );
+
+			// Only take 2D or 3D version of the transformed interval.
+			final long[] tmin = new long[ zeroMin.numDimensions() ];
+			final long[] tmax = new long[ zeroMin.numDimensions() ];
+			for ( int d = 0; d < zeroMin.numDimensions(); d++ )
 			{
-				interval = zeroMin;
+				tmin[ d ] = ( long ) Math.ceil( minTarget[ d ] );
+				tmax[ d ] = ( long ) Math.floor( maxTarget[ d ] );
 			}
-			else
+			final FinalInterval transformedRoi = new FinalInterval( tmin, tmax );
+			interval = Intervals.intersect( transformedRoi, zeroMin );
+		}
+
+		// Ensure that the interval size is at least 3 in all dimensions.
+		final long[] min = new long[interval.numDimensions()];
+		interval.min( min );
+		final long[] max = new long[interval.numDimensions()];
+		interval.max( max );
+		for ( int d = 0; d < interval.numDimensions(); d++ )
+			if ( interval.dimension( d ) < 3 )
 			{
-				final double[] minSource = new double[ 3 ];
-				final double[] maxSource = new double[ 3 ];
-				roi.realMin( minSource );
-				roi.realMax( maxSource );
-				final double[] minTarget = new double[ 3 ];
-				final double[] maxTarget = new double[ 3 ];
-
-				final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, tp, setup, level );
-				mipmapTransform.applyInverse( minTarget, minSource );
-				mipmapTransform.applyInverse( maxTarget, maxSource );
-
-				// Only take 2D or 3D version of the transformed interval.
-				final long[] tmin = new long[ zeroMin.numDimensions() ];
-				final long[] tmax = new long[ zeroMin.numDimensions() ];
-				for ( int d = 0; d < zeroMin.numDimensions(); d++ )
-				{
-					tmin[ d ] = ( long ) Math.ceil( minTarget[ d ] );
-					tmax[ d ] = ( long ) Math.floor( maxTarget[ d ] );
-				}
-				final FinalInterval transformedRoi = new FinalInterval( tmin, tmax );
-				interval = Intervals.intersect( transformedRoi, zeroMin );
+				min[ d ]--;
+				max[ d ]++;
 			}
+		final FinalInterval minInterval = new FinalInterval( min, max );
+
+		final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
+		final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
+
+		/*
+		 * If we are asked to, copy the part of the image the filter will read
+		 * in memory. The halo ensures that the Gaussian kernels never reach
+		 * the borders of the copy, unless they are also the image borders.
+		 * This way, results are identical with and without a copy.
+		 */
 
-			// Ensure that the interval size is at least 3 in all dimensions.
-			final long[] min = new long[interval.numDimensions()];
-			interval.min( min );
-			final long[] max = new long[interval.numDimensions()];
-			interval.max( max );
-			for ( int d = 0; d < interval.numDimensions(); d++ )
-				if ( interval.dimension( d ) < 3 )
-				{
-					min[ d ]--;
-					max[ d ]++;
-				}
-			final FinalInterval minInterval = new FinalInterval( min, max );
-
-			/*
-			 * Process image.
-			 */
-
-
-			final int stepsPerOctave = 4;
-			final double k = Math.pow( 2.0, 1.0 / stepsPerOctave );
+		final RandomAccessible< FloatType > source;
+		if ( copy )
+		{
 			final double sigma = radius / Math.sqrt( zeroMin.numDimensions() );
-			final double sigmaSmaller = sigma;
-			final double sigmaLarger = k * sigmaSmaller;
-			final double normalization = ( ( detectionType == DetectionType.MAXIMA ) ? 1.0 : -1.0 )
-					/ ( sigmaLarger / sigmaSmaller - 1.0 );
-
-			final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
-			final DogDetection< FloatType > dog = new DogDetection<>(
-					source,
-					minInterval,
-					pixelSize,
-					sigmaSmaller,
-					sigmaLarger,
-					( detectionType == DetectionType.MAXIMA ) ? ExtremaType.MAXIMA : ExtremaType.MINIMA,
-					threshold,
-					true );
-			dog.setExecutorService( threadService.getExecutorService() );
-			final ArrayList< RefinedPeak< Point > > refinedPeaks = dog.getSubpixelPeaks();
-
-			final double[] pos = new double[ 3 ];
-			final RealPoint sp = RealPoint.wrap( pos );
-			final RealPoint p3d = new RealPoint( 3 );
-
-			final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
-			final DetectionCreator detectionCreator = detectionCreatorFactory.create( tp );
-			detectionCreator.preAddition();
-			try
-			{
-				for ( final RefinedPeak< Point > p : refinedPeaks )
-				{
-					final double value = p.getValue();
-					final double normalizedValue = value * normalization;
-
-					/*
-					 * In case p is 2D we pass it to a 3D RealPoint to work
-					 * nicely with the 3D transform.
-					 */
-					for ( int d = 0; d < p.numDimensions(); d++ )
-						p3d.setPosition( p.getDoublePosition( d ), d );
-					transform.apply( p3d, sp );
-					detectionCreator.createDetection( pos, radius, normalizedValue );
-				}
-			}
-			finally
+			final long[] halo = new long[ zeroMin.numDimensions() ];
+			for ( int d = 0; d < halo.length; d++ )
+				halo[ d ] = gaussianHalo( sigma / pixelSize[ d ] );
+			final Interval toCopy = Intervals.intersect( Intervals.expand( minInterval, halo ), zeroMin );
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			final RandomAccessibleInterval< FloatType > copied = DetectionUtil.copyToFloat( ( RandomAccessibleInterval ) zeroMin, toCopy );
+			source = Views.extendMirrorSingle( copied );
+		}
+		else
+		{
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			final RandomAccessible< FloatType > extended = DetectionUtil.asExtendedFloat( ( RandomAccessibleInterval ) zeroMin );
+			source = extended;
+		}
+
+		return new Frame( tp, source, minInterval, pixelSize, transform );
+	}
+
+	/**
+	 * Runs the DoG filter on the specified data and returns the sub-pixel
+	 * localized extrema. If the frame is larger than the specified number of
+	 * voxels, it is processed block by block.
+	 */
+	private static ArrayList< RefinedPeak< Point > > filter(
+			final Frame frame,
+			final double radius,
+			final double threshold,
+			final DetectionType detectionType,
+			final long maxVoxels,
+			final ScratchImgPool pool,
+			final ExecutorService service )
+	{
+		// The DoG is computed over the block expanded by 1 pixel.
+		final List< Interval > cores = DetectionTiling.split( frame.interval, DetectionTiling.MARGIN + 1, maxVoxels );
+		if ( cores.size() == 1 )
+			return filter( frame, frame.interval, radius, threshold, detectionType, pool, service );
+
+		final ArrayList< RefinedPeak< Point > > peaks = new ArrayList<>();
+		for ( final Interval core : cores )
+		{
+			final Interval block = DetectionTiling.block( core, frame.interval );
+			for ( final RefinedPeak< Point > peak : filter( frame, block, radius, threshold, detectionType, pool, service ) )
+				if ( DetectionTiling.contains( core, peak.getOriginalPeak() ) )
+					peaks.add( peak );
+		}
+		return peaks;
+	}
+
+	/**
+	 * Runs the DoG filter on the specified interval of the data. This follows
+	 * what {@link DogDetection} does, but computes the DoG in scratch images
+	 * taken from the specified pool.
+	 */
+	private static ArrayList< RefinedPeak< Point > > filter(
+			final Frame frame,
+			final Interval interval,
+			final double radius,
+			final double threshold,
+			final DetectionType detectionType,
+			final ScratchImgPool pool,
+			final ExecutorService service )
+	{
+		final double sigma = radius / Math.sqrt( interval.numDimensions() );
+		final double sigmaSmaller = sigma;
+		final double sigmaLarger = K * sigmaSmaller;
+		final double[][] sigmas = DifferenceOfGaussian.computeSigmas( IMAGE_SIGMA, MIN_F, frame.pixelSize, sigmaSmaller, sigmaLarger );
+
+		final Img< FloatType > dogImg = pool.acquire( interval, new FloatType() );
+		final Img< FloatType > tmpImg = pool.acquire( interval, new FloatType() );
+		try
+		{
+			final long[] min = Intervals.minAsLongArray( interval );
+			final RandomAccessibleInterval< FloatType > dog = Views.translate( dogImg, min );
+			final RandomAccessibleInterval< FloatType > tmp = Views.translate( tmpImg, min );
+			DifferenceOfGaussian.DoG( sigmas[ 0 ], sigmas[ 1 ], frame.source, tmp, dog, service );
+
+			// Threshold normalized by the DoG scale.
+			final double minPeakValue = threshold * ( K - 1.0 );
+			// Like DogDetection, skip the 1-pixel border of the DoG.
+			final List< Point > peaks = ( detectionType == DetectionType.MAXIMA )
+					? DetectionUtil.findLocalMaxima( dog, dog, minPeakValue, service )
+					: DetectionUtil.findLocalMinima( dog, dog, -minPeakValue, service );
+
+			final SubpixelLocalization< Point, FloatType > spl = new SubpixelLocalization<>( dog.numDimensions() );
+			spl.setAllowMaximaTolerance( true );
+			spl.setMaxNumMoves( 10 );
+			return spl.process( peaks, dog, dog );
+		}
+		finally
+		{
+			pool.recycle( dogImg );
+			pool.recycle( tmpImg );
+		}
+	}
+
+	/**
+	 * Transforms the specified peaks in global coordinates and feeds them to a
+	 * new detection creator for the time-point.
+	 */
+	private static void write(
+			final Frame frame,
+			final ArrayList< RefinedPeak< Point > > refinedPeaks,
+			final double radius,
+			final DetectionType detectionType,
+			final DetectionCreatorFactory detectionCreatorFactory )
+	{
+		final double normalization = ( ( detectionType == DetectionType.MAXIMA ) ? 1.0 : -1.0 )
+				/ ( K - 1.0 );
+
+		final double[] pos = new double[ 3 ];
+		final RealPoint sp = RealPoint.wrap( pos );
+		final RealPoint p3d = new RealPoint( 3 );
+
+		final DetectionCreator detectionCreator = detectionCreatorFactory.create( frame.tp );
+		detectionCreator.preAddition();
+		try
+		{
+			for ( final RefinedPeak< Point > p : refinedPeaks )
 			{
-				detectionCreator.postAddition();
+				final double value = p.getValue();
+				final double normalizedValue = value * normalization;
+
+				/*
+				 * In case p is 2D we pass it to a 3D RealPoint to work
+				 * nicely with the 3D transform.
+				 */
+				for ( int d = 0; d < p.numDimensions(); d++ )
+					p3d.setPosition( p.getDoublePosition( d ), d );
+				frame.transform.apply( p3d, sp );
+				detectionCreator.createDetection( pos, radius, normalizedValue );
 			}
 		}
+		finally
+		{
+			detectionCreator.postAddition();
+		}
+	}
 
-		final long end = System.currentTimeMillis();
-		processingTime = end - start;
-		statusService.clearStatus();
-		ok = true;
+	/**
+	 * Returns how far, in pixels, the Gaussian kernels used by the DoG filter
+	 * read around the processed interval, for the specified sigma, in pixels.
+	 * This is a conservative bound: it accounts for the larger sigma, for the
+	 * minimal sigma enforced by {@link DogDetection} and for the border used
+	 * when searching for extrema.
+	 */
+	static long gaussianHalo( final double sigmaPixels )
+	{
+		final double s = K * Math.max( 1., sigmaPixels );
+		return ( long ) Math.ceil( 3. * s ) + 2;
+	}
+
+	/**
+	 * The data of one time-point, ready to be filtered.
+	 */
+	private static final class Frame
+	{
+
+		private final int tp;
+
+		private final RandomAccessible< FloatType > source;
+
+		private final Interval interval;
+
+		private final double[] pixelSize;
+
+		private final AffineTransform3D transform;
+
+		private Frame( final int tp, final RandomAccessible< FloatType > source, final Interval interval, final double[] pixelSize, final AffineTransform3D transform )
+		{
+			this.tp = tp;
+			this.source = source;
+			this.interval = interval;
+			this.pixelSize = pixelSize;
+			this.transform = transform;
+		}
 	}
 
 	@Override
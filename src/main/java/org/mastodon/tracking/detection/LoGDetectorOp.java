@@ -28,16 +28,26 @@
  */
 package org.mastodon.tracking.detection;
 
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_LOG_STRATEGY;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_MEMORY_BUDGET;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_PREFETCH_SIZE;
+import static org.mastodon.tracking.detection.DetectorKeys.DEFAULT_TIMEPOINTS_IN_PARALLEL;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_LOG_STRATEGY;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MEMORY_BUDGET;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_PREFETCH_SIZE;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_RADIUS;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_ROI;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_SETUP_ID;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_THRESHOLD;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_TIMEPOINTS_IN_PARALLEL;
 import static org.mastodon.tracking.detection.DoGDetectorOp.MIN_SPOT_PIXEL_SIZE;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 import org.mastodon.tracking.detection.DetectionCreatorFactory.DetectionCreator;
 import org.scijava.plugin.Parameter;
@@ -45,15 +55,20 @@ import org.scijava.plugin.Plugin;
 import org.scijava.thread.ThreadService;
 
 import bdv.viewer.SourceAndConverter;
+import net.imglib2.Cursor;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.Point;
 import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.algorithm.Benchmark;
 import net.imglib2.algorithm.localextrema.RefinedPeak;
 import net.imglib2.algorithm.localextrema.SubpixelLocalization;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealFloatConverter;
+import net.imglib2.img.Img;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
@@ -78,6 +93,12 @@ public class LoGDetectorOp
 
 	private final boolean doSubpixelLocalization = true;
 
+	/**
+	 * Estimate of the memory needed per voxel of a block: the float output of
+	 * the convolution and the complex buffers of the FFT.
+	 */
+	private static final int BYTES_PER_VOXEL = 24;
+
 	@Override
 	public void mutate1( final DetectionCreatorFactory detectionCreatorFactory, final List< SourceAndConverter< ? > > sources )
 	{
@@ -98,169 +119,370 @@ public class LoGDetectorOp
 		final double radius = ( double ) settings.get( KEY_RADIUS ); // um
 		final double threshold = ( double ) settings.get( KEY_THRESHOLD );
 		final Interval roi = ( Interval ) settings.get( KEY_ROI );
+		final Object objPrefetch = settings.get( KEY_PREFETCH_SIZE );
+		final int prefetchSize = ( null == objPrefetch ) ? DEFAULT_PREFETCH_SIZE : ( int ) objPrefetch;
+		final Object objParallel = settings.get( KEY_TIMEPOINTS_IN_PARALLEL );
+		final int nParallel = ( null == objParallel ) ? DEFAULT_TIMEPOINTS_IN_PARALLEL : ( int ) objParallel;
+		final Object objBudget = settings.get( KEY_MEMORY_BUDGET );
+		final int memoryBudget = ( null == objBudget ) ? DEFAULT_MEMORY_BUDGET : ( int ) objBudget;
+		final long maxVoxels = DetectionTiling.maxVoxels( memoryBudget, BYTES_PER_VOXEL );
+		final Object objStrategy = settings.get( KEY_LOG_STRATEGY );
+		final LoGStrategy strategy = LoGStrategy.getOrDefault( ( String ) objStrategy, LoGStrategy.valueOf( DEFAULT_LOG_STRATEGY ) );
 
 		statusService.showStatus( "LoG detection" );
-		for ( int tp = minTimepoint; tp <= maxTimepoint; tp++ )
+		final DetectionPipeline< Frame, List< RefinedPeak< Point > > > pipeline = new DetectionPipeline<>(
+				tp -> load( sources, tp, setup, radius, roi, prefetchSize > 0 ),
+				( frame, es ) -> filter( frame, radius, threshold, strategy, maxVoxels, es ),
+				( frame, peaks ) -> write( frame, peaks, radius, detectionCreatorFactory ),
+				prefetchSize,
+				nParallel,
+				threadService.getExecutorService() );
+		try
 		{
-			statusService.showProgress( tp - minTimepoint + 1, maxTimepoint - minTimepoint + 1 );
+			pipeline.run( minTimepoint, maxTimepoint, this, statusService );
+		}
+		finally
+		{
+			scratchPool.release();
+			if ( null != logger )
+				logger.debug( scratchPool.toString() );
+		}
 
-			// Did we get canceled?
-			if ( isCanceled() )
-				break;
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		statusService.clearStatus();
+		ok = true;
+	}
 
-			// Check if there is some data at this timepoint.
-			if ( !DetectionUtil.isPresent( sources, setup, tp ) )
-				continue;
+	/**
+	 * Loads the image data of the specified time-point and determines the
+	 * interval to process in it.
+	 *
+	 * @return the data to process, or <code>null</code> if there is no data at
+	 *         this time-point.
+	 */
+	private static Frame load(
+			final List< SourceAndConverter< ? > > sources,
+			final int tp,
+			final int setup,
+			final double radius,
+			final Interval roi,
+			final boolean preload )
+	{
+		// Check if there is some data at this timepoint.
+		if ( !DetectionUtil.isPresent( sources, setup, tp ) )
+			return null;
 
-			/*
-			 * Determine optimal level for detection.
-			 */
+		/*
+		 * Determine optimal level for detection.
+		 */
 
-			final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, MIN_SPOT_PIXEL_SIZE / 2., tp, setup );
+		final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, MIN_SPOT_PIXEL_SIZE / 2., tp, setup );
 
-			/*
-			 * Load and extends image data.
-			 */
+		/*
+		 * Load and extends image data.
+		 */
 
-			@SuppressWarnings( "rawtypes" )
-			final RandomAccessibleInterval img = DetectionUtil.getImage( sources, tp, setup, level );
-			if ( !DetectionUtil.isReallyPresent( img ) )
-				continue;
+		final RandomAccessibleInterval< ? > img = DetectionUtil.getImage( sources, tp, setup, level );
+		if ( !DetectionUtil.isReallyPresent( img ) )
+			return null;
 
-			@SuppressWarnings( "unchecked" )
-			final RandomAccessibleInterval< ? > zeroMin = Views.dropSingletonDimensions( Views.zeroMin( img ) );
+		final RandomAccessibleInterval< ? > zeroMin = Views.dropSingletonDimensions( Views.zeroMin( img ) );
 
-			/*
-			 * Transform ROI in higher level.
-			 */
+		/*
+		 * Transform ROI in higher level.
+		 */
 
-			final Interval interval;
-			if ( null == roi )
-			{
-				interval = zeroMin;
-			}
-			else
+		final Interval interval;
+		if ( null == roi )
+		{
+			interval = zeroMin;
+		}
+		else
+		{
+			final double[] minSource = new double[ 3 ];
+			final double[] maxSource = new double[ 3 ];
+			roi.realMin( minSource );
+			roi.realMax( maxSource );
+			final double[] minTarget = new double[ 3 ];
+			final double[] maxTarget = new double[ 3 ];
+
+			final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, tp, setup, level );
+			mipmapTransform.applyInverse( minTarget, minSource );
+			mipmapTransform.applyInverse( maxTarget, maxSource );
+
+			final long[] tmin = new long[ zeroMin.numDimensions() ];
+			final long[] tmax = new long[ zeroMin.numDimensions() ];
+			for ( int d = 0; d < zeroMin.numDimensions(); d++ )
 			{
-				final double[] minSource = new double[ 3 ];
-				final double[] maxSource = new double[ 3 ];
-				roi.realMin( minSource );
-				roi.realMax( maxSource );
-				final double[] minTarget = new double[ 3 ];
-				final double[] maxTarget = new double[ 3 ];
-
-				final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, tp, setup, level );
-				mipmapTransform.applyInverse( minTarget, minSource );
-				mipmapTransform.applyInverse( maxTarget, maxSource );
-
-				final long[] tmin = new long[ zeroMin.numDimensions() ];
-				final long[] tmax = new long[ zeroMin.numDimensions() ];
-				for ( int d = 0; d < zeroMin.numDimensions(); d++ )
-				{
-					tmin[ d ] = ( long ) Math.ceil( minTarget[ d ] );
-					tmax[ d ] = ( long ) Math.floor( maxTarget[ d ] );
-				}
-				final FinalInterval transformedRoi = new FinalInterval( tmin, tmax );
-				interval = Intervals.intersect( transformedRoi, zeroMin );
+				tmin[ d ] = ( long ) Math.ceil( minTarget[ d ] );
+				tmax[ d ] = ( long ) Math.floor( maxTarget[ d ] );
 			}
+			final FinalInterval transformedRoi = new FinalInterval( tmin, tmax );
+			interval = Intervals.intersect( transformedRoi, zeroMin );
+		}
 
-			/*
-			 * Filter image.
-			 */
+		final IntervalView< ? > source = Views.interval( zeroMin, interval );
 
-			final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
-			final RandomAccessibleInterval< FloatType > kernel = createLoGKernel( radius, zeroMin.numDimensions(), pixelSize );
-			@SuppressWarnings( "rawtypes" )
-			final IntervalView source = Views.interval( zeroMin, interval );
+		/*
+		 * If we are asked to, read the interval once so that its blocks are
+		 * in the cache of the source when the filter needs them. The data
+		 * itself is not copied, so the convolution sees exactly the same
+		 * input as without preloading.
+		 */
 
-			@SuppressWarnings( "unchecked" )
-			final RandomAccessibleInterval< FloatType > output = ops().filter().convolve( source, kernel );
+		if ( preload )
+		{
+			final Cursor< ? > cursor = Views.flatIterable( source ).cursor();
+			while ( cursor.hasNext() )
+				cursor.next();
+		}
+
+		final double[] pixelSize = DetectionUtil.getPixelSize( sources, tp, setup, level );
+		final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
+		return new Frame( tp, source, img.numDimensions(), pixelSize, transform );
+	}
+
+	/**
+	 * Runs the LoG filter on the specified data and returns the localized
+	 * maxima, with their quality as value. If the frame is larger than the
+	 * specified number of voxels, it is processed block by block.
+	 */
+	private List< RefinedPeak< Point > > filter(
+			final Frame frame,
+			final double radius,
+			final double threshold,
+			final LoGStrategy strategy,
+			final long maxVoxels,
+			final ExecutorService service )
+	{
+		final int nDims = frame.source.numDimensions();
+		final RandomAccessibleInterval< FloatType > kernel = createLoGKernel( radius, nDims, frame.pixelSize );
+
+		final boolean separable = ( strategy == LoGStrategy.SEPARABLE )
+				|| ( strategy == LoGStrategy.AUTO && SeparableLoG.isFaster( kernel, frame.source ) );
+		final double[][][] halfKernels;
+		if ( separable )
+		{
+			final double sigma = radius / Math.sqrt( nDims );
+			final double[] sigmaPixels = new double[ nDims ];
+			for ( int d = 0; d < nDims; d++ )
+				sigmaPixels[ d ] = sigma / frame.pixelSize[ d ];
+			halfKernels = SeparableLoG.halfKernels( kernel, sigmaPixels );
+		}
+		else
+		{
+			halfKernels = null;
+		}
+
+		// Blocks are convolved with the kernel extending past their borders.
+		long kernelHalfSize = 0;
+		for ( int d = 0; d < kernel.numDimensions(); d++ )
+			kernelHalfSize = Math.max( kernelHalfSize, kernel.dimension( d ) / 2 );
+
+		final List< Interval > cores = DetectionTiling.split( frame.source, DetectionTiling.MARGIN + kernelHalfSize, maxVoxels );
+		if ( cores.size() == 1 )
+			return filter( frame, frame.source, frame.source, kernel, halfKernels, radius, threshold, service );
+
+		final List< RefinedPeak< Point > > peaks = new ArrayList<>();
+		for ( final Interval core : cores )
+		{
+			final Interval block = DetectionTiling.block( core, frame.source );
+			final Interval input = Intervals.intersect( Intervals.expand( block, kernelHalfSize ), frame.source );
+			for ( final RefinedPeak< Point > peak : filter( frame, input, block, kernel, halfKernels, radius, threshold, service ) )
+				if ( DetectionTiling.contains( core, peak.getOriginalPeak() ) )
+					peaks.add( peak );
+		}
+		return peaks;
+	}
 
+	/**
+	 * Filters the specified input interval of the data with the LoG, and
+	 * returns the maxima found in the specified output interval. If the
+	 * half-kernels are <code>null</code>, the input is convolved with the
+	 * dense kernel. Otherwise, the separable LoG is computed.
+	 */
+	private List< RefinedPeak< Point > > filter(
+			final Frame frame,
+			final Interval input,
+			final Interval block,
+			final RandomAccessibleInterval< FloatType > kernel,
+			final double[][][] halfKernels,
+			final double radius,
+			final double threshold,
+			final ExecutorService service )
+	{
+		@SuppressWarnings( { "unchecked", "rawtypes" } )
+		final RandomAccessibleInterval source = Views.interval( ( RandomAccessible ) frame.source.getSource(), input );
+		final RandomAccessibleInterval< FloatType > output;
+		Img< FloatType > outputImg = null;
+		if ( null == halfKernels )
+		{
+			@SuppressWarnings( "unchecked" )
+			final RandomAccessibleInterval< FloatType > convolved = ops().filter().convolve( source, kernel );
 			/*
-			 * LoG normalization factor, so that the filtered peak have the
-			 * maximal value for spots that have the size this kernel is tuned
-			 * to. With this value, the peak value will be of the same order of
-			 * magnitude than the raw spot (if it has the right size). This
-			 * value also ensures that if the image has its calibration changed,
-			 * one will retrieve the same peak value than before scaling.
-			 * However, I (JYT) could not derive the exact formula if the image
-			 * is scaled differently across X, Y and Z.
+			 * Make sure the output is expressed in the coordinates of the
+			 * input. When the convolution op returns a zero-min image, the
+			 * peaks found with an ROI used to be shifted by the ROI origin.
+			 * Translating the output puts the spots at their position in the
+			 * source.
 			 */
-			final double sigma = radius / Math.sqrt( img.numDimensions() );
-			final double sigmaPixels = sigma / pixelSize[ 0 ];
-			final FloatType C = new FloatType( ( float ) ( 1. / Math.PI / sigmaPixels / sigmaPixels ) );
-			Views.iterable( output ).forEach( ( e ) -> e.div( C ) );
-
+			output = Views.isZeroMin( convolved ) && !Views.isZeroMin( source )
+					? Views.translate( convolved, Intervals.minAsLongArray( source ) )
+					: convolved;
+		}
+		else
+		{
 			/*
-			 * Detect local maxima.
+			 * Like the convolution op, consider the input is 0 outside of the
+			 * interval.
 			 */
+			@SuppressWarnings( "unchecked" )
+			final RandomAccessible< FloatType > extended = Views.extendZero( Converters.convert( source, new RealFloatConverter<>(), new FloatType() ) );
+			outputImg = scratchPool.acquire( block, new FloatType() );
+			final Img< FloatType > bufferImg = scratchPool.acquire( block, new FloatType() );
+			final long[] min = Intervals.minAsLongArray( block );
+			output = Views.translate( outputImg, min );
+			SeparableLoG.convolve( halfKernels, extended, output, Views.translate( bufferImg, min ), service );
+			scratchPool.recycle( bufferImg );
+		}
 
-			final AffineTransform3D transform = DetectionUtil.getTransform( sources, tp, setup, level );
-			final DetectionCreator detectionCreator = detectionCreatorFactory.create( tp );
-			final List< Point > peaks = DetectionUtil.findLocalMaxima( output, threshold, threadService.getExecutorService() );
-			if ( doSubpixelLocalization )
+		try
+		{
+			return findMaxima( frame, output, block, radius, threshold, service );
+		}
+		finally
+		{
+			if ( null != outputImg )
+				scratchPool.recycle( outputImg );
+		}
+	}
+
+	/**
+	 * Normalizes the LoG output and returns the maxima found in the specified
+	 * interval.
+	 */
+	private List< RefinedPeak< Point > > findMaxima(
+			final Frame frame,
+			final RandomAccessibleInterval< FloatType > output,
+			final Interval block,
+			final double radius,
+			final double threshold,
+			final ExecutorService service )
+	{
+		/*
+		 * LoG normalization factor, so that the filtered peak have the maximal
+		 * value for spots that have the size this kernel is tuned to. With
+		 * this value, the peak value will be of the same order of magnitude
+		 * than the raw spot (if it has the right size). This value also
+		 * ensures that if the image has its calibration changed, one will
+		 * retrieve the same peak value than before scaling. However, I (JYT)
+		 * could not derive the exact formula if the image is scaled
+		 * differently across X, Y and Z.
+		 */
+		final double sigma = radius / Math.sqrt( frame.numDimensions );
+		final double sigmaPixels = sigma / frame.pixelSize[ 0 ];
+		final FloatType C = new FloatType( ( float ) ( 1. / Math.PI / sigmaPixels / sigmaPixels ) );
+		Views.iterable( output ).forEach( ( e ) -> e.div( C ) );
+
+		/*
+		 * Detect local maxima.
+		 */
+
+		final RandomAccessibleInterval< FloatType > valid = Views.interval( output, block );
+		final List< Point > peaks = DetectionUtil.findLocalMaxima( valid, threshold, service );
+		final RandomAccess< FloatType > ra = output.randomAccess();
+		final List< RefinedPeak< Point > > qualified = new ArrayList<>( peaks.size() );
+		if ( doSubpixelLocalization )
+		{
+			final int maxNumMoves = 10;
+			final boolean allowMaximaTolerance = true;
+			final boolean returnInvalidPeaks = true;
+			final boolean[] allowedToMoveInDim = new boolean[ frame.numDimensions ];
+			Arrays.fill( allowedToMoveInDim, true );
+			final float maximaTolerance = 0.01f;
+			final List< RefinedPeak< Point > > refined = SubpixelLocalization.refinePeaks( peaks, output, valid,
+					returnInvalidPeaks, maxNumMoves, allowMaximaTolerance, maximaTolerance , allowedToMoveInDim );
+
+			for ( final RefinedPeak< Point > refinedPeak : refined )
 			{
-				final int maxNumMoves = 10;
-				final boolean allowMaximaTolerance = true;
-				final boolean returnInvalidPeaks = true;
-				final boolean[] allowedToMoveInDim = new boolean[ img.numDimensions() ];
-				Arrays.fill( allowedToMoveInDim, true );
-				final float maximaTolerance = 0.01f;
-				final List< RefinedPeak< Point > > refined = SubpixelLocalization.refinePeaks( peaks, output, output,
-						returnInvalidPeaks, maxNumMoves, allowMaximaTolerance, maximaTolerance , allowedToMoveInDim );
-
-				final RandomAccess< FloatType > ra = output.randomAccess();
-				final double[] pos = new double[ 3 ];
-				final RealPoint point = RealPoint.wrap( pos );
-				final RealPoint p3d = new RealPoint( 3 );
-
-				detectionCreator.preAddition();
-				try
-				{
-					for ( final RefinedPeak< Point > refinedPeak : refined )
-					{
-						ra.setPosition( refinedPeak.getOriginalPeak() );
-						final double q = ra.get().getRealDouble();
-
-						for ( int d = 0; d < refinedPeak.numDimensions(); d++ )
-							p3d.setPosition( refinedPeak.getDoublePosition( d ), d );
-						transform.apply( p3d, point );
-						detectionCreator.createDetection( pos, radius, q );
-					}
-				}
-				finally
-				{
-					detectionCreator.postAddition();
-				}
+				ra.setPosition( refinedPeak.getOriginalPeak() );
+				final double q = ra.get().getRealDouble();
+				qualified.add( new RefinedPeak<>( refinedPeak.getOriginalPeak(), refinedPeak, q, refinedPeak.isValid() ) );
 			}
-			else
+		}
+		else
+		{
+			for ( final Point peak : peaks )
 			{
-				final RandomAccess< FloatType > ra = output.randomAccess();
-				final double[] pos = new double[ 3 ];
-				final RealPoint point = RealPoint.wrap( pos );
-
-				detectionCreator.preAddition();
-				try
-				{
-					for ( final Point peak : peaks )
-					{
-						ra.setPosition( peak );
-						final double q = ra.get().getRealDouble();
-
-						transform.apply( peak, point );
-						detectionCreator.createDetection( pos, radius, q );
-					}
-				}
-				finally
-				{
-					detectionCreator.postAddition();
-				}
+				ra.setPosition( peak );
+				final double q = ra.get().getRealDouble();
+				qualified.add( new RefinedPeak<>( peak, peak, q, true ) );
 			}
 		}
+		return qualified;
+	}
 
-		final long end = System.currentTimeMillis();
-		processingTime = end - start;
-		statusService.clearStatus();
-		ok = true;
+	/**
+	 * Transforms the specified peaks in global coordinates and feeds them to a
+	 * new detection creator for the time-point.
+	 */
+	private static void write(
+			final Frame frame,
+			final List< RefinedPeak< Point > > peaks,
+			final double radius,
+			final DetectionCreatorFactory detectionCreatorFactory )
+	{
+		final double[] pos = new double[ 3 ];
+		final RealPoint point = RealPoint.wrap( pos );
+		final RealPoint p3d = new RealPoint( 3 );
+
+		final DetectionCreator detectionCreator = detectionCreatorFactory.create( frame.tp );
+		detectionCreator.preAddition();
+		try
+		{
+			for ( final RefinedPeak< Point > peak : peaks )
+			{
+				for ( int d = 0; d < peak.numDimensions(); d++ )
+					p3d.setPosition( peak.getDoublePosition( d ), d );
+				frame.transform.apply( p3d, point );
+				detectionCreator.createDetection( pos, radius, peak.getValue() );
+			}
+		}
+		finally
+		{
+			detectionCreator.postAddition();
+		}
+	}
+
+	/**
+	 * The data of one time-point, ready to be filtered.
+	 */
+	private static final class Frame
+	{
+
+		private final int tp;
+
+		private final IntervalView< ? > source;
+
+		/**
+		 * Dimensionality of the source image, before singleton dimensions are
+		 * dropped.
+		 */
+		private final int numDimensions;
+
+		private final double[] pixelSize;
+
+		private final AffineTransform3D transform;
+
+		private Frame( final int tp, final IntervalView< ? > source, final int numDimensions, final double[] pixelSize, final AffineTransform3D transform )
+		{
+			this.tp = tp;
+			this.source = source;
+			this.numDimensions = numDimensions;
+			this.pixelSize = pixelSize;
+			this.transform = transform;
+		}
 	}
 
 	@Override
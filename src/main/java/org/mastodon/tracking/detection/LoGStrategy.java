@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+/**
+ * Specify how the Laplacian of Gaussian filter is computed.
+ */
+public enum LoGStrategy
+{
+	/**
+	 * Pick the strategy expected to be the fastest, based on the kernel size.
+	 */
+	AUTO("automatic"),
+	/**
+	 * Convolve with the dense n-D kernel, using the convolution op.
+	 */
+	FFT("FFT convolution"),
+	/**
+	 * Sum the per-axis second-derivative Gaussian passes.
+	 */
+	SEPARABLE("separable convolution");
+
+	private final String str;
+
+	LoGStrategy( final String str )
+	{
+		this.str = str;
+	}
+
+	@Override
+	public String toString()
+	{
+		return str;
+	}
+
+	public static LoGStrategy getOrDefault( final String name, final LoGStrategy defaultStrategy )
+	{
+		try
+		{
+			return LoGStrategy.valueOf( name );
+		}
+		catch ( final IllegalArgumentException | NullPointerException e )
+		{
+			return defaultStrategy;
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.imglib2.Dimensions;
+import net.imglib2.img.Img;
+import net.imglib2.type.NativeType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+
+/**
+ * A pool of scratch images, reused across the frames processed by a detector.
+ * <p>
+ * Images are keyed by their dimensions and pixel type. Each thread has its
+ * own free list, so that images are reused without synchronization by the
+ * worker that processes the next frame of the same shape. An image must be
+ * recycled by the thread that acquired it, once its content is not needed
+ * anymore. The content of an acquired image is undefined.
+ * <p>
+ * The pool counts how many images were allocated and how many were reused, to
+ * monitor that a detector reaches a steady state where it does not allocate
+ * anymore.
+ */
+public class ScratchImgPool
+{
+
+	private volatile ThreadLocal< Map< Key, ArrayDeque< Img< ? > > > > free;
+
+	/**
+	 * All the free lists of the current thread-local, so that they can be
+	 * emptied from any thread.
+	 */
+	private final List< Map< Key, ArrayDeque< Img< ? > > > > freeLists;
+
+	private final AtomicLong allocations = new AtomicLong();
+
+	private final AtomicLong allocatedElements = new AtomicLong();
+
+	private final AtomicLong reuses = new AtomicLong();
+
+	public ScratchImgPool()
+	{
+		this.freeLists = new ArrayList<>();
+		this.free = newFreeLists();
+	}
+
+	private ThreadLocal< Map< Key, ArrayDeque< Img< ? > > > > newFreeLists()
+	{
+		return ThreadLocal.withInitial( () -> {
+			final Map< Key, ArrayDeque< Img< ? > > > map = new HashMap<>();
+			synchronized ( freeLists )
+			{
+				freeLists.add( map );
+			}
+			return map;
+		} );
+	}
+
+	/**
+	 * Returns a zero-min image with the specified dimensions and pixel type.
+	 * The image is taken from the free list of the calling thread if
+	 * possible, and created otherwise.
+	 *
+	 * @param <T>
+	 *            the pixel type.
+	 * @param dimensions
+	 *            the dimensions of the image.
+	 * @param type
+	 *            an instance of the pixel type.
+	 * @return an image, with undefined content.
+	 */
+	public < T extends NativeType< T > > Img< T > acquire( final Dimensions dimensions, final T type )
+	{
+		final Key key = new Key( Intervals.dimensionsAsLongArray( dimensions ), type.getClass() );
+		final Map< Key, ArrayDeque< Img< ? > > > map = free.get();
+		synchronized ( map )
+		{
+			final ArrayDeque< Img< ? > > images = map.get( key );
+			if ( null != images && !images.isEmpty() )
+			{
+				reuses.incrementAndGet();
+				@SuppressWarnings( "unchecked" )
+				final Img< T > img = ( Img< T > ) images.poll();
+				return img;
+			}
+		}
+
+		allocations.incrementAndGet();
+		allocatedElements.addAndGet( Intervals.numElements( dimensions ) );
+		return Util.getArrayOrCellImgFactory( dimensions, type ).create( dimensions );
+	}
+
+	/**
+	 * Gives back an image acquired from this pool, to the free list of the
+	 * calling thread.
+	 *
+	 * @param img
+	 *            the image to recycle.
+	 */
+	public void recycle( final Img< ? > img )
+	{
+		final Key key = new Key( Intervals.dimensionsAsLongArray( img ), img.firstElement().getClass() );
+		final Map< Key, ArrayDeque< Img< ? > > > map = free.get();
+		synchronized ( map )
+		{
+			map.computeIfAbsent( key, k -> new ArrayDeque<>() ).add( img );
+		}
+	}
+
+	/**
+	 * Empties the free lists of all threads, so that the images they hold can
+	 * be garbage-collected. The counters are not reset.
+	 */
+	public void release()
+	{
+		synchronized ( freeLists )
+		{
+			for ( final Map< Key, ArrayDeque< Img< ? > > > map : freeLists )
+				synchronized ( map )
+				{
+					map.clear();
+				}
+			freeLists.clear();
+			// Threads that outlive this call start over with new free lists.
+			free = newFreeLists();
+		}
+	}
+
+	/**
+	 * Resets the allocation counters.
+	 */
+	public void resetCounters()
+	{
+		allocations.set( 0 );
+		allocatedElements.set( 0 );
+		reuses.set( 0 );
+	}
+
+	/**
+	 * Returns how many images were created since the last reset.
+	 *
+	 * @return the number of allocations.
+	 */
+	public long getAllocations()
+	{
+		return allocations.get();
+	}
+
+	/**
+	 * Returns the total number of pixels of the images created since the last
+	 * reset.
+	 *
+	 * @return the number of pixels allocated.
+	 */
+	public long getAllocatedElements()
+	{
+		return allocatedElements.get();
+	}
+
+	/**
+	 * Returns how many images were reused since the last reset.
+	 *
+	 * @return the number of reuses.
+	 */
+	public long getReuses()
+	{
+		return reuses.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format( "%s: %d images allocated (%d pixels), %d reused.",
+				getClass().getSimpleName(), getAllocations(), getAllocatedElements(), getReuses() );
+	}
+
+	private static final class Key
+	{
+
+		private final long[] dimensions;
+
+		private final Class< ? > type;
+
+		private Key( final long[] dimensions, final Class< ? > type )
+		{
+			this.dimensions = dimensions;
+			this.type = type;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return 31 * Arrays.hashCode( dimensions ) + type.hashCode();
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof Key ) )
+				return false;
+			final Key other = ( Key ) obj;
+			return type.equals( other.type ) && Arrays.equals( dimensions, other.dimensions );
+		}
+	}
+}
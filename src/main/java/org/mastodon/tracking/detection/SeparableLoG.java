@@ -0,0 +1,204 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.util.concurrent.ExecutorService;
+
+import net.imglib2.Cursor;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.algorithm.gauss3.SeparableSymmetricConvolution;
+import net.imglib2.exception.IncompatibleTypeException;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * Computes the Laplacian of Gaussian as a sum of separable convolutions.
+ * <p>
+ * The LoG kernel is the sum over the dimensions <code>d</code> of the second
+ * derivative of the Gaussian along <code>d</code>. Each term of the sum is
+ * separable: it is the product of a 1D second-derivative kernel along
+ * <code>d</code> and of 1D Gaussian kernels along the other dimensions. The
+ * cost per voxel is therefore proportional to the sum of the kernel sizes
+ * instead of their product.
+ * <p>
+ * The 1D kernels have the same support as the dense kernel they replace, and
+ * are scaled so that the separable kernel has the same central value as the
+ * dense one. The filter response hence has the same normalization.
+ */
+final class SeparableLoG
+{
+
+	/**
+	 * Rough cost, in multiply-add per voxel and per log2 of the block size,
+	 * of a FFT convolution: the forward and inverse transforms of the image
+	 * and the multiplication in the frequency domain.
+	 */
+	private static final double FFT_COST = 12.;
+
+	/**
+	 * Returns <code>true</code> if the separable strategy is expected to be
+	 * faster than the FFT strategy for the specified kernel and image.
+	 *
+	 * @param kernel
+	 *            the dense LoG kernel.
+	 * @param interval
+	 *            the interval to filter.
+	 * @return <code>true</code> if the separable strategy should be used.
+	 */
+	static boolean isFaster( final Interval kernel, final Interval interval )
+	{
+		final int n = kernel.numDimensions();
+		double separableCost = 0.;
+		for ( int d = 0; d < n; d++ )
+			separableCost += n * kernel.dimension( d );
+
+		double paddedSize = 1.;
+		for ( int d = 0; d < n; d++ )
+			paddedSize *= interval.dimension( d ) + kernel.dimension( d ) - 1;
+		final double fftCost = FFT_COST * Math.log( paddedSize ) / Math.log( 2. );
+
+		return separableCost <= fftCost;
+	}
+
+	/**
+	 * Computes the 1D half-kernels of the separable LoG.
+	 *
+	 * @param kernel
+	 *            the dense LoG kernel. Used to determine the kernel support
+	 *            and the normalization.
+	 * @param sigmaPixels
+	 *            the sigmas of the LoG, in pixels.
+	 * @return the half-kernels, indexed by term, then by dimension.
+	 */
+	static double[][][] halfKernels( final RandomAccessibleInterval< FloatType > kernel, final double[] sigmaPixels )
+	{
+		final int n = kernel.numDimensions();
+		final double[][] gaussians = new double[ n ][];
+		final double[][] derivatives = new double[ n ][];
+		for ( int d = 0; d < n; d++ )
+		{
+			final double s = sigmaPixels[ d ];
+			final int size = ( int ) ( kernel.dimension( d ) / 2 ) + 1;
+			gaussians[ d ] = new double[ size ];
+			derivatives[ d ] = new double[ size ];
+			for ( int x = 0; x < size; x++ )
+			{
+				final double g = Math.exp( -0.5 * x * x / s / s ) / Math.sqrt( 2. * Math.PI ) / s;
+				gaussians[ d ][ x ] = g;
+				// Minus the second derivative, so that bright blobs give maxima.
+				derivatives[ d ][ x ] = -g * ( x * x / s / s - 1. ) / s / s;
+			}
+		}
+
+		/*
+		 * Central value of the separable kernel and of the dense one.
+		 */
+
+		double separableCenter = 0.;
+		for ( int d = 0; d < n; d++ )
+		{
+			double term = derivatives[ d ][ 0 ];
+			for ( int k = 0; k < n; k++ )
+				if ( k != d )
+					term *= gaussians[ k ][ 0 ];
+			separableCenter += term;
+		}
+		final RandomAccess< FloatType > ra = kernel.randomAccess();
+		for ( int d = 0; d < n; d++ )
+			ra.setPosition( kernel.min( d ) + kernel.dimension( d ) / 2, d );
+		final double scale = ra.get().getRealDouble() / separableCenter;
+
+		final double[][][] halfKernels = new double[ n ][ n ][];
+		for ( int d = 0; d < n; d++ )
+		{
+			for ( int k = 0; k < n; k++ )
+				halfKernels[ d ][ k ] = ( k == d ) ? derivatives[ k ].clone() : gaussians[ k ];
+
+			for ( int x = 0; x < halfKernels[ d ][ d ].length; x++ )
+				halfKernels[ d ][ d ][ x ] *= scale;
+		}
+		return halfKernels;
+	}
+
+	/**
+	 * Computes the separable LoG of the source in the output.
+	 *
+	 * @param halfKernels
+	 *            the half-kernels, as returned by
+	 *            {@link #halfKernels(RandomAccessibleInterval, double[])}.
+	 * @param source
+	 *            the source, extended so that it can be read around the
+	 *            output.
+	 * @param output
+	 *            the output. Its interval is the one processed.
+	 * @param buffer
+	 *            a scratch image, over an interval that contains the output
+	 *            interval. Its content is overwritten.
+	 * @param service
+	 *            the executor service to use for the convolutions.
+	 */
+	static void convolve(
+			final double[][][] halfKernels,
+			final RandomAccessible< FloatType > source,
+			final RandomAccessibleInterval< FloatType > output,
+			final RandomAccessibleInterval< FloatType > buffer,
+			final ExecutorService service )
+	{
+		final RandomAccessibleInterval< FloatType > term = Intervals.equals( buffer, output ) ? buffer : Views.interval( buffer, output );
+		try
+		{
+			for ( int d = 0; d < halfKernels.length; d++ )
+			{
+				if ( d == 0 )
+				{
+					SeparableSymmetricConvolution.convolve( halfKernels[ d ], source, output, service );
+					continue;
+				}
+
+				SeparableSymmetricConvolution.convolve( halfKernels[ d ], source, term, service );
+				final Cursor< FloatType > out = Views.flatIterable( output ).cursor();
+				final Cursor< FloatType > in = Views.flatIterable( term ).cursor();
+				while ( out.hasNext() )
+					out.next().add( in.next() );
+			}
+		}
+		catch ( final IncompatibleTypeException e )
+		{
+			// Cannot happen: source and target are over floats.
+			throw new RuntimeException( e );
+		}
+	}
+
+	private SeparableLoG()
+	{}
+}
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.detection;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import bdv.viewer.Source;
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Caches the metadata of a {@link Source} used by the detectors: source
+ * transforms, pixel sizes, dimensionality and optimal resolution levels.
+ * <p>
+ * Querying these from a source can be costly: transforms are copied from the
+ * source for every call, and the dimensionality requires building a view of
+ * the full-resolution image. Since they do not change during a detection run,
+ * they are computed once per source, time-point and level, and reused.
+ * <p>
+ * There is one cache per source, which is dropped when the source is
+ * garbage-collected. If the transform of a source is edited, its cache must
+ * be invalidated with {@link #invalidate(Source)}. Because the transforms can
+ * be edited at any time in the viewers, every entry point that reads the
+ * metadata of sources (a detection run, a semi-automatic tracking run, the
+ * wizard helpers that report resolution levels and radii) invalidates the
+ * caches of its sources first. The cache is therefore only trusted for the
+ * duration of one such call.
+ * <p>
+ * The values cached are computed by the caller. The cache does not hold a
+ * reference to the source itself.
+ */
+public class SourceMetadataCache
+{
+
+	private static final Map< Source< ? >, SourceMetadataCache > CACHES = new WeakHashMap<>();
+
+	/**
+	 * Returns the cache of the specified source, creating it if needed.
+	 *
+	 * @param source
+	 *            the source.
+	 * @return the cache of this source.
+	 */
+	public static SourceMetadataCache get( final Source< ? > source )
+	{
+		synchronized ( CACHES )
+		{
+			return CACHES.computeIfAbsent( source, s -> new SourceMetadataCache() );
+		}
+	}
+
+	/**
+	 * Discards the metadata cached for the specified source. Must be called
+	 * when the source transform changes.
+	 *
+	 * @param source
+	 *            the source.
+	 */
+	public static void invalidate( final Source< ? > source )
+	{
+		synchronized ( CACHES )
+		{
+			CACHES.remove( source );
+		}
+	}
+
+	/**
+	 * Discards the metadata cached for all sources.
+	 */
+	public static void invalidateAll()
+	{
+		synchronized ( CACHES )
+		{
+			CACHES.clear();
+		}
+	}
+
+	private final ConcurrentHashMap< Long, AffineTransform3D > transforms = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap< Long, double[] > pixelSizes = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap< Integer, Integer > numDimensions = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap< LevelKey, Integer > optimalLevels = new ConcurrentHashMap<>();
+
+	private SourceMetadataCache()
+	{}
+
+	/**
+	 * Returns the transform of the source at the specified time-point and
+	 * level. The instance returned is shared and must not be modified.
+	 */
+	AffineTransform3D transform( final int timepoint, final int level, final Supplier< AffineTransform3D > compute )
+	{
+		return transforms.computeIfAbsent( key( timepoint, level ), k -> compute.get() );
+	}
+
+	/**
+	 * Returns the pixel sizes of the source at the specified time-point and
+	 * level. The array returned is shared and must not be modified.
+	 */
+	double[] pixelSize( final int timepoint, final int level, final Supplier< double[] > compute )
+	{
+		return pixelSizes.computeIfAbsent( key( timepoint, level ), k -> compute.get() );
+	}
+
+	/**
+	 * Returns the number of non-singleton dimensions of the source at the
+	 * specified time-point.
+	 */
+	int numDimensions( final int timepoint, final IntSupplier compute )
+	{
+		return numDimensions.computeIfAbsent( timepoint, k -> compute.getAsInt() );
+	}
+
+	/**
+	 * Returns the optimal resolution level to detect objects of the
+	 * specified size at the specified time-point.
+	 */
+	int optimalLevel( final int timepoint, final double size, final double minSizePixel, final IntSupplier compute )
+	{
+		return optimalLevels.computeIfAbsent( new LevelKey( timepoint, size, minSizePixel ), k -> compute.getAsInt() );
+	}
+
+	private static Long key( final int timepoint, final int level )
+	{
+		return Long.valueOf( ( ( long ) timepoint << 32 ) | ( level & 0xffffffffl ) );
+	}
+
+	private static final class LevelKey
+	{
+
+		private final int timepoint;
+
+		private final double size;
+
+		private final double minSizePixel;
+
+		private LevelKey( final int timepoint, final double size, final double minSizePixel )
+		{
+			this.timepoint = timepoint;
+			this.size = size;
+			this.minSizePixel = minSizePixel;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int result = timepoint;
+			result = 31 * result + Double.hashCode( size );
+			result = 31 * result + Double.hashCode( minSizePixel );
+			return result;
+		}
+
+		@Override
+		public boolean equals( final Object obj )
+		{
+			if ( !( obj instanceof LevelKey ) )
+				return false;
+			final LevelKey other = ( LevelKey ) obj;
+			return timepoint == other.timepoint
+					&& Double.compare( size, other.size ) == 0
+					&& Double.compare( minSizePixel, other.minSizePixel ) == 0;
+		}
+	}
+}
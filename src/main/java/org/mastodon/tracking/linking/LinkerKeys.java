@@ -33,6 +33,7 @@ import java.util.Map;
 
 import org.mastodon.feature.FeatureProjectionKey;
 import org.mastodon.tracking.detection.DetectorKeys;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPSolverType;
 
 public class LinkerKeys
 {
@@ -237,6 +238,78 @@ public class LinkerKeys
 	 */
 	public static final boolean DEFAULT_DO_LINK_SELECTION = false;
 
+	/**
+	 * Key for the parameter that specifies which solver is used for the linear
+	 * assignment problems. Expected values are {@link String}s, names of
+	 * {@link LAPSolverType} constants.
+	 */
+	public static final String KEY_LAP_SOLVER = "LAP_SOLVER";
+
+	/**
+	 * Default value for the {@link #KEY_LAP_SOLVER} parameter. The automatic
+	 * choice of {@link LAPSolverType#AUTO} may return an epsilon-optimal
+	 * assignment, so it must be selected explicitly.
+	 */
+	public static final String DEFAULT_LAP_SOLVER = LAPSolverType.LAPJV.name();
+
+	/**
+	 * Key for the parameter that specifies whether frame-to-frame linking is
+	 * warm-started with the dual potentials of the previous frame pair.
+	 * Expected values are {@link Boolean}s.
+	 */
+	public static final String KEY_LINKING_WARM_START = "LINKING_WARM_START";
+
+	/**
+	 * Default value for the {@link #KEY_LINKING_WARM_START} parameter.
+	 */
+	public static final boolean DEFAULT_LINKING_WARM_START = false;
+
+	/**
+	 * Key for the parameter that specifies whether the segment linking cost
+	 * matrix is stored in a compact form, with <code>float</code> costs. This
+	 * halves the memory used by the matrix, at the expense of precision.
+	 * Expected values are {@link Boolean}s.
+	 */
+	public static final String KEY_COMPACT_COST_MATRIX = "COMPACT_COST_MATRIX";
+
+	/**
+	 * Default value for the {@link #KEY_COMPACT_COST_MATRIX} parameter.
+	 */
+	public static final boolean DEFAULT_COMPACT_COST_MATRIX = false;
+
+	/**
+	 * Key for the parameter that specifies whether the segment linking cost
+	 * matrix is stored out of the Java heap, in memory-mapped temporary files.
+	 * This allows for linking segments when the cost matrix does not fit in
+	 * memory. If <code>true</code>, the {@link #KEY_COMPACT_COST_MATRIX}
+	 * parameter is ignored. Expected values are {@link Boolean}s.
+	 */
+	public static final String KEY_OUT_OF_CORE_COST_MATRIX = "OUT_OF_CORE_COST_MATRIX";
+
+	/**
+	 * Default value for the {@link #KEY_OUT_OF_CORE_COST_MATRIX} parameter.
+	 */
+	public static final boolean DEFAULT_OUT_OF_CORE_COST_MATRIX = false;
+
+	/**
+	 * Key for the parameter that specifies the size, in frames, of the time
+	 * windows over which segments are linked. Each window is extended by a
+	 * margin of {@link #KEY_GAP_CLOSING_MAX_FRAME_GAP} frames, and only the
+	 * links starting in the window are kept. If <code>0</code> or less, all
+	 * the segments are linked at once. Expected values are {@link Integer}s.
+	 * <p>
+	 * The alternative cost for track termination and initiation is computed
+	 * from the costs of each window rather than from the costs of the whole
+	 * movie, so linking in windows can give slightly different results than
+	 * linking all at once.
+	 */
+	public static final String KEY_SEGMENT_LINKING_WINDOW = "SEGMENT_LINKING_WINDOW";
+
+	/**
+	 * Default value for the {@link #KEY_SEGMENT_LINKING_WINDOW} parameter.
+	 */
+	public static final int DEFAULT_SEGMENT_LINKING_WINDOW = 0;
+
 	private LinkerKeys()
 	{}
 }
@@ -0,0 +1,157 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.scijava.Cancelable;
+import org.scijava.app.StatusService;
+
+/**
+ * A token shared by the steps of a long linking process, through which they
+ * report their progress and check whether the process has been canceled.
+ * <p>
+ * A token covers a range of the overall progress. A step reports its progress
+ * as a fraction of the range of the token it is given, and hands sub-ranges
+ * of it to its own sub-steps, with {@link #sub(double, double)}. Steps check
+ * {@link #isCanceled()} at regular intervals, and return early when it is
+ * <code>true</code>.
+ */
+public class LinkingProgress
+{
+
+	/**
+	 * A token that reports nothing and is never canceled.
+	 */
+	public static final LinkingProgress NONE = new LinkingProgress( null, null );
+
+	private static final int MAX_PROGRESS = 1000;
+
+	private final Cancelable cancelable;
+
+	private final StatusService statusService;
+
+	private final double from;
+
+	private final double to;
+
+	/** Last progress value shown, shared by a token and its sub-tokens. */
+	private final AtomicInteger shown;
+
+	/**
+	 * Creates a new token, covering the whole progress.
+	 *
+	 * @param cancelable
+	 *            the process to check for cancellation. May be
+	 *            <code>null</code>.
+	 * @param statusService
+	 *            the status service to report progress to. May be
+	 *            <code>null</code>.
+	 */
+	public LinkingProgress( final Cancelable cancelable, final StatusService statusService )
+	{
+		this( cancelable, statusService, 0., 1., new AtomicInteger( -1 ) );
+	}
+
+	private LinkingProgress( final Cancelable cancelable, final StatusService statusService, final double from, final double to, final AtomicInteger shown )
+	{
+		this.cancelable = cancelable;
+		this.statusService = statusService;
+		this.from = from;
+		this.to = to;
+		this.shown = shown;
+	}
+
+	/**
+	 * Returns whether the process has been canceled.
+	 *
+	 * @return <code>true</code> if the process has been canceled.
+	 */
+	public boolean isCanceled()
+	{
+		return null != cancelable && cancelable.isCanceled();
+	}
+
+	/**
+	 * Shows the specified status message.
+	 *
+	 * @param status
+	 *            the message.
+	 */
+	public void status( final String status )
+	{
+		if ( null != statusService )
+			statusService.showStatus( status );
+	}
+
+	/**
+	 * Reports the progress in the range of this token. The status service is
+	 * only notified when the overall progress changes by at least 0.1%, so
+	 * this method can be called often.
+	 *
+	 * @param fraction
+	 *            the fraction of the work done, in <code>[0, 1]</code>.
+	 */
+	public void progress( final double fraction )
+	{
+		if ( null == statusService )
+			return;
+		final double f = Math.max( 0., Math.min( 1., fraction ) );
+		final int value = ( int ) ( MAX_PROGRESS * ( from + f * ( to - from ) ) );
+		if ( shown.getAndSet( value ) != value )
+			statusService.showProgress( value, MAX_PROGRESS );
+	}
+
+	/**
+	 * Returns a token covering the specified part of the range of this token,
+	 * and checking the same process for cancellation.
+	 *
+	 * @param start
+	 *            the start of the part, as a fraction of this token range.
+	 * @param end
+	 *            the end of the part, as a fraction of this token range.
+	 * @return a new token.
+	 */
+	public LinkingProgress sub( final double start, final double end )
+	{
+		return new LinkingProgress( cancelable, statusService, from + start * ( to - from ), from + end * ( to - from ), shown );
+	}
+
+	/**
+	 * Returns a token that checks the same process for cancellation, but does
+	 * not report progress. This is for steps that run concurrently, whose
+	 * individual progress does not make sense overall.
+	 *
+	 * @return a new token.
+	 */
+	public LinkingProgress cancelOnly()
+	{
+		return new LinkingProgress( cancelable, null, from, to, shown );
+	}
+}
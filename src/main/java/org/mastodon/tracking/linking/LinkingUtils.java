@@ -37,15 +37,20 @@ import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_ALLOW_TRACK_MERGI
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_ALLOW_TRACK_SPLITTING;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_ALTERNATIVE_LINKING_COST_FACTOR;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_BLOCKING_VALUE;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_COMPACT_COST_MATRIX;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_CUTOFF_PERCENTILE;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_DO_LINK_SELECTION;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_GAP_CLOSING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_GAP_CLOSING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LAP_SOLVER;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LINKING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LINKING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LINKING_WARM_START;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_MERGING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_MERGING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_OUT_OF_CORE_COST_MATRIX;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_SEGMENT_LINKING_WINDOW;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_SPLITTING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_SPLITTING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_GAP_CLOSING;
@@ -53,15 +58,20 @@ import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_MERGING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_SPLITTING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_BLOCKING_VALUE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_COMPACT_COST_MATRIX;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_CUTOFF_PERCENTILE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_DO_LINK_SELECTION;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_WARM_START;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_OUT_OF_CORE_COST_MATRIX;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SEGMENT_LINKING_WINDOW;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_MAX_DISTANCE;
 
@@ -131,6 +141,7 @@ public class LinkingUtils
 		// Linking
 		settings.put( KEY_LINKING_MAX_DISTANCE, DEFAULT_LINKING_MAX_DISTANCE );
 		settings.put( KEY_LINKING_FEATURE_PENALTIES, new HashMap<>( DEFAULT_LINKING_FEATURE_PENALTIES ) );
+		settings.put( KEY_LINKING_WARM_START, DEFAULT_LINKING_WARM_START );
 		// Gap closing
 		settings.put( KEY_ALLOW_GAP_CLOSING, DEFAULT_ALLOW_GAP_CLOSING );
 		settings.put( KEY_GAP_CLOSING_MAX_FRAME_GAP, DEFAULT_GAP_CLOSING_MAX_FRAME_GAP );
@@ -148,6 +159,10 @@ public class LinkingUtils
 		settings.put( KEY_BLOCKING_VALUE, DEFAULT_BLOCKING_VALUE );
 		settings.put( KEY_ALTERNATIVE_LINKING_COST_FACTOR, DEFAULT_ALTERNATIVE_LINKING_COST_FACTOR );
 		settings.put( KEY_CUTOFF_PERCENTILE, DEFAULT_CUTOFF_PERCENTILE );
+		settings.put( KEY_LAP_SOLVER, DEFAULT_LAP_SOLVER );
+		settings.put( KEY_COMPACT_COST_MATRIX, DEFAULT_COMPACT_COST_MATRIX );
+		settings.put( KEY_OUT_OF_CORE_COST_MATRIX, DEFAULT_OUT_OF_CORE_COST_MATRIX );
+		settings.put( KEY_SEGMENT_LINKING_WINDOW, DEFAULT_SEGMENT_LINKING_WINDOW );
 		// return
 		return settings;
 	}
@@ -0,0 +1,236 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.graph;
+
+import java.util.Arrays;
+
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.GraphListener;
+import org.mastodon.graph.ListenableReadOnlyGraph;
+import org.mastodon.graph.Vertex;
+import org.mastodon.spatial.HasTimepoint;
+import org.mastodon.spatial.VertexPositionChangeProvider;
+import org.mastodon.spatial.VertexPositionListener;
+
+import gnu.trove.map.hash.TIntObjectHashMap;
+import net.imglib2.RealLocalizable;
+
+/**
+ * Records where a graph was edited since the last linking, so that linking can
+ * be redone only there.
+ * <p>
+ * For each time-point, the bounding box of the vertices added, removed or
+ * moved in this time-point is accumulated. Edge changes are ignored, they are
+ * made by the linkers themselves. If the graph is rebuilt, the whole graph is
+ * considered to be edited, see {@link #isAllDirty()}.
+ * <p>
+ * Instances listen to the graph as soon as they are created, until
+ * {@link #close()} is called.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+public class DirtyRegions< V extends Vertex< E > & RealLocalizable & HasTimepoint, E extends Edge< V > >
+		implements GraphListener< V, E >, VertexPositionListener< V >
+{
+
+	private final ListenableReadOnlyGraph< V, E > graph;
+
+	/**
+	 * Time-point to bounding box of the edits, as min x, y, z then max x, y,
+	 * z.
+	 */
+	private final TIntObjectHashMap< double[] > bounds;
+
+	private boolean allDirty;
+
+	/**
+	 * Creates a new instance and starts listening to the specified graph.
+	 *
+	 * @param graph
+	 *            the graph.
+	 */
+	public DirtyRegions( final ListenableReadOnlyGraph< V, E > graph )
+	{
+		this.graph = graph;
+		this.bounds = new TIntObjectHashMap<>();
+		graph.addGraphListener( this );
+		if ( graph instanceof VertexPositionChangeProvider )
+		{
+			@SuppressWarnings( "unchecked" )
+			final VertexPositionChangeProvider< V > p = ( VertexPositionChangeProvider< V > ) graph;
+			p.addVertexPositionListener( this );
+		}
+	}
+
+	/**
+	 * Stops listening to the graph.
+	 */
+	public void close()
+	{
+		graph.removeGraphListener( this );
+		if ( graph instanceof VertexPositionChangeProvider )
+		{
+			@SuppressWarnings( "unchecked" )
+			final VertexPositionChangeProvider< V > p = ( VertexPositionChangeProvider< V > ) graph;
+			p.removeVertexPositionListener( this );
+		}
+	}
+
+	/**
+	 * Forgets all the edits recorded so far, typically after linking.
+	 */
+	public synchronized void clear()
+	{
+		bounds.clear();
+		allDirty = false;
+	}
+
+	/**
+	 * Returns whether the graph was rebuilt since the last call to
+	 * {@link #clear()}, in which case the edits are not known and everything
+	 * must be linked again.
+	 *
+	 * @return <code>true</code> if the whole graph must be linked again.
+	 */
+	public synchronized boolean isAllDirty()
+	{
+		return allDirty;
+	}
+
+	/**
+	 * Returns whether no edit was recorded since the last call to
+	 * {@link #clear()}.
+	 *
+	 * @return <code>true</code> if there is nothing to link again.
+	 */
+	public synchronized boolean isEmpty()
+	{
+		return !allDirty && bounds.isEmpty();
+	}
+
+	/**
+	 * Returns the time-points where vertices were edited, in increasing order.
+	 *
+	 * @return a new array of time-points.
+	 */
+	public synchronized int[] getTimepoints()
+	{
+		final int[] timepoints = bounds.keys();
+		Arrays.sort( timepoints );
+		return timepoints;
+	}
+
+	/**
+	 * Returns whether the specified position is within the specified distance
+	 * of the bounding box of the edits made in a time-point of the specified
+	 * range.
+	 *
+	 * @param position
+	 *            the position.
+	 * @param fromTimepoint
+	 *            the first time-point of the range.
+	 * @param toTimepoint
+	 *            the last time-point of the range, inclusive.
+	 * @param margin
+	 *            the distance.
+	 * @return <code>true</code> if the position is near the edits.
+	 */
+	public synchronized boolean isNear( final RealLocalizable position, final int fromTimepoint, final int toTimepoint, final double margin )
+	{
+		for ( int t = fromTimepoint; t <= toTimepoint; t++ )
+		{
+			final double[] box = bounds.get( t );
+			if ( null == box )
+				continue;
+			boolean inside = true;
+			for ( int d = 0; d < Math.min( 3, position.numDimensions() ) && inside; d++ )
+			{
+				final double x = position.getDoublePosition( d );
+				inside = x >= box[ d ] - margin && x <= box[ 3 + d ] + margin;
+			}
+			if ( inside )
+				return true;
+		}
+		return false;
+	}
+
+	private synchronized void mark( final V vertex )
+	{
+		final int t = vertex.getTimepoint();
+		double[] box = bounds.get( t );
+		if ( null == box )
+		{
+			box = new double[] {
+					Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+					Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+			bounds.put( t, box );
+		}
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double x = d < vertex.numDimensions() ? vertex.getDoublePosition( d ) : 0.;
+			box[ d ] = Math.min( box[ d ], x );
+			box[ 3 + d ] = Math.max( box[ 3 + d ], x );
+		}
+	}
+
+	@Override
+	public void vertexAdded( final V vertex )
+	{
+		mark( vertex );
+	}
+
+	@Override
+	public void vertexRemoved( final V vertex )
+	{
+		mark( vertex );
+	}
+
+	@Override
+	public void vertexPositionChanged( final V vertex )
+	{
+		mark( vertex );
+	}
+
+	@Override
+	public void edgeAdded( final E edge )
+	{}
+
+	@Override
+	public void edgeRemoved( final E edge )
+	{}
+
+	@Override
+	public synchronized void graphRebuilt()
+	{
+		allDirty = true;
+	}
+}
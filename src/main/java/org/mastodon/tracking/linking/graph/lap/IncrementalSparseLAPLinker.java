@@ -0,0 +1,395 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.graph.lap;
+
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
+import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_GAP_CLOSING;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_MERGING;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_SPLITTING;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_MAX_DISTANCE;
+
+import java.util.Map;
+
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.collection.RefSet;
+import org.mastodon.graph.Edge;
+import org.mastodon.graph.ReadOnlyGraph;
+import org.mastodon.graph.Vertex;
+import org.mastodon.spatial.HasTimepoint;
+import org.mastodon.spatial.SpatioTemporalIndex;
+import org.mastodon.tracking.linking.graph.AbstractGraphParticleLinkerOp;
+import org.mastodon.tracking.linking.graph.DirtyRegions;
+import org.mastodon.tracking.linking.sequential.lap.SparseLAPFrameToFrameLinker;
+import org.mastodon.tracking.linking.sequential.lap.costmatrix.GraphSegmentSplitter;
+import org.scijava.Cancelable;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
+
+import gnu.trove.list.array.TIntArrayList;
+import net.imagej.ops.special.inplace.Inplaces;
+import net.imglib2.RealLocalizable;
+import net.imglib2.algorithm.Benchmark;
+
+/**
+ * Links again the parts of a graph that were edited since it was last linked
+ * with the {@link SparseLAPLinker}, keeping all the other links.
+ * <p>
+ * The edits are given by a {@link DirtyRegions} instance. Each time-point
+ * where vertices were edited makes the frame pairs it belongs to dirty. The
+ * links of these pairs, and the gap-closing links that start or end in their
+ * frames, must be removed beforehand with the ones returned by
+ * {@link #linksToRemove(ReadOnlyGraph, SpatioTemporalIndex, DirtyRegions, Map)}.
+ * Gap-closing links that span over dirty frames are removed too, if their
+ * ends are near the edits.
+ * <p>
+ * Then each run of consecutive dirty frame pairs is linked again
+ * frame-to-frame. Finally, the segment extremities that could be linked to
+ * these frames, within the max frame gap, are linked with the
+ * {@link SparseLAPSegmentLinker}: the segment ends and starts, the middles
+ * that can split into these starts, and the middles these ends can merge
+ * into. The alternative costs of this step are
+ * computed over these extremities only, so the result can slightly differ
+ * from the one of a full linking.
+ * <p>
+ * The settings are the ones of the {@link SparseLAPLinker}.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
+@Plugin( type = IncrementalSparseLAPLinker.class )
+public class IncrementalSparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocalizable, E extends Edge< V > >
+		extends AbstractGraphParticleLinkerOp< V, E >
+		implements Benchmark
+{
+	private final static String BASE_ERROR_MESSAGE = "[IncrementalSparseLAPLinker] ";
+
+	@Parameter
+	private ThreadService threadService;
+
+	private DirtyRegions< V, E > dirtyRegions;
+
+	private long processingTime;
+
+	private Cancelable currentCancelable;
+
+	/**
+	 * Sets the edits to link again.
+	 *
+	 * @param dirtyRegions
+	 *            the edits.
+	 */
+	public void setDirtyRegions( final DirtyRegions< V, E > dirtyRegions )
+	{
+		this.dirtyRegions = dirtyRegions;
+	}
+
+	@Override
+	public void mutate1( final ReadOnlyGraph< V, E > graph, final SpatioTemporalIndex< V > spots )
+	{
+		ok = false;
+
+		// Check parameters
+		final StringBuilder errorHolder = new StringBuilder();
+		if ( !SparseLAPLinker.checkSettingsValidity( settings, errorHolder ) )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Incorrect settings map:\n" + errorHolder.toString();
+			return;
+		}
+		if ( null == dirtyRegions )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The dirty regions are null.";
+			return;
+		}
+
+		final long start = System.currentTimeMillis();
+		final int[] pairs = dirtyPairs( dirtyRegions, settings );
+		final int frameGap = frameGap( settings );
+
+		/*
+		 * 1. Frame to frame linking, for each run of consecutive dirty pairs.
+		 */
+
+		final TIntArrayList runs = new TIntArrayList();
+		for ( int i = 0; i < pairs.length; i++ )
+		{
+			if ( i == 0 || pairs[ i ] > pairs[ i - 1 ] + 1 )
+				runs.add( pairs[ i ] );
+			if ( i == pairs.length - 1 || pairs[ i + 1 ] > pairs[ i ] + 1 )
+				runs.add( pairs[ i ] + 1 );
+		}
+
+		for ( int r = 0; r < runs.size(); r += 2 )
+		{
+			if ( isCanceled() )
+				break;
+
+			statusService.showStatus( "Linking frames " + runs.get( r ) + " to " + runs.get( r + 1 ) + "..." );
+			final Map< String, Object > ftfSettings = SparseLAPLinker.frameToFrameSettings( settings, runs.get( r ), runs.get( r + 1 ) );
+			@SuppressWarnings( "unchecked" )
+			final SparseLAPFrameToFrameLinker< V > frameToFrameLinker = ( SparseLAPFrameToFrameLinker< V > ) Inplaces.binary1( ops(),
+					SparseLAPFrameToFrameLinker.class,
+					edgeCreator, spots,
+					ftfSettings, featureModel, spotComparator, graph.vertices() );
+			this.currentCancelable = frameToFrameLinker;
+			frameToFrameLinker.mutate1( edgeCreator, spots );
+			if ( !frameToFrameLinker.isSuccessful() )
+			{
+				errorMessage = frameToFrameLinker.getErrorMessage();
+				return;
+			}
+		}
+
+		/*
+		 * 2. Gap-closing, merging and splitting of the segment extremities
+		 * that can reach the dirty frames.
+		 */
+
+		final boolean gapClosing = ( Boolean ) settings.get( KEY_ALLOW_GAP_CLOSING );
+		final boolean merging = ( Boolean ) settings.get( KEY_ALLOW_TRACK_MERGING );
+		final boolean splitting = ( Boolean ) settings.get( KEY_ALLOW_TRACK_SPLITTING );
+		if ( !runs.isEmpty() && ( gapClosing || merging || splitting ) && !isCanceled() )
+		{
+			final GraphSegmentSplitter< V, E > splitter = new GraphSegmentSplitter<>( graph, merging || splitting, threadService.getExecutorService() );
+			// Ends can be linked to a start up to the frame gap later.
+			final RefList< V > ends = inRuns( graph, splitter.getSegmentEnds(), runs, -frameGap, 0 );
+			final RefList< V > starts = inRuns( graph, splitter.getSegmentStarts(), runs, 0, frameGap );
+			// Middles split into these starts, and ends merge into middles, in the next frame.
+			final RefList< V > middles = splitter.getSegmentMiddlePoints();
+			final RefList< V > splittingMiddles = inRuns( graph, middles, runs, -1, frameGap - 1 );
+			final RefList< V > mergingMiddles = inRuns( graph, middles, runs, -frameGap + 1, 1 );
+
+			@SuppressWarnings( { "unchecked", "rawtypes" } )
+			final SparseLAPSegmentLinker< V, E > segmentLinker = ( SparseLAPSegmentLinker ) Inplaces.binary1( ops(), SparseLAPSegmentLinker.class,
+					graph, spots,
+					SparseLAPLinker.segmentLinkingSettings( settings ), featureModel, spotComparator, edgeCreator );
+			segmentLinker.setSegments( ends, starts, splittingMiddles, mergingMiddles );
+			this.currentCancelable = segmentLinker;
+			segmentLinker.mutate1( graph, spots );
+			if ( !segmentLinker.isSuccessful() )
+			{
+				errorMessage = segmentLinker.getErrorMessage();
+				return;
+			}
+		}
+
+		currentCancelable = null;
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		statusService.clearStatus();
+		ok = true;
+	}
+
+	/**
+	 * Returns the links that must be removed before linking the specified
+	 * edits again. These are:
+	 * <ul>
+	 * <li>the links of the dirty frame pairs;</li>
+	 * <li>the links longer than one frame that start or end in a frame of
+	 * these pairs;</li>
+	 * <li>the links longer than one frame that span over a dirty frame pair,
+	 * and whose ends are both near the edits.</li>
+	 * </ul>
+	 * The graph must not be modified while this method runs.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param spots
+	 *            the index of the vertices to link.
+	 * @param dirtyRegions
+	 *            the edits.
+	 * @param settings
+	 *            the settings of the linking, as for the
+	 *            {@link SparseLAPLinker}.
+	 * @param <V>
+	 *            the type of vertices in the graph.
+	 * @param <E>
+	 *            the type of edges in the graph.
+	 * @return a new list of links.
+	 */
+	public static < V extends Vertex< E > & HasTimepoint & RealLocalizable, E extends Edge< V > > RefList< E > linksToRemove(
+			final ReadOnlyGraph< V, E > graph,
+			final SpatioTemporalIndex< V > spots,
+			final DirtyRegions< V, E > dirtyRegions,
+			final Map< String, Object > settings )
+	{
+		final int[] pairs = dirtyPairs( dirtyRegions, settings );
+		final int frameGap = frameGap( settings );
+		final double margin = margin( settings );
+
+		final RefSet< E > links = RefCollections.createRefSet( graph.edges() );
+		final V vref = graph.vertexRef();
+		spots.readLock().lock();
+		try
+		{
+			for ( final int t : pairs )
+			{
+				// Links of the pair, and longer links from or to its frames.
+				for ( final V spot : spots.getSpatialIndex( t ) )
+					for ( final E link : spot.outgoingEdges() )
+						links.add( link );
+				for ( final V spot : spots.getSpatialIndex( t + 1 ) )
+				{
+					for ( final E link : spot.incomingEdges() )
+						links.add( link );
+					for ( final E link : spot.outgoingEdges() )
+						if ( link.getTarget( vref ).getTimepoint() > t + 2 )
+							links.add( link );
+				}
+				for ( final V spot : spots.getSpatialIndex( t ) )
+					for ( final E link : spot.incomingEdges() )
+						if ( link.getSource( vref ).getTimepoint() < t - 1 )
+							links.add( link );
+
+				// Longer links over the pair, near the edits.
+				for ( int ts = t + 1 - frameGap; ts < t; ts++ )
+				{
+					for ( final V spot : spots.getSpatialIndex( ts ) )
+					{
+						if ( !dirtyRegions.isNear( spot, t, t + 1, margin ) )
+							continue;
+						for ( final E link : spot.outgoingEdges() )
+						{
+							final V target = link.getTarget( vref );
+							if ( target.getTimepoint() > t + 1 && dirtyRegions.isNear( target, t, t + 1, margin ) )
+								links.add( link );
+						}
+					}
+				}
+			}
+		}
+		finally
+		{
+			spots.readLock().unlock();
+			graph.releaseRef( vref );
+		}
+
+		final RefList< E > list = RefCollections.createRefList( graph.edges() );
+		list.addAll( links );
+		return list;
+	}
+
+	/**
+	 * Returns the first frame of the dirty frame pairs, in increasing order.
+	 * A pair is dirty if one of its frames was edited, and if it is in the
+	 * time-point range of the settings.
+	 */
+	private static int[] dirtyPairs( final DirtyRegions< ?, ? > dirtyRegions, final Map< String, Object > settings )
+	{
+		final int minTimepoint = ( int ) settings.get( KEY_MIN_TIMEPOINT );
+		final int maxTimepoint = ( int ) settings.get( KEY_MAX_TIMEPOINT );
+		final TIntArrayList pairs = new TIntArrayList();
+		for ( final int t : dirtyRegions.getTimepoints() )
+			for ( int p = t - 1; p <= t; p++ )
+				if ( p >= minTimepoint && p < maxTimepoint && ( pairs.isEmpty() || p > pairs.get( pairs.size() - 1 ) ) )
+					pairs.add( p );
+		return pairs.toArray();
+	}
+
+	private static int frameGap( final Map< String, Object > settings )
+	{
+		if ( !( Boolean ) settings.get( KEY_ALLOW_GAP_CLOSING ) )
+			return 1;
+		return Math.max( 1, ( Integer ) settings.get( KEY_GAP_CLOSING_MAX_FRAME_GAP ) );
+	}
+
+	/**
+	 * Returns how far from the edits a link can change: a frame-to-frame
+	 * link, then a segment link.
+	 */
+	private static double margin( final Map< String, Object > settings )
+	{
+		double segmentDistance = 0.;
+		if ( ( Boolean ) settings.get( KEY_ALLOW_GAP_CLOSING ) )
+			segmentDistance = Math.max( segmentDistance, ( Double ) settings.get( KEY_GAP_CLOSING_MAX_DISTANCE ) );
+		if ( ( Boolean ) settings.get( KEY_ALLOW_TRACK_SPLITTING ) )
+			segmentDistance = Math.max( segmentDistance, ( Double ) settings.get( KEY_SPLITTING_MAX_DISTANCE ) );
+		if ( ( Boolean ) settings.get( KEY_ALLOW_TRACK_MERGING ) )
+			segmentDistance = Math.max( segmentDistance, ( Double ) settings.get( KEY_MERGING_MAX_DISTANCE ) );
+		return ( Double ) settings.get( KEY_LINKING_MAX_DISTANCE ) + segmentDistance;
+	}
+
+	/**
+	 * Returns the vertices whose time-point is in one of the specified runs,
+	 * given as pairs of first and last frame, extended by the specified
+	 * offsets.
+	 */
+	private static < V extends Vertex< E > & HasTimepoint, E extends Edge< V > > RefList< V > inRuns( final ReadOnlyGraph< V, E > graph, final RefList< V > vertices,
+			final TIntArrayList runs, final int before, final int after )
+	{
+		final RefList< V > list = RefCollections.createRefList( graph.vertices() );
+		for ( final V v : vertices )
+		{
+			final int t = v.getTimepoint();
+			for ( int r = 0; r < runs.size(); r += 2 )
+			{
+				if ( t >= runs.get( r ) + before && t <= runs.get( r + 1 ) + after )
+				{
+					list.add( v );
+					break;
+				}
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	@Override
+	public boolean isSuccessful()
+	{
+		return ok;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public void cancel( final String reason )
+	{
+		super.cancel( reason );
+		if ( null != currentCancelable )
+			currentCancelable.cancel( reason );
+	}
+}
@@ -35,15 +35,20 @@ import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_MERGING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_SPLITTING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_BLOCKING_VALUE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_COMPACT_COST_MATRIX;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_CUTOFF_PERCENTILE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_DO_LINK_SELECTION;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_WARM_START;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_OUT_OF_CORE_COST_MATRIX;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SEGMENT_LINKING_WINDOW;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkingUtils.checkFeatureMap;
@@ -146,12 +151,7 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		 */
 
 		// Prepare settings object
-		final Map< String, Object > ftfSettings = new HashMap< String, Object >();
-		ftfSettings.put( KEY_MIN_TIMEPOINT, settings.get( KEY_MIN_TIMEPOINT ) );
-		ftfSettings.put( KEY_MAX_TIMEPOINT, settings.get( KEY_MAX_TIMEPOINT ) );
-		ftfSettings.put( KEY_LINKING_MAX_DISTANCE, settings.get( KEY_LINKING_MAX_DISTANCE ) );
-		ftfSettings.put( KEY_ALTERNATIVE_LINKING_COST_FACTOR, settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR ) );
-		ftfSettings.put( KEY_LINKING_FEATURE_PENALTIES, settings.get( KEY_LINKING_FEATURE_PENALTIES ) );
+		final Map< String, Object > ftfSettings = frameToFrameSettings( settings, minTimepoint, maxTimepoint );
 
 		@SuppressWarnings( "unchecked" )
 		final SparseLAPFrameToFrameLinker< V > frameToFrameLinker = ( SparseLAPFrameToFrameLinker< V > ) Inplaces.binary1( ops(),
@@ -172,23 +172,7 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		 */
 
 		// Prepare settings object
-		final Map< String, Object > slSettings = new HashMap< String, Object >();
-
-		slSettings.put( KEY_ALLOW_GAP_CLOSING, settings.get( KEY_ALLOW_GAP_CLOSING ) );
-		slSettings.put( KEY_GAP_CLOSING_FEATURE_PENALTIES, settings.get( KEY_GAP_CLOSING_FEATURE_PENALTIES ) );
-		slSettings.put( KEY_GAP_CLOSING_MAX_DISTANCE, settings.get( KEY_GAP_CLOSING_MAX_DISTANCE ) );
-		slSettings.put( KEY_GAP_CLOSING_MAX_FRAME_GAP, settings.get( KEY_GAP_CLOSING_MAX_FRAME_GAP ) );
-
-		slSettings.put( KEY_ALLOW_TRACK_SPLITTING, settings.get( KEY_ALLOW_TRACK_SPLITTING ) );
-		slSettings.put( KEY_SPLITTING_FEATURE_PENALTIES, settings.get( KEY_SPLITTING_FEATURE_PENALTIES ) );
-		slSettings.put( KEY_SPLITTING_MAX_DISTANCE, settings.get( KEY_SPLITTING_MAX_DISTANCE ) );
-
-		slSettings.put( KEY_ALLOW_TRACK_MERGING, settings.get( KEY_ALLOW_TRACK_MERGING ) );
-		slSettings.put( KEY_MERGING_FEATURE_PENALTIES, settings.get( KEY_MERGING_FEATURE_PENALTIES ) );
-		slSettings.put( KEY_MERGING_MAX_DISTANCE, settings.get( KEY_MERGING_MAX_DISTANCE ) );
-
-		slSettings.put( KEY_ALTERNATIVE_LINKING_COST_FACTOR, settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR ) );
-		slSettings.put( KEY_CUTOFF_PERCENTILE, settings.get( KEY_CUTOFF_PERCENTILE ) );
+		final Map< String, Object > slSettings = segmentLinkingSettings( settings );
 
 		// Solve.
 
@@ -215,7 +199,55 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		ok = true;
 	}
 
-	private static final boolean checkSettingsValidity( final Map< String, Object > settings, final StringBuilder str )
+	/**
+	 * Returns the settings of the frame-to-frame linking step, for the
+	 * specified time-point range, taken from the settings of the whole
+	 * linking.
+	 */
+	static Map< String, Object > frameToFrameSettings( final Map< String, Object > settings, final int minTimepoint, final int maxTimepoint )
+	{
+		final Map< String, Object > ftfSettings = new HashMap< String, Object >();
+		ftfSettings.put( KEY_MIN_TIMEPOINT, minTimepoint );
+		ftfSettings.put( KEY_MAX_TIMEPOINT, maxTimepoint );
+		ftfSettings.put( KEY_LINKING_MAX_DISTANCE, settings.get( KEY_LINKING_MAX_DISTANCE ) );
+		ftfSettings.put( KEY_ALTERNATIVE_LINKING_COST_FACTOR, settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR ) );
+		ftfSettings.put( KEY_LINKING_FEATURE_PENALTIES, settings.get( KEY_LINKING_FEATURE_PENALTIES ) );
+		ftfSettings.put( KEY_LAP_SOLVER, settings.get( KEY_LAP_SOLVER ) );
+		ftfSettings.put( KEY_LINKING_WARM_START, settings.get( KEY_LINKING_WARM_START ) );
+		return ftfSettings;
+	}
+
+	/**
+	 * Returns the settings of the segment linking step, taken from the
+	 * settings of the whole linking.
+	 */
+	static Map< String, Object > segmentLinkingSettings( final Map< String, Object > settings )
+	{
+		final Map< String, Object > slSettings = new HashMap< String, Object >();
+
+		slSettings.put( KEY_ALLOW_GAP_CLOSING, settings.get( KEY_ALLOW_GAP_CLOSING ) );
+		slSettings.put( KEY_GAP_CLOSING_FEATURE_PENALTIES, settings.get( KEY_GAP_CLOSING_FEATURE_PENALTIES ) );
+		slSettings.put( KEY_GAP_CLOSING_MAX_DISTANCE, settings.get( KEY_GAP_CLOSING_MAX_DISTANCE ) );
+		slSettings.put( KEY_GAP_CLOSING_MAX_FRAME_GAP, settings.get( KEY_GAP_CLOSING_MAX_FRAME_GAP ) );
+
+		slSettings.put( KEY_ALLOW_TRACK_SPLITTING, settings.get( KEY_ALLOW_TRACK_SPLITTING ) );
+		slSettings.put( KEY_SPLITTING_FEATURE_PENALTIES, settings.get( KEY_SPLITTING_FEATURE_PENALTIES ) );
+		slSettings.put( KEY_SPLITTING_MAX_DISTANCE, settings.get( KEY_SPLITTING_MAX_DISTANCE ) );
+
+		slSettings.put( KEY_ALLOW_TRACK_MERGING, settings.get( KEY_ALLOW_TRACK_MERGING ) );
+		slSettings.put( KEY_MERGING_FEATURE_PENALTIES, settings.get( KEY_MERGING_FEATURE_PENALTIES ) );
+		slSettings.put( KEY_MERGING_MAX_DISTANCE, settings.get( KEY_MERGING_MAX_DISTANCE ) );
+
+		slSettings.put( KEY_ALTERNATIVE_LINKING_COST_FACTOR, settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR ) );
+		slSettings.put( KEY_CUTOFF_PERCENTILE, settings.get( KEY_CUTOFF_PERCENTILE ) );
+		slSettings.put( KEY_LAP_SOLVER, settings.get( KEY_LAP_SOLVER ) );
+		slSettings.put( KEY_COMPACT_COST_MATRIX, settings.get( KEY_COMPACT_COST_MATRIX ) );
+		slSettings.put( KEY_OUT_OF_CORE_COST_MATRIX, settings.get( KEY_OUT_OF_CORE_COST_MATRIX ) );
+		slSettings.put( KEY_SEGMENT_LINKING_WINDOW, settings.get( KEY_SEGMENT_LINKING_WINDOW ) );
+		return slSettings;
+	}
+
+	static final boolean checkSettingsValidity( final Map< String, Object > settings, final StringBuilder str )
 	{
 		if ( null == settings )
 		{
@@ -245,6 +277,16 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		// Others
 		ok = ok & checkParameter( settings, KEY_CUTOFF_PERCENTILE, Double.class, str );
 		ok = ok & checkParameter( settings, KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.class, str );
+		if ( null != settings.get( KEY_LAP_SOLVER ) )
+			ok = ok & checkParameter( settings, KEY_LAP_SOLVER, String.class, str );
+		if ( null != settings.get( KEY_LINKING_WARM_START ) )
+			ok = ok & checkParameter( settings, KEY_LINKING_WARM_START, Boolean.class, str );
+		if ( null != settings.get( KEY_COMPACT_COST_MATRIX ) )
+			ok = ok & checkParameter( settings, KEY_COMPACT_COST_MATRIX, Boolean.class, str );
+		if ( null != settings.get( KEY_OUT_OF_CORE_COST_MATRIX ) )
+			ok = ok & checkParameter( settings, KEY_OUT_OF_CORE_COST_MATRIX, Boolean.class, str );
+		if ( null != settings.get( KEY_SEGMENT_LINKING_WINDOW ) )
+			ok = ok & checkParameter( settings, KEY_SEGMENT_LINKING_WINDOW, Integer.class, str );
 
 		// Check keys
 		final List< String > mandatoryKeys = new ArrayList< String >();
@@ -267,6 +309,11 @@ public class SparseLAPLinker< V extends Vertex< E > & HasTimepoint & RealLocaliz
 		optionalKeys.add( KEY_MERGING_FEATURE_PENALTIES );
 		optionalKeys.add( KEY_BLOCKING_VALUE );
 		optionalKeys.add( KEY_DO_LINK_SELECTION );
+		optionalKeys.add( KEY_LAP_SOLVER );
+		optionalKeys.add( KEY_LINKING_WARM_START );
+		optionalKeys.add( KEY_COMPACT_COST_MATRIX );
+		optionalKeys.add( KEY_OUT_OF_CORE_COST_MATRIX );
+		optionalKeys.add( KEY_SEGMENT_LINKING_WINDOW );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, str );
 
 		// Check min & max time-point
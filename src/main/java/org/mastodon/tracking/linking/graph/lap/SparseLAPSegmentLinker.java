@@ -28,30 +28,45 @@
  */
 package org.mastodon.tracking.linking.graph.lap;
 
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LAP_SOLVER;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_SEGMENT_LINKING_WINDOW;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_GAP_CLOSING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_MERGING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_SPLITTING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SEGMENT_LINKING_WINDOW;
 import static org.mastodon.tracking.linking.LinkingUtils.checkFeatureMap;
 import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
 
 import java.util.Map;
 
+import org.mastodon.collection.RefCollection;
+import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefDoubleMap;
+import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefRefMap;
+import org.mastodon.collection.RefSet;
 import org.mastodon.graph.Edge;
 import org.mastodon.graph.ReadOnlyGraph;
 import org.mastodon.graph.Vertex;
 import org.mastodon.spatial.HasTimepoint;
 import org.mastodon.spatial.SpatioTemporalIndex;
+import org.mastodon.tracking.linking.LinkingProgress;
 import org.mastodon.tracking.linking.graph.AbstractGraphParticleLinkerOp;
+import org.mastodon.tracking.linking.sequential.lap.costmatrix.GraphSegmentSplitter;
 import org.mastodon.tracking.linking.sequential.lap.costmatrix.JaqamanSegmentCostMatrixCreator;
 import org.mastodon.tracking.linking.sequential.lap.linker.JaqamanLinker;
-import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPCostMatrix;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPSolverType;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import net.imagej.ops.special.function.Functions;
 import net.imglib2.RealLocalizable;
 import net.imglib2.algorithm.Benchmark;
@@ -86,6 +101,20 @@ import net.imglib2.algorithm.Benchmark;
  * <p>
  * The class itself uses a sparse version of the cost matrix and a solver that
  * can exploit it. Therefore it is optimized for memory usage rather than speed.
+ * <p>
+ * For long movies, the segments can be linked over successive time windows
+ * instead of all at once, with the
+ * {@link org.mastodon.tracking.linking.LinkerKeys#KEY_SEGMENT_LINKING_WINDOW}
+ * setting. Each window extends past its end by the max frame gap, so that
+ * the links starting in the window are decided with all their candidates,
+ * but only these links are created. The cost matrix size then depends on the
+ * window size rather than on the movie length. Unlike linking all at once,
+ * the alternative cost is computed from the costs of each window, so it
+ * varies from one window to the next.
+ * <p>
+ * The linking can be canceled while the cost matrices are created and while
+ * they are solved. The links already created, in the windows completed before
+ * cancellation, are kept.
  *
  * @param <V>
  *            the type of vertices in the graph.
@@ -100,8 +129,41 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 
 	private static final String BASE_ERROR_MESSAGE = "[SparseLAPSegmentLinker] ";
 
+	@Parameter
+	private ThreadService threadService;
+
 	private long processingTime;
 
+	private RefList< V > givenEnds;
+
+	private RefList< V > givenStarts;
+
+	private RefList< V > givenSplittingMiddles;
+
+	private RefList< V > givenMergingMiddles;
+
+	/**
+	 * Restricts the linking to the specified segment extremities, instead of
+	 * the extremities of all the segments of the graph. The segment linking
+	 * window is then ignored, and these extremities are linked at once.
+	 *
+	 * @param ends
+	 *            the segment ends, sources for gap-closing and merging.
+	 * @param starts
+	 *            the segment starts, targets for gap-closing and splitting.
+	 * @param splittingMiddles
+	 *            the segment middles, sources for splitting.
+	 * @param mergingMiddles
+	 *            the segment middles, targets for merging.
+	 */
+	public void setSegments( final RefList< V > ends, final RefList< V > starts, final RefList< V > splittingMiddles, final RefList< V > mergingMiddles )
+	{
+		this.givenEnds = ends;
+		this.givenStarts = starts;
+		this.givenSplittingMiddles = splittingMiddles;
+		this.givenMergingMiddles = mergingMiddles;
+	}
+
 	@Override
 	public void mutate1( final ReadOnlyGraph< V, E > graph, final SpatioTemporalIndex< V > spots )
 	{
@@ -130,31 +192,148 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 		 */
 
 		statusService.showStatus( "Creating the segment linking cost matrix..." );
+		final LinkingProgress progress = new LinkingProgress( this, statusService );
 
-		/*
-		 * TODO Make these processes cancelable? The cost matrix calculation can
-		 * take a long time, and its solving too. It maybe makes sense to check
-		 * whether the user canceled in between to qui calculation early. But
-		 * then we have to make the JaqamanLinker cancelable.
-		 */
+		final int window = null == settings.get( KEY_SEGMENT_LINKING_WINDOW )
+				? DEFAULT_SEGMENT_LINKING_WINDOW
+				: ( Integer ) settings.get( KEY_SEGMENT_LINKING_WINDOW );
+		if ( window > 0 && null == givenEnds )
+		{
+			if ( !linkInWindows( graph, window, progress ) )
+				return;
+		}
+		else
+		{
+			final JaqamanSegmentCostMatrixCreator< V, E > costMatrixCreator = createCostMatrixCreator( graph );
+			if ( null != givenEnds )
+				costMatrixCreator.setSegments( givenEnds, givenStarts, givenSplittingMiddles, givenMergingMiddles );
+			final JaqamanLinker< V, V > linker = solve( graph, costMatrixCreator, progress.sub( 0., 0.95 ) );
+			if ( null == linker && !isCanceled() )
+				return;
+
+			/*
+			 * Create links in graph.
+			 */
+
+			if ( null != linker )
+			{
+				progress.progress( 0.95 );
+				statusService.showStatus( "Creating links..." );
+				createLinks( graph, linker, Integer.MIN_VALUE, Integer.MAX_VALUE, null );
+			}
+		}
+
+		statusService.clearStatus();
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		ok = true;
+	}
+
+	/**
+	 * Links segments over successive time windows. Each window is made of a
+	 * core of <code>window</code> frames, extended by a margin of the max
+	 * frame gap, and only the links whose source is in the core are created.
+	 * The segments are found once, and a target linked in a window is
+	 * excluded from the next ones. The size of the cost matrices only depends
+	 * on the window size.
+	 * <p>
+	 * Each window computes its own alternative cost, as a percentile of its
+	 * own costs. Computing it over the whole movie would require evaluating
+	 * all the costs once more before the first window, which is what linking
+	 * in windows avoids. The alternative cost therefore follows local changes
+	 * in the cost distribution, and the result may differ slightly from
+	 * linking all the segments at once. Returns <code>false</code> if linking a window
+	 * fails, but <code>true</code> if it is canceled, keeping the links of
+	 * the previous windows.
+	 */
+	private boolean linkInWindows( final ReadOnlyGraph< V, E > graph, final int window, final LinkingProgress progress )
+	{
+		final boolean mergingOrSplitting = ( Boolean ) settings.get( KEY_ALLOW_TRACK_MERGING ) || ( Boolean ) settings.get( KEY_ALLOW_TRACK_SPLITTING );
+		final int margin = Math.max( 1, ( Integer ) settings.get( KEY_GAP_CLOSING_MAX_FRAME_GAP ) );
+
+		final GraphSegmentSplitter< V, E > splitter = new GraphSegmentSplitter<>( graph, mergingOrSplitting, threadService.getExecutorService() );
+		final TIntObjectHashMap< RefList< V > > ends = byTimepoint( graph.vertices(), splitter.getSegmentEnds() );
+		final TIntObjectHashMap< RefList< V > > starts = byTimepoint( graph.vertices(), splitter.getSegmentStarts() );
+		final TIntObjectHashMap< RefList< V > > middles = byTimepoint( graph.vertices(), splitter.getSegmentMiddlePoints() );
+
+		final TIntArrayList timepoints = new TIntArrayList( ends.keys() );
+		timepoints.addAll( starts.keys() );
+		timepoints.addAll( middles.keys() );
+		final int minTimepoint = timepoints.isEmpty() ? 0 : timepoints.min();
+		final int nWindows = timepoints.isEmpty() ? 0 : ( timepoints.max() - minTimepoint ) / window + 1;
+		RefSet< V > linkedTargets = RefCollections.createRefSet( graph.vertices() );
+		for ( int w = 0; w < nWindows; w++ )
+		{
+			if ( isCanceled() )
+				return true;
+
+			final int coreStart = minTimepoint + w * window;
+			final int coreEnd = coreStart + window - 1;
+			final int windowEnd = coreEnd + margin;
+			statusService.showStatus( "Linking segments in frames " + coreStart + " to " + coreEnd + "..." );
 
+			final JaqamanSegmentCostMatrixCreator< V, E > costMatrixCreator = createCostMatrixCreator( graph );
+			costMatrixCreator.setSegments(
+					collect( graph.vertices(), ends, coreStart, windowEnd ),
+					collect( graph.vertices(), starts, coreStart, windowEnd ),
+					collect( graph.vertices(), middles, coreStart, windowEnd ) );
+			costMatrixCreator.setExcludedTargets( linkedTargets );
+			final JaqamanLinker< V, V > linker = solve( graph, costMatrixCreator, progress.sub( ( double ) w / nWindows, ( w + 1. ) / nWindows ) );
+			if ( null == linker )
+				return isCanceled();
+
+			createLinks( graph, linker, coreStart, coreEnd, linkedTargets );
+
+			// Targets before the next window cannot be linked anymore.
+			final RefSet< V > remaining = RefCollections.createRefSet( graph.vertices() );
+			for ( final V target : linkedTargets )
+				if ( target.getTimepoint() > coreEnd )
+					remaining.add( target );
+			linkedTargets = remaining;
+
+			progress.progress( ( w + 1. ) / nWindows );
+		}
+		return true;
+	}
+
+	private JaqamanSegmentCostMatrixCreator< V, E > createCostMatrixCreator( final ReadOnlyGraph< V, E > graph )
+	{
 		@SuppressWarnings( "unchecked" )
 		final JaqamanSegmentCostMatrixCreator< V, E > costMatrixCreator =
-				( JaqamanSegmentCostMatrixCreator< V, E > ) Functions.nullary( ops(), JaqamanSegmentCostMatrixCreator.class, SparseCostMatrix.class,
+				( JaqamanSegmentCostMatrixCreator< V, E > ) Functions.nullary( ops(), JaqamanSegmentCostMatrixCreator.class, LAPCostMatrix.class,
 						graph, featureModel, settings, spotComparator );
+		costMatrixCreator.setExecutorService( threadService.getExecutorService() );
+		return costMatrixCreator;
+	}
+
+	/**
+	 * Solves the segment linking problem, reporting progress to the specified
+	 * token. Creating the cost matrix is given the first part of the token
+	 * range, and solving it the rest. Returns <code>null</code> and sets the
+	 * error message if it fails or is canceled.
+	 */
+	private JaqamanLinker< V, V > solve( final ReadOnlyGraph< V, E > graph, final JaqamanSegmentCostMatrixCreator< V, E > costMatrixCreator, final LinkingProgress progress )
+	{
+		costMatrixCreator.setProgress( progress.sub( 0., 0.6 ) );
 		final JaqamanLinker< V, V > linker = new JaqamanLinker<>( costMatrixCreator, graph.vertices(), graph.vertices() );
+		linker.setExecutorService( threadService.getExecutorService() );
+		linker.setProgress( progress.sub( 0.6, 1. ) );
+		linker.setSolverType( LAPSolverType.getOrDefault( ( String ) settings.get( KEY_LAP_SOLVER ), LAPSolverType.valueOf( DEFAULT_LAP_SOLVER ) ) );
 		if ( !linker.checkInput() || !linker.process() )
 		{
 			errorMessage = linker.getErrorMessage();
-			return;
+			return null;
 		}
+		return linker;
+	}
 
-		/*
-		 * Create links in graph.
-		 */
-
-		statusService.showProgress( 9, 10 );
-		statusService.showStatus( "Creating links..." );
+	/**
+	 * Creates the links found by the linker whose source is in the specified
+	 * time-point range, and adds their target to the specified set if it is
+	 * not <code>null</code>.
+	 */
+	private void createLinks( final ReadOnlyGraph< V, E > graph, final JaqamanLinker< V, V > linker, final int fromTimepoint, final int toTimepoint, final RefSet< V > linkedTargets )
+	{
 		final RefRefMap< V, V > assignment = linker.getResult();
 		final RefDoubleMap< V > assignmentCosts = linker.getAssignmentCosts();
 
@@ -165,9 +344,13 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 			final V vref = graph.vertexRef();
 			for ( final V source : assignment.keySet() )
 			{
+				if ( source.getTimepoint() < fromTimepoint || source.getTimepoint() > toTimepoint )
+					continue;
 				final V target = assignment.get( source, vref );
 				final double cost = assignmentCosts.get( source );
 				edgeCreator.createEdge( source, target, cost );
+				if ( null != linkedTargets )
+					linkedTargets.add( target );
 			}
 			graph.releaseRef( vref );
 		}
@@ -179,11 +362,34 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 		{
 			edgeCreator.postAddition();
 		}
+	}
 
-		statusService.clearStatus();
-		final long end = System.currentTimeMillis();
-		processingTime = end - start;
-		ok = true;
+	private static < V extends HasTimepoint > TIntObjectHashMap< RefList< V > > byTimepoint( final RefCollection< V > pool, final RefList< V > vertices )
+	{
+		final TIntObjectHashMap< RefList< V > > map = new TIntObjectHashMap<>();
+		for ( final V v : vertices )
+		{
+			RefList< V > vs = map.get( v.getTimepoint() );
+			if ( vs == null )
+			{
+				vs = RefCollections.createRefList( pool );
+				map.put( v.getTimepoint(), vs );
+			}
+			vs.add( v );
+		}
+		return map;
+	}
+
+	private static < V > RefList< V > collect( final RefCollection< V > pool, final TIntObjectHashMap< RefList< V > > map, final int fromTimepoint, final int toTimepoint )
+	{
+		final RefList< V > list = RefCollections.createRefList( pool );
+		for ( int t = fromTimepoint; t <= toTimepoint; t++ )
+		{
+			final RefList< V > vs = map.get( t );
+			if ( null != vs )
+				list.addAll( vs );
+		}
+		return list;
 	}
 
 	@Override
@@ -221,6 +427,11 @@ public class SparseLAPSegmentLinker< V extends Vertex< E > & HasTimepoint & Real
 		ok = ok & checkParameter( settings, KEY_ALLOW_TRACK_SPLITTING, Boolean.class, str );
 		// Merging
 		ok = ok & checkParameter( settings, KEY_ALLOW_TRACK_MERGING, Boolean.class, str );
+		// Solver
+		if ( null != settings.get( KEY_LAP_SOLVER ) )
+			ok = ok & checkParameter( settings, KEY_LAP_SOLVER, String.class, str );
+		if ( null != settings.get( KEY_SEGMENT_LINKING_WINDOW ) )
+			ok = ok & checkParameter( settings, KEY_SEGMENT_LINKING_WINDOW, Integer.class, str );
 		return ok;
 	}
 
@@ -64,8 +64,10 @@ import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.SquareDistCostFunction;
 import org.mastodon.tracking.linking.sequential.lap.costmatrix.JaqamanLinkingCostMatrixCreator;
 import org.mastodon.tracking.linking.sequential.lap.linker.JaqamanLinker;
-import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPCostMatrix;
+import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
+import org.scijava.thread.ThreadService;
 
 import net.imagej.ops.special.function.Functions;
 import net.imglib2.RealLocalizable;
@@ -89,6 +91,9 @@ public class KalmanLinker< V extends RealLocalizable >
 
 	private static final String BASE_ERROR_MSG = "[KalmanTracker] ";
 
+	@Parameter
+	private ThreadService threadService;
+
 	private long processingTime;
 
 	@Override
@@ -287,7 +292,7 @@ public class KalmanLinker< V extends RealLocalizable >
 				// Only link measurements to predictions if we have predictions.
 				@SuppressWarnings( "unchecked" )
 				final JaqamanLinkingCostMatrixCreator< Prediction, V > crm =
-						( JaqamanLinkingCostMatrixCreator< Prediction, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, SparseCostMatrix.class,
+						( JaqamanLinkingCostMatrixCreator< Prediction, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, LAPCostMatrix.class,
 								predictions,
 								measurements,
 								CF,
@@ -297,7 +302,9 @@ public class KalmanLinker< V extends RealLocalizable >
 								predictionPool.asRefCollection(),
 								refcol,
 								predictionComparator,
-								spotComparator );
+								spotComparator,
+								maxSearchRadius );
+				crm.setExecutorService( threadService.getExecutorService() );
 				final JaqamanLinker< Prediction, V > linker = new JaqamanLinker<>( crm, predictions, measurements );
 				if ( !linker.checkInput() || !linker.process() )
 				{
@@ -362,7 +369,7 @@ public class KalmanLinker< V extends RealLocalizable >
 				 */
 				@SuppressWarnings( "unchecked" )
 				final JaqamanLinkingCostMatrixCreator< V, V > ic =
-						( JaqamanLinkingCostMatrixCreator< V, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, SparseCostMatrix.class,
+						( JaqamanLinkingCostMatrixCreator< V, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, LAPCostMatrix.class,
 								previousOrphanSpots,
 								orphanSpots,
 								nucleatingCostFunction,
@@ -372,7 +379,9 @@ public class KalmanLinker< V extends RealLocalizable >
 								refcol,
 								refcol,
 								spotComparator,
-								spotComparator );
+								spotComparator,
+								initialSearchRadius );
+				ic.setExecutorService( threadService.getExecutorService() );
 				final JaqamanLinker< V, V > newLinker = new JaqamanLinker<>( ic, previousOrphanSpots, orphanSpots );
 				if ( !newLinker.checkInput() || !newLinker.process() )
 				{
@@ -30,10 +30,13 @@ package org.mastodon.tracking.linking.sequential.lap;
 
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MAX_TIMEPOINT;
 import static org.mastodon.tracking.detection.DetectorKeys.KEY_MIN_TIMEPOINT;
+import static org.mastodon.tracking.linking.LinkerKeys.DEFAULT_LAP_SOLVER;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_DO_LINK_SELECTION;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LINKING_WARM_START;
 import static org.mastodon.tracking.linking.LinkingUtils.checkFeatureMap;
 import static org.mastodon.tracking.linking.LinkingUtils.checkMapKeys;
 import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
@@ -60,7 +63,8 @@ import org.mastodon.tracking.linking.sequential.AbstractSequentialParticleLinker
 import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
 import org.mastodon.tracking.linking.sequential.lap.costmatrix.JaqamanLinkingCostMatrixCreator;
 import org.mastodon.tracking.linking.sequential.lap.linker.JaqamanLinker;
-import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPCostMatrix;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPSolverType;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 import org.scijava.thread.ThreadService;
@@ -164,91 +168,121 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 		final Double maxDist = ( Double ) settings.get( KEY_LINKING_MAX_DISTANCE );
 		final double costThreshold = maxDist * maxDist;
 		final double alternativeCostFactor = ( Double ) settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR );
+		final LAPSolverType solverType = LAPSolverType.getOrDefault( ( String ) settings.get( KEY_LAP_SOLVER ), LAPSolverType.valueOf( DEFAULT_LAP_SOLVER ) );
+
+		final boolean warmStart = null != settings.get( KEY_LINKING_WARM_START ) && ( Boolean ) settings.get( KEY_LINKING_WARM_START );
+
+		/*
+		 * Group frame pairs in tasks. Without warm start, each frame pair is
+		 * solved independently. With warm start, the potentials of a frame
+		 * pair seed the next one, so consecutive frame pairs are solved in
+		 * sequence, in one contiguous chunk per thread.
+		 */
+		final int nTasks = warmStart
+				? Math.min( framePairs.size(), Runtime.getRuntime().availableProcessors() )
+				: framePairs.size();
 
 		// Prepare threads
 		final AtomicInteger progress = new AtomicInteger( 0 );
 		final AtomicBoolean aok = new AtomicBoolean( true );
 		statusService.showStatus( "Frame to frame linking..." );
-		final ArrayList< Future< Void > > futures = new ArrayList<>( framePairs.size() );
+		final ArrayList< Future< Void > > futures = new ArrayList<>( nTasks );
 		final ExecutorService service = threadService.getExecutorService();
-		for ( int fp = 0; fp < framePairs.size(); fp++ )
+		for ( int t = 0; t < nTasks; t++ )
 		{
-			final int i = fp;
+			final int fromPair = ( int ) ( ( long ) t * framePairs.size() / nTasks );
+			final int toPair = ( int ) ( ( long ) ( t + 1 ) * framePairs.size() / nTasks );
 			futures.add( service.submit( new Callable< Void >()
 			{
 				@Override
 				public Void call()
 				{
-					if ( isCanceled() || !aok.get() )
-						return null;
-
-					// Get frame pairs
-					final int frame0 = framePairs.get( i )[ 0 ];
-					final int frame1 = framePairs.get( i )[ 1 ];
-
-					spots.readLock().lock();
-					JaqamanLinker< V, V > linker = null;
-					try
+					// Potentials of the sources of the current frame pair.
+					RefDoubleMap< V > potentials = null;
+					for ( int i = fromPair; i < toPair; i++ )
 					{
-						final SpatialIndex< V > sources = spots.getSpatialIndex( frame0 );
-						final SpatialIndex< V > targets = spots.getSpatialIndex( frame1 );
-
-						if ( sources.isEmpty() || targets.isEmpty() )
+						if ( isCanceled() || !aok.get() )
 							return null;
 
-						/*
-						 * Run the linker.
-						 */
+						// Get frame pairs
+						final int frame0 = framePairs.get( i )[ 0 ];
+						final int frame1 = framePairs.get( i )[ 1 ];
 
-						@SuppressWarnings( "unchecked" )
-						final JaqamanLinkingCostMatrixCreator< V, V > creator = ( JaqamanLinkingCostMatrixCreator< V, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, SparseCostMatrix.class,
-								sources, targets, costFunction, costThreshold, alternativeCostFactor, 1d,
-								refcol, refcol,
-								spotComparator, spotComparator );
-						linker = new JaqamanLinker< >( creator, refcol, refcol );
-						if ( !linker.checkInput() || !linker.process() )
+						spots.readLock().lock();
+						JaqamanLinker< V, V > linker = null;
+						try
 						{
-							errorMessage = "Linking frame " + frame0 + " to " + frame1 + ": " + linker.getErrorMessage();
-							aok.set( false );
-							return null;
+							final SpatialIndex< V > sources = spots.getSpatialIndex( frame0 );
+							final SpatialIndex< V > targets = spots.getSpatialIndex( frame1 );
+
+							if ( sources.isEmpty() || targets.isEmpty() )
+							{
+								potentials = null;
+								continue;
+							}
+
+							/*
+							 * Run the linker.
+							 */
+
+							@SuppressWarnings( "unchecked" )
+							final JaqamanLinkingCostMatrixCreator< V, V > creator = ( JaqamanLinkingCostMatrixCreator< V, V > ) Functions.nullary( ops(), JaqamanLinkingCostMatrixCreator.class, LAPCostMatrix.class,
+									sources, targets, costFunction, costThreshold, alternativeCostFactor, 1d,
+									refcol, refcol,
+									spotComparator, spotComparator,
+									maxDist );
+							creator.setExecutorService( service );
+							linker = new JaqamanLinker< >( creator, refcol, refcol );
+							linker.setSolverType( solverType );
+							linker.setSourcePotentials( potentials );
+							if ( !linker.checkInput() || !linker.process() )
+							{
+								errorMessage = "Linking frame " + frame0 + " to " + frame1 + ": " + linker.getErrorMessage();
+								aok.set( false );
+								return null;
+							}
+							potentials = warmStart ? linker.getTargetPotentials() : null;
 						}
-					}
-					catch (final Exception e)
-					{
-						e.printStackTrace();
-					}
-					finally
-					{
-						spots.readLock().unlock();
-					}
+						catch (final Exception e)
+						{
+							e.printStackTrace();
+							potentials = null;
+						}
+						finally
+						{
+							spots.readLock().unlock();
+						}
+						if ( null == linker )
+							continue;
 
-					/*
-					 * Update graph.
-					 */
+						/*
+						 * Update graph.
+						 */
 
-					edgeCreator.preAddition();
-					try
-					{
-						final RefRefMap< V, V > assignment = linker.getResult();
-						final RefDoubleMap< V > assignmentCosts = linker.getAssignmentCosts();
-						final V vref = refcol.createRef();
-						for ( final V source : assignment.keySet() )
+						edgeCreator.preAddition();
+						try
 						{
-							final V target = assignment.get( source, vref );
-							final double cost = assignmentCosts.get( source );
-							edgeCreator.createEdge( source, target, cost );
+							final RefRefMap< V, V > assignment = linker.getResult();
+							final RefDoubleMap< V > assignmentCosts = linker.getAssignmentCosts();
+							final V vref = refcol.createRef();
+							for ( final V source : assignment.keySet() )
+							{
+								final V target = assignment.get( source, vref );
+								final double cost = assignmentCosts.get( source );
+								edgeCreator.createEdge( source, target, cost );
+							}
+							refcol.releaseRef( vref );
 						}
-						refcol.releaseRef( vref );
-					}
-					catch ( final Exception e )
-					{
-						e.printStackTrace();
-					}
-					finally
-					{
-						edgeCreator.postAddition();
+						catch ( final Exception e )
+						{
+							e.printStackTrace();
+						}
+						finally
+						{
+							edgeCreator.postAddition();
+						}
+						statusService.showProgress( progress.incrementAndGet(), framePairs.size() );
 					}
-					statusService.showProgress( progress.incrementAndGet(), framePairs.size() );
 					return null;
 				}
 			} ) );
@@ -295,6 +329,10 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 		ok = ok & checkFeatureMap( settings, KEY_LINKING_FEATURE_PENALTIES, str );
 		// Others
 		ok = ok & checkParameter( settings, KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.class, str );
+		if ( null != settings.get( KEY_LAP_SOLVER ) )
+			ok = ok & checkParameter( settings, KEY_LAP_SOLVER, String.class, str );
+		if ( null != settings.get( KEY_LINKING_WARM_START ) )
+			ok = ok & checkParameter( settings, KEY_LINKING_WARM_START, Boolean.class, str );
 
 		// Check keys
 		final List< String > mandatoryKeys = new ArrayList< >();
@@ -305,6 +343,8 @@ public class SparseLAPFrameToFrameLinker< V extends HasTimepoint & RealLocalizab
 		final List< String > optionalKeys = new ArrayList< >();
 		optionalKeys.add( KEY_LINKING_FEATURE_PENALTIES );
 		optionalKeys.add( KEY_DO_LINK_SELECTION );
+		optionalKeys.add( KEY_LAP_SOLVER );
+		optionalKeys.add( KEY_LINKING_WARM_START );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, str );
 
 		return ok;
@@ -0,0 +1,190 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.costmatrix;
+
+import org.mastodon.collection.RefCollection;
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+
+import gnu.trove.impl.Constants;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TLongIntHashMap;
+import net.imglib2.RealLocalizable;
+
+/**
+ * A uniform grid over a collection of target objects, used to list the targets
+ * that lie within a fixed radius of a position without testing all of them.
+ * <p>
+ * The grid cell size is the search radius, so a query only inspects the 3^n
+ * cells around the query position. Targets are stored in a linked list per
+ * cell, backed by primitive arrays. If the radius is not strictly positive and
+ * finite, no grid is built and all the targets are returned by a query.
+ *
+ * @param <J>
+ *            the type of the targets. They must be {@link RealLocalizable}
+ *            with at most 3 dimensions.
+ */
+final class CandidateGrid< J >
+{
+
+	private static final int BITS = 21;
+
+	private static final long MASK = ( 1L << BITS ) - 1;
+
+	private final double radius;
+
+	private final double r2;
+
+	/** Whether all the targets are candidates, without grid. */
+	private final boolean exhaustive;
+
+	private final RefList< J > targets;
+
+	/** Target positions, 3 per target. */
+	private final double[] pos;
+
+	/** Cell key to index of the first target in the cell. */
+	private final TLongIntHashMap heads;
+
+	/** Index of the next target in the same cell, -1 for the last one. */
+	private final int[] next;
+
+	/**
+	 * Builds a grid over the specified targets.
+	 *
+	 * @param targets
+	 *            the targets.
+	 * @param pool
+	 *            a ref collection for the targets.
+	 * @param radius
+	 *            the search radius.
+	 */
+	public CandidateGrid( final Iterable< J > targets, final RefCollection< J > pool, final double radius )
+	{
+		this.radius = radius;
+		this.r2 = radius * radius;
+		this.exhaustive = !( radius > 0. ) || Double.isInfinite( radius );
+		this.targets = RefCollections.createRefList( pool );
+		for ( final J target : targets )
+			this.targets.add( target );
+
+		final int n = this.targets.size();
+		if ( exhaustive )
+		{
+			this.pos = null;
+			this.next = null;
+			this.heads = null;
+			return;
+		}
+		this.pos = new double[ 3 * n ];
+		this.next = new int[ n ];
+		this.heads = new TLongIntHashMap( Math.max( Constants.DEFAULT_CAPACITY, n ), Constants.DEFAULT_LOAD_FACTOR, Long.MIN_VALUE, -1 );
+		final J ref = pool.createRef();
+		for ( int i = 0; i < n; i++ )
+		{
+			final RealLocalizable target = ( RealLocalizable ) this.targets.get( i, ref );
+			for ( int d = 0; d < target.numDimensions(); d++ )
+				pos[ 3 * i + d ] = target.getDoublePosition( d );
+
+			final long key = key( cell( pos[ 3 * i ] ), cell( pos[ 3 * i + 1 ] ), cell( pos[ 3 * i + 2 ] ) );
+			next[ i ] = heads.get( key );
+			heads.put( key, i );
+		}
+		pool.releaseRef( ref );
+	}
+
+	/**
+	 * Lists the targets that lie within the search radius of the specified
+	 * position.
+	 *
+	 * @param source
+	 *            the position.
+	 * @param candidates
+	 *            a list, cleared then filled with the indices of the targets
+	 *            found.
+	 */
+	public void search( final RealLocalizable source, final TIntArrayList candidates )
+	{
+		candidates.resetQuick();
+		if ( exhaustive )
+		{
+			for ( int i = 0; i < targets.size(); i++ )
+				candidates.add( i );
+			return;
+		}
+		final double x = source.getDoublePosition( 0 );
+		final double y = source.numDimensions() > 1 ? source.getDoublePosition( 1 ) : 0.;
+		final double z = source.numDimensions() > 2 ? source.getDoublePosition( 2 ) : 0.;
+		final long cx = cell( x );
+		final long cy = cell( y );
+		final long cz = cell( z );
+		for ( long ix = cx - 1; ix <= cx + 1; ix++ )
+			for ( long iy = cy - 1; iy <= cy + 1; iy++ )
+				for ( long iz = cz - 1; iz <= cz + 1; iz++ )
+				{
+					for ( int i = heads.get( key( ix, iy, iz ) ); i >= 0; i = next[ i ] )
+					{
+						final double dx = pos[ 3 * i ] - x;
+						final double dy = pos[ 3 * i + 1 ] - y;
+						final double dz = pos[ 3 * i + 2 ] - z;
+						if ( dx * dx + dy * dy + dz * dz <= r2 )
+							candidates.add( i );
+					}
+				}
+	}
+
+	/**
+	 * Returns the target with the specified index.
+	 *
+	 * @param i
+	 *            the target index, as returned by
+	 *            {@link #search(RealLocalizable, TIntArrayList)}.
+	 * @param ref
+	 *            a target reference.
+	 * @return the target.
+	 */
+	public J get( final int i, final J ref )
+	{
+		return targets.get( i, ref );
+	}
+
+	private long cell( final double x )
+	{
+		return ( long ) Math.floor( x / radius );
+	}
+
+	/*
+	 * Cells far apart may share a key. This only adds candidates that are
+	 * then rejected by the distance test.
+	 */
+	private static long key( final long ix, final long iy, final long iz )
+	{
+		return ( ( ix & MASK ) << ( 2 * BITS ) ) | ( ( iy & MASK ) << BITS ) | ( iz & MASK );
+	}
+}
@@ -29,13 +29,21 @@
 package org.mastodon.tracking.linking.sequential.lap.costmatrix;
 
 import org.mastodon.collection.RefList;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPCostMatrix;
 import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
 
 import net.imagej.ops.special.function.NullaryFunctionOp;
 
 /**
- * Interface for function that can generate a {@link SparseCostMatrix} from
+ * Interface for function that can generate a {@link LAPCostMatrix} from
  * assignment candidates.
+ * <p>
+ * The output type used to be {@link SparseCostMatrix}. It is now the
+ * {@link LAPCostMatrix} interface, so that creators can return compact or
+ * memory-mapped matrices for very large problems. Callers of these ops that
+ * need a {@link SparseCostMatrix} must check the type of the matrix
+ * returned: the default creators return one unless a compact or out-of-core
+ * matrix is requested in their settings.
  *
  * @author Jean-Yves Tinevez
  * @param <K>
@@ -44,7 +52,7 @@ import net.imagej.ops.special.function.NullaryFunctionOp;
  *            the type of target objects.
  *
  */
-public interface CostMatrixCreatorOp< K, J > extends NullaryFunctionOp< SparseCostMatrix >
+public interface CostMatrixCreatorOp< K, J > extends NullaryFunctionOp< LAPCostMatrix >
 {
 
 	/**
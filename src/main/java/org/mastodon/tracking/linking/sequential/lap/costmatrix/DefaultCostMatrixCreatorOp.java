@@ -28,14 +28,14 @@
  */
 package org.mastodon.tracking.linking.sequential.lap.costmatrix;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.List;
 
 import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefIntMap;
 import org.mastodon.collection.RefList;
-import org.mastodon.collection.RefSet;
+import org.mastodon.tracking.linking.LinkingProgress;
+import org.mastodon.tracking.linking.sequential.lap.linker.CompactSparseCostMatrix;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPCostMatrix;
 import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
@@ -48,6 +48,10 @@ import net.imglib2.util.Util;
 /**
  * A {@link CostMatrixCreatorOp} that build a cost matrix from 3 lists
  * containing the sources, the targets and the associated costs.
+ * <p>
+ * If the optional <code>compact</code> parameter is <code>true</code>, the
+ * matrix is returned as a {@link CompactSparseCostMatrix}, with
+ * <code>float</code> costs, to save memory on very large problems.
  *
  * @author Jean-Yves Tinevez - 2014
  *
@@ -58,7 +62,7 @@ import net.imglib2.util.Util;
  */
 @Plugin( type = CostMatrixCreatorOp.class )
 public class DefaultCostMatrixCreatorOp< K, J >
-		extends AbstractNullaryFunctionOp< SparseCostMatrix >
+		extends AbstractNullaryFunctionOp< LAPCostMatrix >
 		implements CostMatrixCreatorOp< K, J >, Benchmark
 {
 
@@ -85,6 +89,9 @@ public class DefaultCostMatrixCreatorOp< K, J >
 	@Parameter( type = ItemIO.INPUT )
 	private Comparator< J > colComparator;
 
+	@Parameter( type = ItemIO.INPUT, required = false )
+	private boolean compact = false;
+
 	@Parameter( type = ItemIO.OUTPUT )
 	private RefList< K > uniqueRows;
 
@@ -98,8 +105,22 @@ public class DefaultCostMatrixCreatorOp< K, J >
 
 	private long processingTime;
 
+	private LinkingProgress progress = LinkingProgress.NONE;
+
+	/**
+	 * Sets the token through which progress is reported and cancellation is
+	 * checked, between the sorting and assembly steps.
+	 *
+	 * @param progress
+	 *            the progress token.
+	 */
+	public void setProgress( final LinkingProgress progress )
+	{
+		this.progress = null == progress ? LinkingProgress.NONE : progress;
+	}
+
 	@Override
-	public SparseCostMatrix calculate()
+	public LAPCostMatrix calculate()
 	{
 		if ( rows == null || rows.isEmpty() )
 		{
@@ -127,73 +148,227 @@ public class DefaultCostMatrixCreatorOp< K, J >
 			return null;
 		}
 
-		final RefSet< K > tmpSet1 = RefCollections.createRefSet( rows, rows.size() );
-		tmpSet1.addAll( rows );
-		uniqueRows = RefCollections.createRefList( rows, tmpSet1.size() );
-		uniqueRows.addAll( tmpSet1 );
-		uniqueRows.sort( rowComparator );
+		final int[] rowIds = new int[ costs.length ];
+		uniqueRows = uniqueSorted( rows, rowComparator, rowIds );
+		if ( canceled() )
+			return null;
+		progress.progress( 0.4 );
 
-		final RefSet< J > tmpSet2 = RefCollections.createRefSet( cols, cols.size() );
-		tmpSet2.addAll( cols );
-		uniqueCols = RefCollections.createRefList( cols, tmpSet2.size() );
-		uniqueCols.addAll( tmpSet2 );
-		uniqueCols.sort( colComparator );
+		final int[] colIds = new int[ costs.length ];
+		uniqueCols = uniqueSorted( cols, colComparator, colIds );
+		if ( canceled() )
+			return null;
+		progress.progress( 0.8 );
 
-		final List< Assignment > assignments = new ArrayList< Assignment >( costs.length );
-		for ( int i = 0; i < costs.length; i++ )
+		final LAPCostMatrix scm;
+		try
 		{
-			final K rowObj = rows.get( i );
-			final J colObj = cols.get( i );
-			final int r = Collections.binarySearch( uniqueRows, rowObj, rowComparator );
-			final int c = Collections.binarySearch( uniqueCols, colObj, colComparator );
-			assignments.add( new Assignment( r, c, costs[ i ] ) );
+			scm = compact
+					? compactFromTriplets( rowIds, colIds, costs, uniqueRows.size(), uniqueCols.size() )
+					: fromTriplets( rowIds, colIds, costs, uniqueRows.size(), uniqueCols.size(), false );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + e.getMessage();
+			return null;
 		}
-		Collections.sort( assignments );
+		if ( canceled() )
+			return null;
+		progress.progress( 0.9 );
+
+		alternativeCost = computeAlternativeCosts();
+		progress.progress( 1. );
+		return scm;
+	}
 
-		// Test we do not have duplicates.
-		Assignment previousAssgn = assignments.get( 0 );
-		for ( int i = 1; i < assignments.size(); i++ )
+	private boolean canceled()
+	{
+		if ( !progress.isCanceled() )
+			return false;
+		errorMessage = BASE_ERROR_MESSAGE + "Canceled.";
+		return true;
+	}
+
+	/**
+	 * Builds a sparse cost matrix from a list of (row, column, cost) triplets
+	 * given as primitive arrays. The entries are arranged in the row
+	 * compressed storage with two counting sort passes, first on columns then
+	 * on rows, without creating any object per entry.
+	 *
+	 * @param rowIds
+	 *            the row index of each entry, in <code>[0, nRows)</code>.
+	 * @param colIds
+	 *            the column index of each entry, in <code>[0, nCols)</code>.
+	 * @param costs
+	 *            the cost of each entry.
+	 * @param nRows
+	 *            the number of rows.
+	 * @param nCols
+	 *            the number of columns.
+	 * @return a new sparse cost matrix.
+	 * @throws IllegalArgumentException
+	 *             if the arrays do not have the same length, if an entry
+	 *             appears twice, or if the matrix has a row or a column
+	 *             without cost.
+	 */
+	public static SparseCostMatrix fromTriplets( final int[] rowIds, final int[] colIds, final double[] costs, final int nRows, final int nCols )
+	{
+		return fromTriplets( rowIds, colIds, costs, nRows, nCols, true );
+	}
+
+	/**
+	 * The row and column indices built from the unique sorted row and column
+	 * lists cover every row and every column, and the sort below already
+	 * orders and de-duplicates the entries, so the matrix does not need to be
+	 * validated again when <code>validate</code> is <code>false</code>.
+	 */
+	private static SparseCostMatrix fromTriplets( final int[] rowIds, final int[] colIds, final double[] costs, final int nRows, final int nCols, final boolean validate )
+	{
+		final int[] order = sortTriplets( rowIds, colIds, costs, nRows, nCols );
+		final int n = order.length;
+		final double[] cc = new double[ n ];
+		final int[] kk = new int[ n ];
+		final int[] number = new int[ nRows ];
+		for ( int i = 0; i < n; i++ )
 		{
-			final Assignment assgn = assignments.get( i );
-			if ( assgn.equals( previousAssgn ) )
-			{
-				errorMessage = BASE_ERROR_MESSAGE + "Found duplicate assignment at index: " + assgn + ".";
-				return null;
-			}
-			previousAssgn = assgn;
+			final int e = order[ i ];
+			cc[ i ] = costs[ e ];
+			kk[ i ] = colIds[ e ];
+			number[ rowIds[ e ] ]++;
 		}
+		return validate
+				? new SparseCostMatrix( cc, kk, number, nCols )
+				: SparseCostMatrix.trusted( cc, kk, number, nCols );
+	}
 
-		final int nRows = uniqueRows.size();
-		final int nCols = uniqueCols.size();
-		final int[] kk = new int[ costs.length ];
+	/**
+	 * Builds a compact sparse cost matrix, with <code>float</code> costs, from
+	 * a list of (row, column, cost) triplets given as primitive arrays.
+	 *
+	 * @param rowIds
+	 *            the row index of each entry, in <code>[0, nRows)</code>.
+	 * @param colIds
+	 *            the column index of each entry, in <code>[0, nCols)</code>.
+	 * @param costs
+	 *            the cost of each entry.
+	 * @param nRows
+	 *            the number of rows.
+	 * @param nCols
+	 *            the number of columns.
+	 * @return a new compact sparse cost matrix.
+	 * @throws IllegalArgumentException
+	 *             if the arrays do not have the same length, if an entry
+	 *             appears twice, or if the matrix has a row or a column
+	 *             without cost.
+	 * @see #fromTriplets(int[], int[], double[], int, int)
+	 */
+	public static CompactSparseCostMatrix compactFromTriplets( final int[] rowIds, final int[] colIds, final double[] costs, final int nRows, final int nCols )
+	{
+		final int[] order = sortTriplets( rowIds, colIds, costs, nRows, nCols );
+		final int n = order.length;
+		final float[] cc = new float[ n ];
 		final int[] number = new int[ nRows ];
-		final double[] cc = new double[ costs.length ];
-
-		Assignment a = assignments.get( 0 );
-		kk[ 0 ] = a.c;
-		cc[ 0 ] = a.cost;
-		int currentRow = a.r;
-		int nOfEl = 0;
-		for ( int i = 1; i < assignments.size(); i++ )
+		final int[] colHistogram = new int[ nCols ];
+		for ( int i = 0; i < n; i++ )
 		{
-			a = assignments.get( i );
+			final int e = order[ i ];
+			cc[ i ] = ( float ) costs[ e ];
+			number[ rowIds[ e ] ]++;
+			colHistogram[ colIds[ e ] ]++;
+		}
+		for ( int i = 0; i < nRows; i++ )
+			if ( number[ i ] == 0 )
+				throw new IllegalArgumentException( "All the rows must have at least one cost. Row " + i + " have none." );
+		for ( int j = 0; j < nCols; j++ )
+			if ( colHistogram[ j ] == 0 )
+				throw new IllegalArgumentException( "All the columns must have at least one cost. The column " + j + " has none." );
+
+		// Columns are packed straight from the sorted triplets.
+		final int[] start = new int[ nRows + 1 ];
+		for ( int i = 0; i < nRows; i++ )
+			start[ i + 1 ] = start[ i ] + number[ i ];
+		return CompactSparseCostMatrix.trusted( cc, number, nCols, ( i, k ) -> colIds[ order[ start[ i ] + k ] ] );
+	}
 
-			kk[ i ] = a.c;
-			cc[ i ] = a.cost;
-			nOfEl++;
+	/**
+	 * Returns the order of the specified triplets sorted by row, then by
+	 * column. Throws an {@link IllegalArgumentException} if the arrays do not
+	 * have the same length or if an entry appears twice.
+	 */
+	private static int[] sortTriplets( final int[] rowIds, final int[] colIds, final double[] costs, final int nRows, final int nCols )
+	{
+		final int n = costs.length;
+		if ( rowIds.length != n || colIds.length != n )
+			throw new IllegalArgumentException( "Row, column and cost arrays do not have the same number of elements. Found " + rowIds.length + ", " + colIds.length + " and " + n + "." );
+
+		// Stable sort on columns, then on rows.
+		final int[] order = countingSort( rowIds, nRows, countingSort( colIds, nCols, null ) );
+		for ( int i = 1; i < n; i++ )
+		{
+			final int e = order[ i ];
+			final int previous = order[ i - 1 ];
+			if ( rowIds[ previous ] == rowIds[ e ] && colIds[ previous ] == colIds[ e ] )
+				throw new IllegalArgumentException( "Found duplicate assignment at row " + rowIds[ e ] + ", column " + colIds[ e ] + "." );
+		}
+		return order;
+	}
 
-			if ( a.r != currentRow )
+	/**
+	 * Returns the permutation that sorts the specified entries by key, keeping
+	 * their relative order for identical keys.
+	 *
+	 * @param keys
+	 *            the key of each entry, in <code>[0, nKeys)</code>.
+	 * @param nKeys
+	 *            the number of distinct keys.
+	 * @param input
+	 *            the order in which to take the entries. If <code>null</code>,
+	 *            the entries are taken in index order.
+	 */
+	private static int[] countingSort( final int[] keys, final int nKeys, final int[] input )
+	{
+		final int n = keys.length;
+		final int[] start = new int[ nKeys + 1 ];
+		for ( int i = 0; i < n; i++ )
+			start[ keys[ i ] + 1 ]++;
+		for ( int k = 0; k < nKeys; k++ )
+			start[ k + 1 ] += start[ k ];
+
+		final int[] out = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final int e = ( null == input ) ? i : input[ i ];
+			out[ start[ keys[ e ] ]++ ] = e;
+		}
+		return out;
+	}
+
+	/**
+	 * Returns the sorted list of unique elements of the specified list, and
+	 * writes the index in this list of each element of the specified list in
+	 * <code>ids</code>.
+	 */
+	private static < T > RefList< T > uniqueSorted( final RefList< T > list, final Comparator< T > comparator, final int[] ids )
+	{
+		final T ref = list.createRef();
+		final RefIntMap< T > index = RefCollections.createRefIntMap( list, -1, list.size() );
+		final RefList< T > unique = RefCollections.createRefList( list );
+		for ( int i = 0; i < list.size(); i++ )
+		{
+			final T o = list.get( i, ref );
+			if ( !index.containsKey( o ) )
 			{
-				number[ currentRow ] = nOfEl;
-				nOfEl = 0;
-				currentRow = a.r;
+				index.put( o, 0 );
+				unique.add( o );
 			}
 		}
-		number[ currentRow ] = nOfEl + 1;
-
-		final SparseCostMatrix scm = new SparseCostMatrix( cc, kk, number, nCols );
-		alternativeCost = computeAlternativeCosts();
-		return scm;
+		unique.sort( comparator );
+		for ( int i = 0; i < unique.size(); i++ )
+			index.put( unique.get( i, ref ), i );
+		for ( int i = 0; i < list.size(); i++ )
+			ids[ i ] = index.get( list.get( i, ref ) );
+		list.releaseRef( ref );
+		return unique;
 	}
 
 	protected double computeAlternativeCosts()
@@ -237,68 +412,4 @@ public class DefaultCostMatrixCreatorOp< K, J >
 	{
 		return alternativeCost;
 	}
-
-	public final static class Assignment implements Comparable< Assignment >
-	{
-		private final int r;
-
-		private final int c;
-
-		private final double cost;
-
-		public Assignment( final int r, final int c, final double cost )
-		{
-			this.r = r;
-			this.c = c;
-			this.cost = cost;
-		}
-
-		@Override
-		public int compareTo( final Assignment o )
-		{
-			if ( r == o.r ) { return c - o.c; }
-			return r - o.r;
-		}
-
-		@Override
-		public boolean equals( final Object obj )
-		{
-			if ( obj instanceof Assignment )
-			{
-				final Assignment o = ( Assignment ) obj;
-				return r == o.r && c == o.c;
-			}
-			return false;
-		}
-
-		@Override
-		public int hashCode()
-		{
-			int hash = 23;
-			hash = hash * 31 + r;
-			hash = hash * 31 + c;
-			return hash;
-		}
-
-		@Override
-		public String toString()
-		{
-			return "Assignment r = " + r + ", c = " + c + ", cost = " + cost;
-		}
-
-		public int getC()
-		{
-			return c;
-		}
-
-		public int getR()
-		{
-			return r;
-		}
-
-		public double getCost()
-		{
-			return cost;
-		}
-	}
 }
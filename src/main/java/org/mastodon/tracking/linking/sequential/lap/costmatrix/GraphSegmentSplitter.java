@@ -30,74 +30,277 @@ package org.mastodon.tracking.linking.sequential.lap.costmatrix;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
-import org.mastodon.collection.RefSet;
 import org.mastodon.graph.Edge;
 import org.mastodon.graph.ReadOnlyGraph;
 import org.mastodon.graph.Vertex;
-import org.mastodon.graph.algorithm.ConnectedComponents;
 import org.mastodon.spatial.HasTimepoint;
 
+/**
+ * Splits a graph in track segments, and lists their first vertices (starts),
+ * last vertices (ends) and the vertices in between (middles).
+ * <p>
+ * Vertices are classified from their in and out degrees only, in one pass
+ * over the vertices: a vertex with no incoming edge and at least one outgoing
+ * edge is a segment start, a vertex with at least one incoming edge and no
+ * outgoing edge is a segment end, and a vertex with both is a middle point.
+ * Isolated vertices belong to no segment. After frame-to-frame linking,
+ * segments are linear and this gives the first and last vertex of each of
+ * them.
+ * <p>
+ * The result is stored as indices in the list returned by
+ * {@link #getVertices()}, in <code>int[]</code> arrays. If an
+ * {@link ExecutorService} is specified, the vertices are classified in
+ * parallel.
+ * <p>
+ * These indices are not the pool indices of the vertices: a
+ * {@link ReadOnlyGraph} does not give access to its vertex pool by index.
+ * The vertices are therefore copied once in a {@link RefList}, which costs
+ * one <code>int</code> per vertex of the graph for each splitter. Linkers
+ * build one splitter per run.
+ *
+ * @param <V>
+ *            the type of vertices in the graph.
+ * @param <E>
+ *            the type of edges in the graph.
+ */
 public class GraphSegmentSplitter< V extends Vertex< E > & HasTimepoint, E extends Edge< V > >
 {
-	private static final int MINIMAL_SIZE = 2;
 
-	private final Comparator< V > timepointComparator = new Comparator< V >()
-	{
-		@Override
-		public int compare( final V v1, final V v2 )
-		{
-			return v1.getTimepoint() - v2.getTimepoint();
-		}
-	};
+	/**
+	 * The minimal number of vertices to classify in one task, when
+	 * classifying in parallel.
+	 */
+	private static final int MIN_TASK_SIZE = 1 << 14;
+
+	private static final byte ISOLATED = 0;
+
+	private static final byte START = 1;
 
-	private final RefList< V > segmentStarts;
+	private static final byte END = 2;
 
-	private final RefList< V > segmentEnds;
+	private static final byte MIDDLE = 3;
 
-	private final List< RefList< V > > segmentMiddles;
+	private final ReadOnlyGraph< V, E > graph;
+
+	private final RefList< V > vertices;
+
+	private final int[] starts;
+
+	private final int[] ends;
+
+	private final int[] middles;
 
 	public GraphSegmentSplitter( final ReadOnlyGraph< V, E > graph, final boolean findMiddlePoints )
 	{
-		final ConnectedComponents< V, E > ccInspector = new ConnectedComponents<>( graph, MINIMAL_SIZE );
-		final Set< RefSet< V > > ccs = ccInspector.get();
+		this( graph, findMiddlePoints, null );
+	}
 
-		this.segmentStarts = RefCollections.createRefList( graph.vertices(), ccs.size() );
-		this.segmentEnds = RefCollections.createRefList( graph.vertices(), ccs.size() );
-		this.segmentMiddles = findMiddlePoints ? new ArrayList<>( ccs.size() ) : Collections.emptyList();
+	/**
+	 * Splits the specified graph in segments.
+	 *
+	 * @param graph
+	 *            the graph.
+	 * @param findMiddlePoints
+	 *            if <code>false</code>, the middle points are not listed.
+	 * @param executorService
+	 *            the executor service used to classify the vertices in
+	 *            parallel. If <code>null</code>, they are classified in the
+	 *            calling thread.
+	 */
+	public GraphSegmentSplitter( final ReadOnlyGraph< V, E > graph, final boolean findMiddlePoints, final ExecutorService executorService )
+	{
+		this.graph = graph;
+		this.vertices = RefCollections.createRefList( graph.vertices(), graph.vertices().size() );
+		vertices.addAll( graph.vertices() );
+		final int n = vertices.size();
+
+		// Classify vertices, in parallel if we can.
+		final byte[] kind = new byte[ n ];
+		final int nTasks = ( null == executorService ) ? 1 : Math.max( 1, Math.min( Runtime.getRuntime().availableProcessors(), n / MIN_TASK_SIZE ) );
+		final List< Future< ? > > futures = new ArrayList<>( nTasks - 1 );
+		for ( int t = 1; t < nTasks; t++ )
+		{
+			final int from = ( int ) ( ( long ) t * n / nTasks );
+			final int to = ( int ) ( ( long ) ( t + 1 ) * n / nTasks );
+			futures.add( executorService.submit( () -> classify( graph, kind, from, to ) ) );
+		}
+		classify( graph, kind, 0, ( int ) ( ( long ) n / nTasks ) );
+		for ( final Future< ? > future : futures )
+		{
+			try
+			{
+				future.get();
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				throw new RuntimeException( "Could not split the graph in segments.", e );
+			}
+		}
 
-		for ( final RefSet< V > cc : ccs )
+		// Gather indices in vertex order.
+		final int[] counts = new int[ 4 ];
+		for ( final byte k : kind )
+			counts[ k ]++;
+		this.starts = new int[ counts[ START ] ];
+		this.ends = new int[ counts[ END ] ];
+		this.middles = new int[ findMiddlePoints ? counts[ MIDDLE ] : 0 ];
+		int s = 0;
+		int e = 0;
+		int m = 0;
+		for ( int i = 0; i < n; i++ )
 		{
-			final RefList< V > list = RefCollections.createRefList( graph.vertices() );
-			list.addAll( cc );
-			list.sort( timepointComparator );
-
-			segmentEnds.add( list.remove( list.size()-1 ) );
-			segmentStarts.add( list.remove( 0 ) );
-			if ( findMiddlePoints )
-				segmentMiddles.add( list );
+			switch ( kind[ i ] )
+			{
+			case START:
+				starts[ s++ ] = i;
+				break;
+			case END:
+				ends[ e++ ] = i;
+				break;
+			case MIDDLE:
+				if ( findMiddlePoints )
+					middles[ m++ ] = i;
+				break;
+			default:
+				break;
+			}
 		}
+	}
 
+	private void classify( final ReadOnlyGraph< V, E > graph, final byte[] kind, final int from, final int to )
+	{
+		final V ref = graph.vertexRef();
+		for ( int i = from; i < to; i++ )
+		{
+			final V v = vertices.get( i, ref );
+			final boolean hasIn = !v.incomingEdges().isEmpty();
+			final boolean hasOut = !v.outgoingEdges().isEmpty();
+			kind[ i ] = hasIn
+					? ( hasOut ? MIDDLE : END )
+					: ( hasOut ? START : ISOLATED );
+		}
+		graph.releaseRef( ref );
+	}
+
+	/**
+	 * Returns the vertices of the graph. The indices returned by this class
+	 * are indices in this list.
+	 *
+	 * @return the list of vertices.
+	 */
+	public RefList< V > getVertices()
+	{
+		return vertices;
+	}
+
+	/**
+	 * Returns the indices of the segment starts.
+	 *
+	 * @return the index array, not copied.
+	 */
+	public int[] getStartIndices()
+	{
+		return starts;
+	}
+
+	/**
+	 * Returns the indices of the segment ends.
+	 *
+	 * @return the index array, not copied.
+	 */
+	public int[] getEndIndices()
+	{
+		return ends;
+	}
+
+	/**
+	 * Returns the indices of the segment middle points. Empty if the middle
+	 * points were not requested.
+	 *
+	 * @return the index array, not copied.
+	 */
+	public int[] getMiddleIndices()
+	{
+		return middles;
 	}
 
 	public RefList< V > getSegmentEnds()
 	{
-		return segmentEnds;
+		return toList( ends );
+	}
+
+	/**
+	 * Returns the middle points of all the segments, in one list. Empty if
+	 * the middle points were not requested.
+	 *
+	 * @return a new list of vertices.
+	 */
+	public RefList< V > getSegmentMiddlePoints()
+	{
+		return toList( middles );
 	}
 
+	/**
+	 * Returns the middle points of each segment, one list per segment start,
+	 * in time order. Empty if the middle points were not requested. Segments
+	 * are followed from their start through the first outgoing edge of each
+	 * vertex, so this only matches the segments for linear tracks.
+	 *
+	 * @return a new list of lists of vertices.
+	 * @deprecated Use {@link #getSegmentMiddlePoints()}, which does not
+	 *             follow the segments.
+	 */
+	@Deprecated
 	public List< RefList< V > > getSegmentMiddles()
 	{
-		return segmentMiddles;
+		if ( middles.length == 0 )
+			return Collections.emptyList();
+
+		final List< RefList< V > > segments = new ArrayList<>( starts.length );
+		V current = graph.vertexRef();
+		V next = graph.vertexRef();
+		final E eref = graph.edgeRef();
+		for ( final int s : starts )
+		{
+			final RefList< V > segment = RefCollections.createRefList( vertices );
+			vertices.get( s, current );
+			while ( !current.outgoingEdges().isEmpty() )
+			{
+				current.outgoingEdges().get( 0, eref ).getTarget( next );
+				if ( next.outgoingEdges().isEmpty() )
+					break;
+				segment.add( next );
+				final V tmp = current;
+				current = next;
+				next = tmp;
+			}
+			segments.add( segment );
+		}
+		graph.releaseRef( current );
+		graph.releaseRef( next );
+		graph.releaseRef( eref );
+		return segments;
 	}
 
 	public RefList< V > getSegmentStarts()
 	{
-		return segmentStarts;
+		return toList( starts );
 	}
 
+	private RefList< V > toList( final int[] indices )
+	{
+		final RefList< V > list = RefCollections.createRefList( vertices, indices.length );
+		final V ref = vertices.createRef();
+		for ( final int i : indices )
+			list.add( vertices.get( i, ref ) );
+		vertices.releaseRef( ref );
+		return list;
+	}
 }
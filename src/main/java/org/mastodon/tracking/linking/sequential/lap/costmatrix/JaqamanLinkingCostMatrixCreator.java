@@ -29,25 +29,46 @@
 package org.mastodon.tracking.linking.sequential.lap.costmatrix;
 
 import java.util.Comparator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.mastodon.collection.RefCollection;
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPCostMatrix;
 import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
 import net.imagej.ops.special.function.AbstractNullaryFunctionOp;
 import net.imagej.ops.special.function.Functions;
+import net.imglib2.RealLocalizable;
 import net.imglib2.algorithm.Benchmark;
 
 /**
  * A {@link CostMatrixCreatorOp} that can generate a cost matrix from a list of
  * sources, a list of targets and a {@link CostFunction} that can generate a
  * cost for any combination.
+ * <p>
+ * If a search radius is specified, sources and targets must be
+ * {@link RealLocalizable}, and the cost function is only evaluated for the
+ * pairs closer than this radius. The pairs are found with a uniform grid built
+ * over the targets, instead of testing all the combinations. This is only
+ * correct if the cost function is never smaller than the square distance
+ * between source and target, as is the case for the cost functions of this
+ * package, and if the cost threshold is not larger than the square of the
+ * search radius.
+ * <p>
+ * If an {@link ExecutorService} is set, the sources are split in chunks whose
+ * costs are evaluated in parallel. The calling thread evaluates chunks too,
+ * and the chunk results are merged in order, so the cost matrix does not
+ * depend on the number of threads.
  *
  * @author Jean-Yves Tinevez - 2014
  *
@@ -58,12 +79,24 @@ import net.imglib2.algorithm.Benchmark;
  */
 @Plugin( type = CostMatrixCreatorOp.class )
 public class JaqamanLinkingCostMatrixCreator< K, J >
-		extends AbstractNullaryFunctionOp< SparseCostMatrix >
+		extends AbstractNullaryFunctionOp< LAPCostMatrix >
 		implements CostMatrixCreatorOp< K, J >, Benchmark
 {
 
 	private static final String BASE_ERROR_MSG = "[JaqamanLinkingCostMatrixCreator] ";
 
+	/**
+	 * The minimal number of cost evaluations in one task, when evaluating costs
+	 * in parallel.
+	 */
+	private static final int MIN_TASK_SIZE = 1 << 13;
+
+	/**
+	 * The typical number of candidate targets per source in a grid search,
+	 * used to size the tasks.
+	 */
+	private static final int GRID_CANDIDATES_PER_SOURCE = 8;
+
 	@Parameter( type = ItemIO.INPUT )
 	private  Iterable< K > sources;
 
@@ -94,6 +127,9 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 	@Parameter( type = ItemIO.INPUT )
 	private  Comparator< J > targetComparator;
 
+	@Parameter( type = ItemIO.INPUT, required = false )
+	private double searchRadius = Double.NaN;
+
 	@Parameter( type = ItemIO.OUTPUT)
 	private RefList< K > sourceList;
 
@@ -107,8 +143,27 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 
 	private String errorMessage;
 
+	private ExecutorService executorService;
+
+	/**
+	 * Sets the executor service used to evaluate costs in parallel. If
+	 * <code>null</code>, costs are evaluated sequentially in the calling
+	 * thread.
+	 * <p>
+	 * The calling thread takes part in the evaluation and only waits for the
+	 * chunks already started by other threads, so the executor service may be
+	 * the one running the caller.
+	 *
+	 * @param executorService
+	 *            the executor service, or <code>null</code>.
+	 */
+	public void setExecutorService( final ExecutorService executorService )
+	{
+		this.executorService = executorService;
+	}
+
 	@Override
-	public SparseCostMatrix calculate()
+	public LAPCostMatrix calculate()
 	{
 		final long start = System.currentTimeMillis();
 
@@ -123,25 +178,57 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 			return null;
 		}
 
-		final RefList< K > accSources = RefCollections.createRefList( sourcePool );
-		final RefList< J > accTargets = RefCollections.createRefList( targetPool );
-		final TDoubleArrayList costs = new TDoubleArrayList();
-
+		final RefList< K > sourceArray = RefCollections.createRefList( sourcePool );
 		for ( final K source : sources )
+			sourceArray.add( source );
+
+		// Only evaluate the pairs closer than the search radius, if any.
+		final CandidateGrid< J > grid;
+		final RefList< J > targetArray;
+		final long evaluationsPerSource;
+		if ( searchRadius > 0. && !Double.isInfinite( searchRadius ) )
+		{
+			grid = new CandidateGrid<>( targets, targetPool, searchRadius );
+			targetArray = null;
+			evaluationsPerSource = GRID_CANDIDATES_PER_SOURCE;
+		}
+		else
 		{
+			grid = null;
+			targetArray = RefCollections.createRefList( targetPool );
 			for ( final J target : targets )
-			{
+				targetArray.add( target );
+			evaluationsPerSource = targetArray.size();
+		}
 
-				final double cost = costFunction.linkingCost( source, target );
-				if ( cost < costThreshold )
-				{
-					accSources.add( source );
-					accTargets.add( target );
-					costs.add( cost );
-				}
+		final int nSources = sourceArray.size();
+		final int nThreads = null == executorService ? 1 : Runtime.getRuntime().availableProcessors();
+		final int nChunks = ( int ) Math.max( 1, Math.min( Math.min( 4L * nThreads, nSources ), evaluationsPerSource * nSources / MIN_TASK_SIZE ) );
+		final CostChunk[] chunks = evaluate( sourceArray, grid, targetArray, nChunks, Math.min( nChunks, nThreads ) );
+		if ( null == chunks )
+			return null;
+
+		// Merge chunks in order.
+		int nCosts = 0;
+		for ( final CostChunk chunk : chunks )
+			nCosts += chunk.costs.size();
+		final RefList< K > accSources = RefCollections.createRefList( sourcePool, nCosts );
+		final RefList< J > accTargets = RefCollections.createRefList( targetPool, nCosts );
+		final TDoubleArrayList costs = new TDoubleArrayList( nCosts );
+		final K sref = sourcePool.createRef();
+		final J tref = targetPool.createRef();
+		for ( final CostChunk chunk : chunks )
+		{
+			for ( int e = 0; e < chunk.costs.size(); e++ )
+			{
+				accSources.add( sourceArray.get( chunk.sources.getQuick( e ), sref ) );
+				final int t = chunk.targets.getQuick( e );
+				accTargets.add( null == grid ? targetArray.get( t, tref ) : grid.get( t, tref ) );
 			}
+			costs.addAll( chunk.costs );
 		}
-		costs.trimToSize();
+		sourcePool.releaseRef( sref );
+		targetPool.releaseRef( tref );
 
 		sourceList = RefCollections.createRefList( sourcePool );
 		targetList = RefCollections.createRefList( targetPool );
@@ -150,7 +237,7 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 		 * Check if accepted source or target lists are empty and deal with it.
 		 */
 
-		final SparseCostMatrix scm;
+		final LAPCostMatrix scm;
 		if ( accSources.isEmpty() || accTargets.isEmpty() )
 		{
 
@@ -165,7 +252,7 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 
 			@SuppressWarnings( "unchecked" )
 			final DefaultCostMatrixCreatorOp< K, J > cmCreator = ( DefaultCostMatrixCreatorOp< K, J > ) Functions.nullary( ops(),
-					DefaultCostMatrixCreatorOp.class, SparseCostMatrix.class,
+					DefaultCostMatrixCreatorOp.class, LAPCostMatrix.class,
 					accSources,
 					accTargets,
 					costs.toArray(),
@@ -190,6 +277,131 @@ public class JaqamanLinkingCostMatrixCreator< K, J >
 		return scm;
 	}
 
+	/**
+	 * Evaluates the costs of the sources split in the specified number of
+	 * chunks, using the specified number of threads including the calling
+	 * one. Returns <code>null</code> and sets the error message if an
+	 * evaluation failed, or if a chunk was not evaluated.
+	 */
+	private CostChunk[] evaluate( final RefList< K > sourceArray, final CandidateGrid< J > grid, final RefList< J > targetArray, final int nChunks, final int nThreads )
+	{
+		final int nSources = sourceArray.size();
+		final CostChunk[] chunks = new CostChunk[ nChunks ];
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch( nChunks );
+		final AtomicReference< Throwable > error = new AtomicReference<>();
+		final Runnable worker = () -> {
+			for ( int c = next.getAndIncrement(); c < nChunks; c = next.getAndIncrement() )
+			{
+				try
+				{
+					if ( null == error.get() )
+					{
+						final int from = ( int ) ( ( long ) c * nSources / nChunks );
+						final int to = ( int ) ( ( long ) ( c + 1 ) * nSources / nChunks );
+						chunks[ c ] = evaluate( sourceArray, grid, targetArray, from, to );
+					}
+				}
+				catch ( final Throwable e )
+				{
+					error.compareAndSet( null, e );
+				}
+				finally
+				{
+					done.countDown();
+				}
+			}
+		};
+
+		/*
+		 * Helpers that only start once all chunks have been taken return
+		 * immediately, so we only wait for the chunks in progress.
+		 */
+		for ( int t = 1; t < nThreads; t++ )
+			executorService.submit( worker );
+		worker.run();
+		try
+		{
+			done.await();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			errorMessage = BASE_ERROR_MSG + "Interrupted while evaluating costs.";
+			return null;
+		}
+
+		if ( null != error.get() )
+		{
+			errorMessage = BASE_ERROR_MSG + "Error evaluating costs: " + String.valueOf( error.get() );
+			return null;
+		}
+		for ( int c = 0; c < nChunks; c++ )
+		{
+			if ( null == chunks[ c ] )
+			{
+				errorMessage = BASE_ERROR_MSG + "The costs of chunk " + c + " were not evaluated.";
+				return null;
+			}
+		}
+		return chunks;
+	}
+
+	/**
+	 * Evaluates the costs of the sources <code>[from, to)</code> against their
+	 * candidate targets, and keeps those below the cost threshold.
+	 */
+	private CostChunk evaluate( final RefList< K > sourceArray, final CandidateGrid< J > grid, final RefList< J > targetArray, final int from, final int to )
+	{
+		final CostChunk chunk = new CostChunk();
+		final K sref = sourcePool.createRef();
+		final J tref = targetPool.createRef();
+		final TIntArrayList candidates = new TIntArrayList();
+		for ( int s = from; s < to; s++ )
+		{
+			final K source = sourceArray.get( s, sref );
+			final int nCandidates;
+			if ( null == grid )
+			{
+				nCandidates = targetArray.size();
+			}
+			else
+			{
+				grid.search( ( RealLocalizable ) source, candidates );
+				nCandidates = candidates.size();
+			}
+			for ( int i = 0; i < nCandidates; i++ )
+			{
+				final int t = null == grid ? i : candidates.getQuick( i );
+				final J target = null == grid ? targetArray.get( t, tref ) : grid.get( t, tref );
+				final double cost = costFunction.linkingCost( source, target );
+				if ( cost < costThreshold )
+				{
+					chunk.sources.add( s );
+					chunk.targets.add( t );
+					chunk.costs.add( cost );
+				}
+			}
+		}
+		sourcePool.releaseRef( sref );
+		targetPool.releaseRef( tref );
+		return chunk;
+	}
+
+	/**
+	 * The costs accepted for a chunk of sources, with the index of their
+	 * source and target.
+	 */
+	private static final class CostChunk
+	{
+
+		private final TIntArrayList sources = new TIntArrayList();
+
+		private final TIntArrayList targets = new TIntArrayList();
+
+		private final TDoubleArrayList costs = new TDoubleArrayList();
+	}
+
 	@Override
 	public String getErrorMessage()
 	{
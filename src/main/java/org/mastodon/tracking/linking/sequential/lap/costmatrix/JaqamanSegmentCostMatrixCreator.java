@@ -32,44 +32,60 @@ import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_GAP_CLOSING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_MERGING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALLOW_TRACK_SPLITTING;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_ALTERNATIVE_LINKING_COST_FACTOR;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_COMPACT_COST_MATRIX;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_CUTOFF_PERCENTILE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_GAP_CLOSING_MAX_FRAME_GAP;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_LAP_SOLVER;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_MERGING_MAX_DISTANCE;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_OUT_OF_CORE_COST_MATRIX;
+import static org.mastodon.tracking.linking.LinkerKeys.KEY_SEGMENT_LINKING_WINDOW;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_FEATURE_PENALTIES;
 import static org.mastodon.tracking.linking.LinkerKeys.KEY_SPLITTING_MAX_DISTANCE;
 import static org.mastodon.tracking.linking.LinkingUtils.checkFeatureMap;
 import static org.mastodon.tracking.linking.LinkingUtils.checkMapKeys;
 import static org.mastodon.tracking.linking.LinkingUtils.checkParameter;
 
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefIntMap;
 import org.mastodon.collection.RefList;
+import org.mastodon.collection.RefSet;
 import org.mastodon.feature.FeatureModel;
 import org.mastodon.feature.FeatureProjectionKey;
 import org.mastodon.graph.Edge;
 import org.mastodon.graph.ReadOnlyGraph;
 import org.mastodon.graph.Vertex;
 import org.mastodon.spatial.HasTimepoint;
+import org.mastodon.tracking.linking.LinkingProgress;
 import org.mastodon.tracking.linking.LinkingUtils;
 import org.mastodon.tracking.linking.sequential.lap.costfunction.CostFunction;
+import org.mastodon.tracking.linking.sequential.lap.linker.LAPCostMatrix;
+import org.mastodon.tracking.linking.sequential.lap.linker.MappedSparseCostMatrix;
 import org.mastodon.tracking.linking.sequential.lap.linker.SparseCostMatrix;
 import org.scijava.ItemIO;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
 
+import gnu.trove.iterator.TIntObjectIterator;
 import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import net.imagej.ops.special.function.AbstractNullaryFunctionOp;
 import net.imagej.ops.special.function.Functions;
 import net.imglib2.RealLocalizable;
 import net.imglib2.algorithm.Benchmark;
+import net.imglib2.util.Util;
 
 /**
  * This class generates the top-left quadrant of the LAP segment linking cost
@@ -85,6 +101,19 @@ import net.imglib2.algorithm.Benchmark;
  * non-infinite costs.
  * <li>Costs are based on square distance +/- feature penalties.
  * </ul>
+ * <p>
+ * Segment starts and middle points are bucketed by time-point, with a
+ * {@link CandidateGrid} per time-point, so that only the targets in the frames
+ * a source can link to, and within the max distance, are evaluated. Like for
+ * frame-to-frame linking, this relies on costs never being smaller than the
+ * square distance.
+ * <p>
+ * If the {@link org.mastodon.tracking.linking.LinkerKeys#KEY_OUT_OF_CORE_COST_MATRIX}
+ * setting is <code>true</code>, the matrix is written row by row to a
+ * {@link MappedSparseCostMatrix} while the candidates are generated, so that
+ * neither the matrix nor the candidate list are held on the heap. The
+ * percentile used for the alternative cost is then estimated on a random
+ * sample of the costs.
  *
  * @author Jean-Yves Tinevez - 2014 - 2017
  * @param <V>
@@ -95,12 +124,23 @@ import net.imglib2.algorithm.Benchmark;
  */
 @Plugin( type = JaqamanSegmentCostMatrixCreator.class )
 public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoint & RealLocalizable, E extends Edge< V > >
-		extends AbstractNullaryFunctionOp< SparseCostMatrix >
+		extends AbstractNullaryFunctionOp< LAPCostMatrix >
 		implements CostMatrixCreatorOp< V, V >, Benchmark
 {
 
 	private static String BASE_ERROR_MESSAGE = "[JaqamanSegmentCostMatrixCreator] ";
 
+	/**
+	 * Number of sources between two checks for cancellation.
+	 */
+	private static final int CHECK_INTERVAL = 1024;
+
+	/**
+	 * Part of the progress spent generating candidates, the rest being spent
+	 * assembling the matrix.
+	 */
+	private static final double CANDIDATES_PROGRESS = 0.7;
+
 	@Parameter( type = ItemIO.INPUT )
 	private ReadOnlyGraph< V, E > graph;
 
@@ -117,6 +157,20 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 
 	private long processingTime;
 
+	private ExecutorService executorService;
+
+	private RefList< V > givenEnds;
+
+	private RefList< V > givenStarts;
+
+	private RefList< V > givenSplittingMiddles;
+
+	private RefList< V > givenMergingMiddles;
+
+	private RefSet< V > excludedTargets;
+
+	private LinkingProgress progress = LinkingProgress.NONE;
+
 	@Parameter( type = ItemIO.OUTPUT )
 	private RefList< V > uniqueSources;
 
@@ -126,8 +180,88 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 	@Parameter( type = ItemIO.OUTPUT )
 	private double alternativeCost = -1;
 
+	/**
+	 * Sets the executor service used to find segments in parallel. If
+	 * <code>null</code>, segments are found in the calling thread.
+	 *
+	 * @param executorService
+	 *            the executor service, or <code>null</code>.
+	 */
+	public void setExecutorService( final ExecutorService executorService )
+	{
+		this.executorService = executorService;
+	}
+
+	/**
+	 * Sets the segment ends, starts and middle points to link. If not set,
+	 * they are found by splitting the whole graph in segments. This allows
+	 * for linking only a subset of the segments, for instance the ones in a
+	 * time window.
+	 *
+	 * @param ends
+	 *            the segment ends.
+	 * @param starts
+	 *            the segment starts.
+	 * @param middles
+	 *            the segment middle points. Only used if merging or splitting
+	 *            is allowed.
+	 */
+	public void setSegments( final RefList< V > ends, final RefList< V > starts, final RefList< V > middles )
+	{
+		setSegments( ends, starts, middles, middles );
+	}
+
+	/**
+	 * Sets the segment ends, starts and middle points to link, with
+	 * different middle points as sources for splitting and as targets for
+	 * merging.
+	 *
+	 * @param ends
+	 *            the segment ends.
+	 * @param starts
+	 *            the segment starts.
+	 * @param splittingMiddles
+	 *            the segment middle points that can split. Only used if
+	 *            splitting is allowed.
+	 * @param mergingMiddles
+	 *            the segment middle points that can be merged into. Only used
+	 *            if merging is allowed.
+	 */
+	public void setSegments( final RefList< V > ends, final RefList< V > starts, final RefList< V > splittingMiddles, final RefList< V > mergingMiddles )
+	{
+		this.givenEnds = ends;
+		this.givenStarts = starts;
+		this.givenSplittingMiddles = splittingMiddles;
+		this.givenMergingMiddles = mergingMiddles;
+	}
+
+	/**
+	 * Sets the vertices that cannot be targeted by a link, because they
+	 * already received one.
+	 *
+	 * @param excludedTargets
+	 *            the excluded targets, or <code>null</code>.
+	 */
+	public void setExcludedTargets( final RefSet< V > excludedTargets )
+	{
+		this.excludedTargets = excludedTargets;
+	}
+
+	/**
+	 * Sets the token through which progress is reported and cancellation is
+	 * checked, while candidates are generated and while the matrix is
+	 * assembled.
+	 *
+	 * @param progress
+	 *            the progress token.
+	 */
+	public void setProgress( final LinkingProgress progress )
+	{
+		this.progress = null == progress ? LinkingProgress.NONE : progress;
+	}
+
 	@Override
-	public SparseCostMatrix calculate()
+	public LAPCostMatrix calculate()
 	{
 		final long start = System.currentTimeMillis();
 
@@ -173,6 +307,10 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		final double alternativeCostFactor = ( Double ) settings.get( KEY_ALTERNATIVE_LINKING_COST_FACTOR );
 		final double percentile = ( Double ) settings.get( KEY_CUTOFF_PERCENTILE );
 
+		// Storage
+		final boolean compact = null != settings.get( KEY_COMPACT_COST_MATRIX ) && ( Boolean ) settings.get( KEY_COMPACT_COST_MATRIX );
+		final boolean outOfCore = null != settings.get( KEY_OUT_OF_CORE_COST_MATRIX ) && ( Boolean ) settings.get( KEY_OUT_OF_CORE_COST_MATRIX );
+
 		uniqueSources = RefCollections.createRefList( graph.vertices() );
 		uniqueTargets = RefCollections.createRefList( graph.vertices() );
 
@@ -186,96 +324,87 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 
 		final boolean mergingOrSplitting = allowMerging || allowSplitting;
 
-		final GraphSegmentSplitter< V, E > segmentSplitter = new GraphSegmentSplitter< V, E >( graph, mergingOrSplitting );
-		final RefList< V > segmentEnds = segmentSplitter.getSegmentEnds();
-		final RefList< V > segmentStarts = segmentSplitter.getSegmentStarts();
-
-		/*
-		 * Generate all middle points list. We have to sort it by the same order
-		 * we will sort the unique list of targets, otherwise the SCM will
-		 * complains it does not receive columns in the right order.
-		 */
-		final List< V > allMiddles;
-		if ( mergingOrSplitting )
+		final RefList< V > segmentEnds;
+		final RefList< V > segmentStarts;
+		final RefList< V > splittingMiddles;
+		final RefList< V > mergingMiddles;
+		if ( null == givenEnds )
 		{
-			final List< RefList< V > > segmentMiddles = segmentSplitter.getSegmentMiddles();
-			allMiddles = new ArrayList< V >();
-			for ( final RefList< V > segment : segmentMiddles )
-				allMiddles.addAll( segment );
+			final GraphSegmentSplitter< V, E > segmentSplitter = new GraphSegmentSplitter< V, E >( graph, mergingOrSplitting, executorService );
+			segmentEnds = segmentSplitter.getSegmentEnds();
+			segmentStarts = segmentSplitter.getSegmentStarts();
+			splittingMiddles = segmentSplitter.getSegmentMiddlePoints();
+			mergingMiddles = splittingMiddles;
 		}
 		else
 		{
-			allMiddles = Collections.emptyList();
+			segmentEnds = givenEnds;
+			segmentStarts = givenStarts;
+			splittingMiddles = allowSplitting ? givenSplittingMiddles : RefCollections.createRefList( graph.vertices() );
+			mergingMiddles = allowMerging ? givenMergingMiddles : RefCollections.createRefList( graph.vertices() );
+		}
+
+		/*
+		 * Candidate targets are bucketed by time-point, with a spatial grid
+		 * per time-point, so that a source only inspects the targets in the
+		 * frames it can link to and within the max distance.
+		 */
+		final TIntObjectHashMap< CandidateGrid< V > > gcGrids = allowGapClosing ? gridsByTimepoint( segmentStarts, gcMaxDistance ) : null;
+		final TIntObjectHashMap< CandidateGrid< V > > mGrids = allowMerging ? gridsByTimepoint( mergingMiddles, mMaxDistance ) : null;
+		final TIntObjectHashMap< CandidateGrid< V > > sGrids = allowSplitting ? gridsByTimepoint( segmentStarts, sMaxDistance ) : null;
+
+		if ( outOfCore )
+		{
+			final MappedSparseCostMatrix mapped = writeMappedMatrix( segmentEnds, segmentStarts, splittingMiddles, mergingMiddles,
+					gcGrids, gcCostFunction, gcCostThreshold, maxFrameInterval,
+					mGrids, mCostFunction, mCostThreshold,
+					sGrids, sCostFunction, sCostThreshold,
+					alternativeCostFactor, percentile );
+			if ( null != mapped )
+				progress.progress( 1. );
+			final long end = System.currentTimeMillis();
+			processingTime = end - start;
+			return mapped;
 		}
 
 		/*
 		 * Sources and targets.
 		 */
-		final List< V > sources = RefCollections.createRefList( graph.vertices() );
-		final List< V > targets = RefCollections.createRefList( graph.vertices() );
+		final RefList< V > sources = RefCollections.createRefList( graph.vertices() );
+		final RefList< V > targets = RefCollections.createRefList( graph.vertices() );
 		// Corresponding costs.
 		final TDoubleArrayList linkCosts = new TDoubleArrayList();
 
+		final TIntArrayList buffer = new TIntArrayList();
+		final V ref = graph.vertexRef();
+
 		/*
 		 * A. We iterate over all segment ends, targeting 1st the segment starts
 		 * (gap-closing) then the segment middles (merging).
 		 */
 
+		final int nSources = segmentEnds.size() + ( allowSplitting ? splittingMiddles.size() : 0 );
+		int nDone = 0;
 		for ( final V source : segmentEnds )
 		{
-			final int sourceFrame = source.getTimepoint();
-
-			/*
-			 * Iterate over segment starts - GAP-CLOSING.
-			 */
-
-			if ( allowGapClosing )
+			if ( ++nDone % CHECK_INTERVAL == 0 && canceled( nDone, nSources ) )
 			{
-				for ( final V target : segmentStarts )
-				{
-					// Check frame interval, must be within user
-					// specification.
-					final int targetFrame = target.getTimepoint();
-					final int tdiff = targetFrame - sourceFrame;
-					if ( tdiff < 1 || tdiff > maxFrameInterval )
-						continue;
-
-					// Check max distance
-					final double cost = gcCostFunction.linkingCost( source, target );
-					if ( cost > gcCostThreshold )
-						continue;
-
-					sources.add( source );
-					targets.add( target );
-					linkCosts.add( cost );
-				}
-
+				graph.releaseRef( ref );
+				return null;
 			}
+			final int sourceFrame = source.getTimepoint();
+			final int n0 = targets.size();
 
-			/*
-			 * Iterate over middle points - MERGING.
-			 */
+			// Segment starts - GAP-CLOSING.
+			if ( allowGapClosing )
+				addCandidates( source, gcGrids, sourceFrame + 1, sourceFrame + maxFrameInterval, gcCostFunction, gcCostThreshold, buffer, ref, targets, linkCosts );
 
+			// Middle points - MERGING.
 			if ( allowMerging )
-			{
-				for ( final V target : allMiddles )
-				{
-					// Check frame interval, must be 1.
-					final int targetFrame = target.getTimepoint();
-					final int tdiff = targetFrame - sourceFrame;
-					if ( tdiff != 1 )
-						continue;
-
-					// Check max distance
-					final double cost = mCostFunction.linkingCost( source, target );
-					if ( cost > mCostThreshold )
-						continue;
+				addCandidates( source, mGrids, sourceFrame + 1, sourceFrame + 1, mCostFunction, mCostThreshold, buffer, ref, targets, linkCosts );
 
-					sources.add( source );
-					targets.add( target );
-					linkCosts.add( cost );
-				}
-			}
+			for ( int k = n0; k < targets.size(); k++ )
+				sources.add( source );
 		}
 
 		/*
@@ -283,37 +412,28 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		 */
 		if ( allowSplitting )
 		{
-			for ( final V source : allMiddles )
+			for ( final V source : splittingMiddles )
 			{
-
-				final int sourceFrame = source.getTimepoint();
-				for ( final V target : segmentStarts )
+				if ( ++nDone % CHECK_INTERVAL == 0 && canceled( nDone, nSources ) )
 				{
-
-					// Check frame interval, must be 1.
-					final int targetFrame = target.getTimepoint();
-					final int tdiff = targetFrame - sourceFrame;
-					if ( tdiff != 1 )
-						continue;
-
-					// Check max distance
-					final double cost = sCostFunction.linkingCost( source, target );
-					if ( cost > sCostThreshold )
-						continue;
-
-					sources.add( source );
-					targets.add( target );
-					linkCosts.add( cost );
+					graph.releaseRef( ref );
+					return null;
 				}
+				final int sourceFrame = source.getTimepoint();
+				final int n0 = targets.size();
+				addCandidates( source, sGrids, sourceFrame + 1, sourceFrame + 1, sCostFunction, sCostThreshold, buffer, ref, targets, linkCosts );
+				for ( int k = n0; k < targets.size(); k++ )
+					sources.add( source );
 			}
 		}
+		graph.releaseRef( ref );
 
 		/*
 		 * Build a sparse cost matrix from this. If the accepted costs are not
 		 * empty.
 		 */
 
-		final SparseCostMatrix scm;
+		final LAPCostMatrix scm;
 		if ( sources.isEmpty() || targets.isEmpty() )
 		{
 
@@ -330,14 +450,16 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		{
 			@SuppressWarnings( "unchecked" )
 			final DefaultCostMatrixCreatorOp< V, V > creator = ( DefaultCostMatrixCreatorOp< V, V > ) Functions.nullary( ops(),
-					DefaultCostMatrixCreatorOp.class, SparseCostMatrix.class,
+					DefaultCostMatrixCreatorOp.class, LAPCostMatrix.class,
 					sources,
 					targets,
 					linkCosts.toArray(),
 					alternativeCostFactor,
 					percentile,
 					spotComparator,
-					spotComparator );
+					spotComparator,
+					compact );
+			creator.setProgress( progress.sub( CANDIDATES_PROGRESS, 1. ) );
 			scm = creator.calculate();
 			if ( null == scm )
 			{
@@ -357,6 +479,235 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		return scm;
 	}
 
+	/**
+	 * Generates the candidates row by row, in the order of the sorted
+	 * sources, and writes them in a memory-mapped matrix.
+	 */
+	private MappedSparseCostMatrix writeMappedMatrix( final RefList< V > segmentEnds, final RefList< V > segmentStarts,
+			final RefList< V > splittingMiddles, final RefList< V > mergingMiddles,
+			final TIntObjectHashMap< CandidateGrid< V > > gcGrids, final CostFunction< V, V > gcCostFunction, final double gcCostThreshold, final int maxFrameInterval,
+			final TIntObjectHashMap< CandidateGrid< V > > mGrids, final CostFunction< V, V > mCostFunction, final double mCostThreshold,
+			final TIntObjectHashMap< CandidateGrid< V > > sGrids, final CostFunction< V, V > sCostFunction, final double sCostThreshold,
+			final double alternativeCostFactor, final double percentile )
+	{
+		final boolean allowGapClosing = null != gcGrids;
+		final boolean allowMerging = null != mGrids;
+		final boolean allowSplitting = null != sGrids;
+
+		// Rows: segment ends, and middles if splitting.
+		final RefList< V > rows = RefCollections.createRefList( graph.vertices() );
+		rows.addAll( segmentEnds );
+		if ( allowSplitting )
+			rows.addAll( splittingMiddles );
+		rows.sort( spotComparator );
+		final RefSet< V > ends = RefCollections.createRefSet( graph.vertices(), segmentEnds.size() );
+		ends.addAll( segmentEnds );
+
+		// Columns: segment starts, and middles if merging.
+		final RefList< V > cols = RefCollections.createRefList( graph.vertices() );
+		if ( allowGapClosing || allowSplitting )
+			cols.addAll( segmentStarts );
+		if ( allowMerging )
+			cols.addAll( mergingMiddles );
+		cols.sort( spotComparator );
+		final int nCols = cols.size();
+		final RefIntMap< V > colIndex = RefCollections.createRefIntMap( graph.vertices(), -1, nCols );
+		final V cref = graph.vertexRef();
+		for ( int j = 0; j < nCols; j++ )
+			colIndex.put( cols.get( j, cref ), j );
+
+		// Random sample of the costs, to estimate the percentile.
+		final int maxSamples = 1 << 20;
+		final double[] samples = new double[ maxSamples ];
+		final Random ran = new Random( 1l );
+		long nCosts = 0;
+		double maxCost = Double.NEGATIVE_INFINITY;
+
+		final V rref = graph.vertexRef();
+		final int[] rowCols = new int[ nCols ];
+		final double[] rowCosts = new double[ nCols ];
+		final RefList< V > found = RefCollections.createRefList( graph.vertices() );
+		final TDoubleArrayList foundCosts = new TDoubleArrayList();
+		final TIntArrayList buffer = new TIntArrayList();
+		final MappedSparseCostMatrix mapped;
+		try
+		{
+			final MappedSparseCostMatrix.Writer writer = new MappedSparseCostMatrix.Writer( nCols, null );
+			for ( int i = 0; i < rows.size(); i++ )
+			{
+				if ( ( i + 1 ) % CHECK_INTERVAL == 0 && canceled( i + 1, rows.size() ) )
+				{
+					writer.discard();
+					return null;
+				}
+				final V source = rows.get( i, rref );
+				final int sourceFrame = source.getTimepoint();
+				found.clear();
+				foundCosts.resetQuick();
+				if ( ends.contains( source ) )
+				{
+					// Gap-closing.
+					if ( allowGapClosing )
+						addCandidates( source, gcGrids, sourceFrame + 1, sourceFrame + maxFrameInterval, gcCostFunction, gcCostThreshold, buffer, cref, found, foundCosts );
+					// Merging.
+					if ( allowMerging )
+						addCandidates( source, mGrids, sourceFrame + 1, sourceFrame + 1, mCostFunction, mCostThreshold, buffer, cref, found, foundCosts );
+				}
+				else
+				{
+					// Splitting.
+					addCandidates( source, sGrids, sourceFrame + 1, sourceFrame + 1, sCostFunction, sCostThreshold, buffer, cref, found, foundCosts );
+				}
+
+				final int n = found.size();
+				for ( int k = 0; k < n; k++ )
+				{
+					rowCols[ k ] = colIndex.get( found.get( k, cref ) );
+					rowCosts[ k ] = foundCosts.getQuick( k );
+				}
+				sortRow( rowCols, rowCosts, n );
+
+				for ( int k = 0; k < n; k++ )
+				{
+					final double cost = rowCosts[ k ];
+					maxCost = Math.max( maxCost, cost );
+					// Reservoir sampling.
+					if ( nCosts < maxSamples )
+						samples[ ( int ) nCosts ] = cost;
+					else
+					{
+						final long r = ( long ) ( ran.nextDouble() * ( nCosts + 1 ) );
+						if ( r < maxSamples )
+							samples[ ( int ) r ] = cost;
+					}
+					nCosts++;
+				}
+				writer.addRow( rowCols, rowCosts, n );
+			}
+			mapped = writer.build();
+
+			uniqueSources.clear();
+			for ( final int i : writer.getKeptRows() )
+				uniqueSources.add( rows.get( i, rref ) );
+			uniqueTargets.clear();
+			for ( final int j : writer.getKeptColumns() )
+				uniqueTargets.add( cols.get( j, cref ) );
+		}
+		catch ( final IOException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Could not write the cost matrix to disk: " + e.getMessage();
+			return null;
+		}
+		finally
+		{
+			graph.releaseRef( cref );
+			graph.releaseRef( rref );
+		}
+
+		if ( nCosts == 0 )
+			alternativeCost = Double.NaN;
+		else if ( percentile == 1 )
+			alternativeCost = alternativeCostFactor * maxCost;
+		else
+			alternativeCost = alternativeCostFactor * Util.percentile( Arrays.copyOf( samples, ( int ) Math.min( nCosts, maxSamples ) ), percentile );
+		return mapped;
+	}
+
+	/**
+	 * Groups the specified vertices by time-point, and builds a candidate grid
+	 * with the specified search radius over each group. Excluded targets are
+	 * left out.
+	 */
+	private TIntObjectHashMap< CandidateGrid< V > > gridsByTimepoint( final Iterable< V > vertices, final double radius )
+	{
+		final TIntObjectHashMap< RefList< V > > timepointToVertices = new TIntObjectHashMap<>();
+		for ( final V v : vertices )
+		{
+			if ( null != excludedTargets && excludedTargets.contains( v ) )
+				continue;
+			RefList< V > vs = timepointToVertices.get( v.getTimepoint() );
+			if ( vs == null )
+			{
+				vs = RefCollections.createRefList( graph.vertices() );
+				timepointToVertices.put( v.getTimepoint(), vs );
+			}
+			vs.add( v );
+		}
+
+		final TIntObjectHashMap< CandidateGrid< V > > grids = new TIntObjectHashMap<>( timepointToVertices.size() );
+		final TIntObjectIterator< RefList< V > > it = timepointToVertices.iterator();
+		while ( it.hasNext() )
+		{
+			it.advance();
+			grids.put( it.key(), new CandidateGrid<>( it.value(), graph.vertices(), radius ) );
+		}
+		return grids;
+	}
+
+	/**
+	 * Appends to the specified lists the targets of the grids of time-points
+	 * <code>[fromTimepoint, toTimepoint]</code> that the source can link to,
+	 * with their cost.
+	 */
+	private static < V extends RealLocalizable > void addCandidates( final V source, final TIntObjectHashMap< CandidateGrid< V > > grids, final int fromTimepoint, final int toTimepoint,
+			final CostFunction< V, V > costFunction, final double costThreshold, final TIntArrayList buffer, final V ref,
+			final RefList< V > targets, final TDoubleArrayList costs )
+	{
+		for ( int t = fromTimepoint; t <= toTimepoint; t++ )
+		{
+			final CandidateGrid< V > grid = grids.get( t );
+			if ( null == grid )
+				continue;
+
+			grid.search( source, buffer );
+			for ( int k = 0; k < buffer.size(); k++ )
+			{
+				final V target = grid.get( buffer.getQuick( k ), ref );
+				final double cost = costFunction.linkingCost( source, target );
+				if ( cost > costThreshold )
+					continue;
+
+				targets.add( target );
+				costs.add( cost );
+			}
+		}
+	}
+
+	/**
+	 * Reports the progress of candidate generation, and returns whether the
+	 * process was canceled, setting the error message if it was.
+	 */
+	private boolean canceled( final int nDone, final int nSources )
+	{
+		progress.progress( CANDIDATES_PROGRESS * nDone / nSources );
+		if ( !progress.isCanceled() )
+			return false;
+		errorMessage = BASE_ERROR_MESSAGE + "Canceled.";
+		return true;
+	}
+
+	/**
+	 * Sorts the first <code>n</code> columns of a row in increasing order,
+	 * with their costs. Rows are short, so we use an insertion sort.
+	 */
+	private static void sortRow( final int[] cols, final double[] costs, final int n )
+	{
+		for ( int k = 1; k < n; k++ )
+		{
+			final int j = cols[ k ];
+			final double c = costs[ k ];
+			int l = k - 1;
+			while ( l >= 0 && cols[ l ] > j )
+			{
+				cols[ l + 1 ] = cols[ l ];
+				costs[ l + 1 ] = costs[ l ];
+				l--;
+			}
+			cols[ l + 1 ] = j;
+			costs[ l + 1 ] = c;
+		}
+	}
+
 	@Override
 	public RefList< V > getSourceList()
 	{
@@ -418,6 +769,10 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		// Others
 		ok = ok & checkParameter( settings, KEY_ALTERNATIVE_LINKING_COST_FACTOR, Double.class, str );
 		ok = ok & checkParameter( settings, KEY_CUTOFF_PERCENTILE, Double.class, str );
+		if ( null != settings.get( KEY_COMPACT_COST_MATRIX ) )
+			ok = ok & checkParameter( settings, KEY_COMPACT_COST_MATRIX, Boolean.class, str );
+		if ( null != settings.get( KEY_OUT_OF_CORE_COST_MATRIX ) )
+			ok = ok & checkParameter( settings, KEY_OUT_OF_CORE_COST_MATRIX, Boolean.class, str );
 
 		// Check keys
 		final List< String > mandatoryKeys = new ArrayList< String >();
@@ -434,6 +789,10 @@ public class JaqamanSegmentCostMatrixCreator< V extends Vertex< E > & HasTimepoi
 		optionalKeys.add( KEY_GAP_CLOSING_FEATURE_PENALTIES );
 		optionalKeys.add( KEY_SPLITTING_FEATURE_PENALTIES );
 		optionalKeys.add( KEY_MERGING_FEATURE_PENALTIES );
+		optionalKeys.add( KEY_LAP_SOLVER );
+		optionalKeys.add( KEY_COMPACT_COST_MATRIX );
+		optionalKeys.add( KEY_OUT_OF_CORE_COST_MATRIX );
+		optionalKeys.add( KEY_SEGMENT_LINKING_WINDOW );
 		ok = ok & checkMapKeys( settings, mandatoryKeys, optionalKeys, str );
 
 		return ok;
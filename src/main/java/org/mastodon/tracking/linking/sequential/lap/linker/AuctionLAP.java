@@ -0,0 +1,414 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.mastodon.tracking.linking.LinkingProgress;
+
+/**
+ * Solves square linear assignment problems with the auction algorithm of
+ * Bertsekas, with epsilon scaling.
+ * <p>
+ * Rows bid for columns, raising column prices, until every row holds a
+ * column. Bids are made in Jacobi rounds: all the unassigned rows bid against
+ * the same prices, then each column goes to its highest bidder. The bids of a
+ * round are independent, so they are computed in parallel when an
+ * {@link ExecutorService} is specified and there are enough of them.
+ * <p>
+ * The auction is repeated with decreasing values of epsilon, the minimal bid
+ * increment, reusing the prices of the previous pass. The assignment is
+ * epsilon-optimal: its total cost is within <code>n &times; epsilon</code> of
+ * the optimum, where the final epsilon is set so that this bound is a
+ * negligible fraction of the spread of the costs.
+ * <p>
+ * The auction algorithm is fast on dense problems where the costs have a
+ * small spread. It requires the matrix to be square and to have a complete
+ * assignment, which is always the case for the matrices of the Jaqaman
+ * framework.
+ * <p>
+ * The column duals are the opposite of the column prices. The auction can be
+ * warm-started from the duals of a similar problem, which are then used as
+ * initial prices.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class AuctionLAP implements LAPSolver
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[AuctionLAP] ";
+
+	/** Factor by which epsilon is decreased between two passes. */
+	private static final double EPSILON_SCALING = 5.;
+
+	/** Final epsilon times the number of rows, relative to the cost spread. */
+	private static final double FINAL_EPSILON = 1e-9;
+
+	/**
+	 * Bound on the column prices, relative to the cost spread and the number
+	 * of rows, used to detect matrices without a complete assignment.
+	 */
+	private static final double MAX_PRICE_FACTOR = 100.;
+
+	/** Minimal number of bids per task when bidding in parallel. */
+	private static final int MIN_BIDS_PER_TASK = 4096;
+
+	private final LAPCostMatrix cm;
+
+	private final ExecutorService executorService;
+
+	private final double[] initialDuals;
+
+	private int[] output;
+
+	private double[] duals;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private LinkingProgress progress = LinkingProgress.NONE;
+
+	/**
+	 * Instantiates a new auction solver for the specified cost matrix.
+	 *
+	 * @param cm
+	 *            the cost matrix of the linear assignment problem to solve.
+	 */
+	public AuctionLAP( final LAPCostMatrix cm )
+	{
+		this( cm, null );
+	}
+
+	/**
+	 * Instantiates a new auction solver for the specified cost matrix.
+	 *
+	 * @param cm
+	 *            the cost matrix of the linear assignment problem to solve.
+	 * @param executorService
+	 *            the executor service used to compute bids in parallel. If
+	 *            <code>null</code>, bids are computed in the calling thread.
+	 */
+	public AuctionLAP( final LAPCostMatrix cm, final ExecutorService executorService )
+	{
+		this( cm, executorService, null );
+	}
+
+	/**
+	 * Instantiates a new auction solver for the specified cost matrix,
+	 * warm-started from the specified column duals.
+	 *
+	 * @param cm
+	 *            the cost matrix of the linear assignment problem to solve.
+	 * @param executorService
+	 *            the executor service used to compute bids in parallel. If
+	 *            <code>null</code>, bids are computed in the calling thread.
+	 * @param columnDuals
+	 *            the initial column duals, one per column. If
+	 *            <code>null</code>, all prices start at 0.
+	 */
+	public AuctionLAP( final LAPCostMatrix cm, final ExecutorService executorService, final double[] columnDuals )
+	{
+		this.cm = cm;
+		this.executorService = executorService;
+		this.initialDuals = columnDuals;
+	}
+
+	/**
+	 * Sets the token through which progress is reported and cancellation is
+	 * checked, at each bidding round. Progress is
+	 * the fraction of the epsilon-scaling passes done, refined by the fraction
+	 * of rows assigned in the current pass.
+	 */
+	@Override
+	public void setProgress( final LinkingProgress progress )
+	{
+		this.progress = null == progress ? LinkingProgress.NONE : progress;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( cm.getNRows() != cm.getNCols() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "This solver only accepts square cost matrices. Found " + cm.getNRows() + " rows and " + cm.getNCols() + " columns.";
+			return false;
+		}
+		if ( null != initialDuals && initialDuals.length != cm.getNCols() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The initial duals must have one element per column. Found " + initialDuals.length + " for " + cm.getNCols() + " columns.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final int n = cm.getNRows();
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		for ( int i = 0; i < n; i++ )
+		{
+			final int size = cm.rowSize( i );
+			if ( size == 0 )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Row " + i + " cannot be assigned.";
+				return false;
+			}
+			for ( int k = 0; k < size; k++ )
+			{
+				final double c = cm.cost( i, k );
+				min = Math.min( min, c );
+				max = Math.max( max, c );
+			}
+		}
+		final double spread = ( max > min ) ? max - min : Math.max( 1., Math.abs( max ) );
+		final double finalEpsilon = spread * FINAL_EPSILON / ( n + 1 );
+		// Prices beyond this bound mean that there is no complete assignment.
+		final double maxPrice = MAX_PRICE_FACTOR * ( n + 1 ) * spread;
+
+		final double[] prices = new double[ n ];
+		if ( null != initialDuals )
+		{
+			// Prices are defined up to a constant: start from 0.
+			double maxDual = Double.NEGATIVE_INFINITY;
+			for ( int j = 0; j < n; j++ )
+				maxDual = Math.max( maxDual, initialDuals[ j ] );
+			for ( int j = 0; j < n; j++ )
+				prices[ j ] = maxDual - initialDuals[ j ];
+		}
+		final int[] x = new int[ n ];
+		final int[] y = new int[ n ];
+		double epsilon = Math.max( spread / EPSILON_SCALING, finalEpsilon );
+		final int nPasses = 1 + ( int ) Math.ceil( Math.log( epsilon / finalEpsilon ) / Math.log( EPSILON_SCALING ) );
+		int pass = 0;
+		while ( true )
+		{
+			if ( !auction( prices, x, y, epsilon, spread, maxPrice, pass++, nPasses ) )
+				return false;
+			if ( epsilon <= finalEpsilon )
+				break;
+			epsilon = Math.max( epsilon / EPSILON_SCALING, finalEpsilon );
+		}
+		progress.progress( 1. );
+
+		this.output = x;
+		this.duals = new double[ n ];
+		for ( int j = 0; j < n; j++ )
+			duals[ j ] = -prices[ j ];
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	/**
+	 * Runs one auction pass with the specified epsilon, starting from all rows
+	 * unassigned and from the specified prices. The pass index and the number
+	 * of passes are used to report progress.
+	 */
+	private boolean auction( final double[] prices, final int[] x, final int[] y, final double epsilon, final double spread, final double maxPrice, final int pass, final int nPasses )
+	{
+		final int n = x.length;
+		Arrays.fill( x, -1 );
+		Arrays.fill( y, -1 );
+		int[] free = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+			free[ i ] = i;
+		int nFree = n;
+
+		final int[] bidCol = new int[ n ];
+		final double[] bidPrice = new double[ n ];
+		final double[] bestBid = new double[ n ];
+		final int[] bestBidder = new int[ n ];
+		final int[] round = new int[ n ];
+		final int[] bidCols = new int[ n ];
+		int[] nextFree = new int[ n ];
+		int r = 0;
+
+		while ( nFree > 0 )
+		{
+			if ( progress.isCanceled() )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Canceled.";
+				return false;
+			}
+			progress.progress( Math.min( 1., ( pass + ( double ) ( n - nFree ) / n ) / nPasses ) );
+			r++;
+			if ( !bid( free, nFree, prices, epsilon, spread, bidCol, bidPrice ) )
+				return false;
+
+			// Each column goes to its highest bidder.
+			int nCols = 0;
+			for ( int f = 0; f < nFree; f++ )
+			{
+				final int j = bidCol[ f ];
+				if ( round[ j ] != r )
+				{
+					round[ j ] = r;
+					bestBid[ j ] = bidPrice[ f ];
+					bestBidder[ j ] = free[ f ];
+					bidCols[ nCols++ ] = j;
+				}
+				else if ( bidPrice[ f ] > bestBid[ j ] )
+				{
+					bestBid[ j ] = bidPrice[ f ];
+					bestBidder[ j ] = free[ f ];
+				}
+			}
+
+			int nNextFree = 0;
+			for ( int f = 0; f < nFree; f++ )
+			{
+				final int i = free[ f ];
+				if ( bestBidder[ bidCol[ f ] ] != i )
+					nextFree[ nNextFree++ ] = i;
+			}
+			for ( int c = 0; c < nCols; c++ )
+			{
+				final int j = bidCols[ c ];
+				final int i = bestBidder[ j ];
+				if ( y[ j ] >= 0 )
+				{
+					x[ y[ j ] ] = -1;
+					nextFree[ nNextFree++ ] = y[ j ];
+				}
+				y[ j ] = i;
+				x[ i ] = j;
+				prices[ j ] = bestBid[ j ];
+				if ( prices[ j ] > maxPrice )
+				{
+					errorMessage = BASE_ERROR_MESSAGE + "The cost matrix does not have a complete assignment.";
+					return false;
+				}
+			}
+
+			final int[] tmp = free;
+			free = nextFree;
+			nextFree = tmp;
+			nFree = nNextFree;
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the bids of the specified free rows: the column each row bids
+	 * for, and the price it offers.
+	 */
+	private boolean bid( final int[] free, final int nFree, final double[] prices, final double epsilon, final double spread, final int[] bidCol, final double[] bidPrice )
+	{
+		if ( null == executorService || nFree < 2 * MIN_BIDS_PER_TASK )
+		{
+			bid( free, 0, nFree, prices, epsilon, spread, bidCol, bidPrice );
+			return true;
+		}
+
+		final List< Future< ? > > futures = new ArrayList<>();
+		for ( int from = 0; from < nFree; from += MIN_BIDS_PER_TASK )
+		{
+			final int f0 = from;
+			final int f1 = Math.min( nFree, from + MIN_BIDS_PER_TASK );
+			futures.add( executorService.submit( () -> bid( free, f0, f1, prices, epsilon, spread, bidCol, bidPrice ) ) );
+		}
+		try
+		{
+			for ( final Future< ? > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException | ExecutionException e )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "Error while bidding: " + e.getMessage();
+			return false;
+		}
+		return true;
+	}
+
+	private void bid( final int[] free, final int from, final int to, final double[] prices, final double epsilon, final double spread, final int[] bidCol, final double[] bidPrice )
+	{
+		for ( int f = from; f < to; f++ )
+		{
+			final int i = free[ f ];
+			double w1 = Double.POSITIVE_INFINITY;
+			double w2 = Double.POSITIVE_INFINITY;
+			int j1 = -1;
+			final int size = cm.rowSize( i );
+			for ( int k = 0; k < size; k++ )
+			{
+				final int j = cm.column( i, k );
+				final double w = cm.cost( i, k ) + prices[ j ];
+				if ( w < w1 )
+				{
+					w2 = w1;
+					w1 = w;
+					j1 = j;
+				}
+				else if ( w < w2 )
+				{
+					w2 = w;
+				}
+			}
+			// A row with a single column bids as if the next was far.
+			if ( w2 == Double.POSITIVE_INFINITY )
+				w2 = w1 + spread;
+			bidCol[ f ] = j1;
+			bidPrice[ f ] = prices[ j1 ] + ( w2 - w1 ) + epsilon;
+		}
+	}
+
+	@Override
+	public int[] getResult()
+	{
+		return output;
+	}
+
+	@Override
+	public double[] getColumnDuals()
+	{
+		return duals;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+}
@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.util.Arrays;
+import java.util.function.IntBinaryOperator;
+
+/**
+ * A sparse cost matrix with a compact storage, for very large linear
+ * assignment problems where memory rather than precision is the limit.
+ * <p>
+ * This matrix follows the same row compressed storage convention as
+ * {@link SparseCostMatrix}, with two differences:
+ * <ul>
+ * <li>costs are stored as <code>float</code>s;</li>
+ * <li>in each row, columns are stored as 16-bit offsets from the first column
+ * of the row. This is possible when no row spans more than 65536 columns,
+ * which is the common case when rows and columns are sorted in time. If a row
+ * is wider than that, columns are stored as <code>int</code>s for the whole
+ * matrix.</li>
+ * </ul>
+ * Each non-infinite cost then takes 6 bytes instead of 12. Costs are converted
+ * back to <code>double</code> when read, so solvers such as {@link LAPJV} work
+ * on this matrix directly.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class CompactSparseCostMatrix implements LAPCostMatrix
+{
+
+	/**
+	 * The largest column offset that can be stored in a row.
+	 */
+	private static final int MAX_OFFSET = Character.MAX_VALUE;
+
+	/**
+	 * The linear array of non-infinite costs.
+	 */
+	final float[] cc;
+
+	/**
+	 * The column offset of each cost from the first column of its row, or
+	 * <code>null</code> if columns are stored in {@link #kk}.
+	 */
+	final char[] dk;
+
+	/**
+	 * The first column of each row, or <code>null</code> if columns are stored
+	 * in {@link #kk}.
+	 */
+	final int[] first;
+
+	/**
+	 * The column index of each cost, or <code>null</code> if columns are
+	 * stored in {@link #dk}.
+	 */
+	final int[] kk;
+
+	/**
+	 * The index in {@link #cc} where each row starts, plus the cardinality.
+	 */
+	final int[] start;
+
+	/**
+	 * The number of rows in the cost matrix.
+	 */
+	final int nRows;
+
+	/**
+	 * The number of columns in the cost matrix.
+	 */
+	final int nCols;
+
+	/**
+	 * The number of non-infinite costs in the matrix.
+	 */
+	final int cardinality;
+
+	/**
+	 * Instantiates a new compact sparse cost matrix. The arrays follow the
+	 * same conventions as in
+	 * {@link SparseCostMatrix#SparseCostMatrix(double[], int[], int[], int)}.
+	 * The cost array is used as is, the column array is packed in a new
+	 * array if possible.
+	 *
+	 * @param cc
+	 *            the cost array.
+	 * @param kk
+	 *            the column index of each cost.
+	 * @param number
+	 *            the number of element for each row.
+	 * @param nCols
+	 *            the number of columns in the matrix.
+	 * @throws IllegalArgumentException
+	 *             if the cost and column arrays are not of the same size, if
+	 *             the column array is not sorted row by row, of if one row or
+	 *             one column has 0 non-infinite costs.
+	 */
+	public CompactSparseCostMatrix( final float[] cc, final int[] kk, final int[] number, final int nCols )
+	{
+		if ( cc.length != kk.length ) { throw new IllegalArgumentException( "Cost and column indices arrays must have the same length. Found " + cc.length + " and " + kk.length + "." ); }
+
+		this.cc = cc;
+		this.nCols = nCols;
+		this.nRows = number.length;
+		this.cardinality = cc.length;
+		this.start = new int[ nRows + 1 ];
+
+		final int[] colHistogram = new int[ nCols ];
+		boolean narrow = true;
+		for ( int i = 0; i < nRows; i++ )
+		{
+			if ( number[ i ] == 0 ) { throw new IllegalArgumentException( "All the rows must have at least one cost. Row " + i + " have none." ); }
+			start[ i + 1 ] = start[ i ] + number[ i ];
+
+			int previousK = -1;
+			for ( int j = start[ i ]; j < start[ i + 1 ]; j++ )
+			{
+				final int k = kk[ j ];
+				if ( k >= nCols ) { throw new IllegalArgumentException( "At line " + i + ", the column indices array contains a column index (" + k + ") that is larger than or equal to the declared number of column (" + nCols + ")." ); }
+				if ( k <= previousK ) { throw new IllegalArgumentException( "The column indices array must be sorted within each row. The column elements at line " + i + " are not properly sorted." ); }
+				colHistogram[ k ]++;
+				previousK = k;
+			}
+			narrow = narrow && kk[ start[ i + 1 ] - 1 ] - kk[ start[ i ] ] <= MAX_OFFSET;
+		}
+
+		for ( int j = 0; j < colHistogram.length; j++ )
+		{
+			if ( colHistogram[ j ] == 0 ) { throw new IllegalArgumentException( "All the columns must have at least one cost. The column " + j + " has none." ); }
+		}
+
+		if ( narrow )
+		{
+			this.first = new int[ nRows ];
+			this.dk = new char[ cardinality ];
+			for ( int i = 0; i < nRows; i++ )
+			{
+				final int k0 = kk[ start[ i ] ];
+				first[ i ] = k0;
+				for ( int j = start[ i ]; j < start[ i + 1 ]; j++ )
+					dk[ j ] = ( char ) ( kk[ j ] - k0 );
+			}
+			this.kk = null;
+		}
+		else
+		{
+			this.first = null;
+			this.dk = null;
+			this.kk = kk;
+		}
+	}
+
+	private CompactSparseCostMatrix( final float[] cc, final int[] start, final int[] first, final char[] dk, final int[] kk, final int nCols )
+	{
+		this.cc = cc;
+		this.start = start;
+		this.first = first;
+		this.dk = dk;
+		this.kk = kk;
+		this.nCols = nCols;
+		this.nRows = start.length - 1;
+		this.cardinality = cc.length;
+	}
+
+	/**
+	 * Creates a compact sparse cost matrix from a cost array and the columns
+	 * of each row, given by a function, skipping the checks performed by the
+	 * public constructor. The columns are written directly in their packed
+	 * form, so a full <code>int</code> column array is only allocated if a
+	 * row is too wide for 16-bit offsets.
+	 * <p>
+	 * Like {@link SparseCostMatrix#trusted(double[], int[], int[], int)},
+	 * this is meant for producers that already guarantee that each row and
+	 * each column has at least one cost, and that the columns are in range
+	 * and sorted within each row.
+	 *
+	 * @param cc
+	 *            the cost array.
+	 * @param number
+	 *            the number of element for each row.
+	 * @param nCols
+	 *            the number of columns in the matrix.
+	 * @param column
+	 *            returns the column of the <code>k</code>th cost of row
+	 *            <code>i</code>, given <code>i</code> and <code>k</code>.
+	 * @return a new compact sparse cost matrix.
+	 * @throws IllegalArgumentException
+	 *             if the cost array and the row sizes do not have the same
+	 *             total size.
+	 */
+	public static CompactSparseCostMatrix trusted( final float[] cc, final int[] number, final int nCols, final IntBinaryOperator column )
+	{
+		final int nRows = number.length;
+		final int[] start = new int[ nRows + 1 ];
+		boolean narrow = true;
+		for ( int i = 0; i < nRows; i++ )
+		{
+			start[ i + 1 ] = start[ i ] + number[ i ];
+			narrow = narrow && column.applyAsInt( i, number[ i ] - 1 ) - column.applyAsInt( i, 0 ) <= MAX_OFFSET;
+		}
+		if ( start[ nRows ] != cc.length ) { throw new IllegalArgumentException( "The row sizes must add up to the length of the cost array. Found " + start[ nRows ] + " and " + cc.length + "." ); }
+
+		if ( narrow )
+		{
+			final int[] first = new int[ nRows ];
+			final char[] dk = new char[ cc.length ];
+			for ( int i = 0; i < nRows; i++ )
+			{
+				final int k0 = column.applyAsInt( i, 0 );
+				first[ i ] = k0;
+				for ( int k = 0; k < number[ i ]; k++ )
+					dk[ start[ i ] + k ] = ( char ) ( column.applyAsInt( i, k ) - k0 );
+			}
+			return new CompactSparseCostMatrix( cc, start, first, dk, null, nCols );
+		}
+
+		final int[] kk = new int[ cc.length ];
+		for ( int i = 0; i < nRows; i++ )
+			for ( int k = 0; k < number[ i ]; k++ )
+				kk[ start[ i ] + k ] = column.applyAsInt( i, k );
+		return new CompactSparseCostMatrix( cc, start, null, null, kk, nCols );
+	}
+
+	/**
+	 * Returns <code>true</code> if the columns are stored as 16-bit offsets.
+	 *
+	 * @return whether the column storage is compact.
+	 */
+	public boolean hasCompactColumns()
+	{
+		return null != dk;
+	}
+
+	@Override
+	public int getNRows()
+	{
+		return nRows;
+	}
+
+	@Override
+	public int getNCols()
+	{
+		return nCols;
+	}
+
+	@Override
+	public int rowSize( final int i )
+	{
+		return start[ i + 1 ] - start[ i ];
+	}
+
+	@Override
+	public int column( final int i, final int k )
+	{
+		return ( null == dk )
+				? kk[ start[ i ] + k ]
+				: first[ i ] + dk[ start[ i ] + k ];
+	}
+
+	@Override
+	public double cost( final int i, final int k )
+	{
+		return cc[ start[ i ] + k ];
+	}
+
+	@Override
+	public int indexOf( final int i, final int j )
+	{
+		final int k;
+		if ( null == dk )
+		{
+			k = Arrays.binarySearch( kk, start[ i ], start[ i + 1 ], j );
+		}
+		else
+		{
+			final int offset = j - first[ i ];
+			if ( offset < 0 || offset > MAX_OFFSET )
+				return -1;
+			k = Arrays.binarySearch( dk, start[ i ], start[ i + 1 ], ( char ) offset );
+		}
+		return k < 0 ? -1 : k - start[ i ];
+	}
+
+	@Override
+	public double minCost()
+	{
+		double min = Double.POSITIVE_INFINITY;
+		for ( final float c : cc )
+			if ( c < min )
+				min = c;
+		return min;
+	}
+
+	@Override
+	public String toString()
+	{
+		return super.toString() + "\n  " + nRows + " × " + nCols + " compact matrix with " + cardinality + " non-null elements.";
+	}
+}
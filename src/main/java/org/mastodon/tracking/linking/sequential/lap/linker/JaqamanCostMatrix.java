@@ -0,0 +1,238 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import net.imglib2.util.Util;
+
+/**
+ * The cost matrix of the LAP framework described in Jaqaman <i>et al.</i>,
+ * Nature Methods, <b>2008</b>, Figure 1b, represented implicitly from the
+ * linking cost matrix.
+ * <p>
+ * For a linking matrix <code>L</code> with <code>nRows</code> rows and
+ * <code>nCols</code> columns, the full matrix is
+ *
+ * <pre>
+ * -------------
+ * | L  |  tr  |
+ * | bl |  br  |
+ * -------------
+ * </pre>
+ *
+ * where <code>tr</code> and <code>bl</code> are diagonal matrices holding the
+ * alternative costs for sources and targets, and <code>br</code> has the
+ * structure of the transpose of <code>L</code> and holds a single value. Only
+ * <code>L</code>, the alternative costs and the structure of the transpose of
+ * <code>L</code> are stored. The costs of the other blocks are computed on the
+ * fly, so the full matrix is never copied.
+ * <p>
+ * The structure of the transpose is indexed with <code>long</code> offsets.
+ * When the linking matrix is a {@link MappedSparseCostMatrix}, it is stored
+ * out of the Java heap as well, in a {@link MappedIntArray}.
+ */
+class JaqamanCostMatrix implements LAPCostMatrix
+{
+
+	private final LAPCostMatrix tl;
+
+	private final double[] sourceAltCosts;
+
+	private final double[] targetAltCosts;
+
+	private final double brCost;
+
+	/**
+	 * For each column of the linking matrix, the rows that have a cost in this
+	 * column, in increasing order. <code>null</code> if stored in
+	 * {@link #mappedTRows}.
+	 */
+	private final int[] tRows;
+
+	/** Same as {@link #tRows}, out of the heap. */
+	private final MappedIntArray mappedTRows;
+
+	/** Where each column starts in the transpose rows. */
+	private final long[] tStart;
+
+	private final int nRows;
+
+	private final int nCols;
+
+	/**
+	 * Creates the full Jaqaman cost matrix for the specified linking matrix.
+	 *
+	 * @param tl
+	 *            the linking cost matrix.
+	 * @param sourceAltCosts
+	 *            the alternative cost of each row of the linking matrix.
+	 * @param targetAltCosts
+	 *            the alternative cost of each column of the linking matrix.
+	 * @param brCost
+	 *            the cost used in the bottom-right block.
+	 * @throws UncheckedIOException
+	 *             if the out-of-heap transpose structure cannot be created.
+	 */
+	public JaqamanCostMatrix( final LAPCostMatrix tl, final double[] sourceAltCosts, final double[] targetAltCosts, final double brCost )
+	{
+		this.tl = tl;
+		this.sourceAltCosts = sourceAltCosts;
+		this.targetAltCosts = targetAltCosts;
+		this.brCost = brCost;
+		this.nRows = tl.getNRows();
+		this.nCols = tl.getNCols();
+
+		// Structure of the transpose.
+		this.tStart = new long[ nCols + 1 ];
+		for ( int i = 0; i < nRows; i++ )
+		{
+			final int n = tl.rowSize( i );
+			for ( int k = 0; k < n; k++ )
+				tStart[ tl.column( i, k ) + 1 ]++;
+		}
+		for ( int j = 0; j < nCols; j++ )
+			tStart[ j + 1 ] += tStart[ j ];
+		final long cardinality = tStart[ nCols ];
+		if ( tl instanceof MappedSparseCostMatrix )
+		{
+			this.tRows = null;
+			try
+			{
+				this.mappedTRows = new MappedIntArray( cardinality );
+			}
+			catch ( final IOException e )
+			{
+				throw new UncheckedIOException( e );
+			}
+		}
+		else
+		{
+			this.tRows = new int[ ( int ) cardinality ];
+			this.mappedTRows = null;
+		}
+		final long[] fill = Arrays.copyOf( tStart, nCols );
+		for ( int i = 0; i < nRows; i++ )
+		{
+			final int n = tl.rowSize( i );
+			for ( int k = 0; k < n; k++ )
+				setTRow( fill[ tl.column( i, k ) ]++, i );
+		}
+	}
+
+	private int tRow( final long e )
+	{
+		return ( tRows != null ) ? tRows[ ( int ) e ] : mappedTRows.get( e );
+	}
+
+	private void setTRow( final long e, final int i )
+	{
+		if ( tRows != null )
+			tRows[ ( int ) e ] = i;
+		else
+			mappedTRows.set( e, i );
+	}
+
+	@Override
+	public int getNRows()
+	{
+		return nRows + nCols;
+	}
+
+	@Override
+	public int getNCols()
+	{
+		return nCols + nRows;
+	}
+
+	@Override
+	public int rowSize( final int i )
+	{
+		if ( i < nRows )
+			return tl.rowSize( i ) + 1;
+		final int j = i - nRows;
+		return 1 + ( int ) ( tStart[ j + 1 ] - tStart[ j ] );
+	}
+
+	@Override
+	public int column( final int i, final int k )
+	{
+		if ( i < nRows )
+			return ( k < tl.rowSize( i ) ) ? tl.column( i, k ) : nCols + i;
+		final int j = i - nRows;
+		return ( k == 0 ) ? j : nCols + tRow( tStart[ j ] + k - 1 );
+	}
+
+	@Override
+	public double cost( final int i, final int k )
+	{
+		if ( i < nRows )
+			return ( k < tl.rowSize( i ) ) ? tl.cost( i, k ) : sourceAltCosts[ i ];
+		return ( k == 0 ) ? targetAltCosts[ i - nRows ] : brCost;
+	}
+
+	@Override
+	public int indexOf( final int i, final int j )
+	{
+		if ( i < nRows )
+		{
+			if ( j < nCols )
+				return tl.indexOf( i, j );
+			return ( j == nCols + i ) ? tl.rowSize( i ) : -1;
+		}
+		final int t = i - nRows;
+		if ( j < nCols )
+			return ( j == t ) ? 0 : -1;
+		// Binary search in the rows of column t of the linking matrix.
+		final int key = j - nCols;
+		long lo = tStart[ t ];
+		long hi = tStart[ t + 1 ] - 1;
+		while ( lo <= hi )
+		{
+			final long mid = ( lo + hi ) >>> 1;
+			final int r = tRow( mid );
+			if ( r < key )
+				lo = mid + 1;
+			else if ( r > key )
+				hi = mid - 1;
+			else
+				return ( int ) ( mid - tStart[ t ] ) + 1;
+		}
+		return -1;
+	}
+
+	@Override
+	public double minCost()
+	{
+		return Math.min( Math.min( tl.minCost(), brCost ),
+				Math.min( Util.min( sourceAltCosts ), Util.min( targetAltCosts ) ) );
+	}
+}
@@ -28,7 +28,15 @@
  */
 package org.mastodon.tracking.linking.sequential.lap.linker;
 
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.mastodon.Ref;
 import org.mastodon.collection.RefCollection;
@@ -38,6 +46,7 @@ import org.mastodon.collection.RefList;
 import org.mastodon.collection.RefMaps;
 import org.mastodon.collection.RefRefMap;
 import org.mastodon.collection.RefSet;
+import org.mastodon.tracking.linking.LinkingProgress;
 import org.mastodon.tracking.linking.sequential.lap.costmatrix.CostMatrixCreatorOp;
 
 import net.imglib2.algorithm.BenchmarkAlgorithm;
@@ -47,6 +56,21 @@ import net.imglib2.util.Util;
 /**
  * Links two lists of objects based on the LAP framework described in Jaqaman
  * <i>et al.</i>, Nature Methods, <b>2008</b>.
+ * <p>
+ * The linking cost matrix is first decomposed in the connected components of
+ * the bipartite graph it defines. Sources and targets of different components
+ * never compete, so each component is solved as an independent, smaller LAP.
+ * If an {@link ExecutorService} is set, the components are solved in
+ * parallel. A {@link MappedSparseCostMatrix} is not decomposed, since each
+ * component would be copied on the heap: it is solved as a single problem.
+ * <p>
+ * When solving a sequence of similar problems, such as consecutive frame
+ * pairs, the linker can be warm-started. After a solve, each linked target
+ * carries the dual potential of the source it is linked to, see
+ * {@link #getTargetPotentials()}. When these targets are the sources of the
+ * next problem, passing these potentials to
+ * {@link #setSourcePotentials(RefDoubleMap)} seeds the column duals of the
+ * next solve, so that most of its assignment is found before augmentation.
  *
  * @author Jean-Yves Tinevez - 2014
  *
@@ -67,6 +91,26 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 
 	private final RefCollection< J > valuePool;
 
+	private ExecutorService executorService;
+
+	private LAPSolverType solverType = LAPSolverType.LAPJV;
+
+	private RefDoubleMap< K > sourcePotentials;
+
+	private LinkingProgress progress = LinkingProgress.NONE;
+
+	private RefList< J > matrixCols;
+
+	private int[] rowAssignment;
+
+	private double[] rowPotentials;
+
+	/**
+	 * The minimal number of costs to solve in one task, when solving the
+	 * components in parallel.
+	 */
+	private static final int MIN_TASK_SIZE = 1 << 14;
+
 	/**
 	 * Creates a new linker for the specified cost matrix creator. See Jaqaman
 	 * <i>et al.</i>, Nature Methods, <b>2008</b>, Figure 1b.
@@ -89,6 +133,88 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 		this.valuePool = valuePool;
 	}
 
+	/**
+	 * Sets the executor service used to solve independent components of the
+	 * cost matrix in parallel. If <code>null</code>, the components are solved
+	 * sequentially in the calling thread.
+	 *
+	 * @param executorService
+	 *            the executor service, or <code>null</code>.
+	 */
+	public void setExecutorService( final ExecutorService executorService )
+	{
+		this.executorService = executorService;
+	}
+
+	/**
+	 * Sets the type of solver used for the linear assignment problems. By
+	 * default, {@link LAPSolverType#LAPJV} is used. With
+	 * {@link LAPSolverType#AUTO}, the solver is picked for each component of
+	 * the cost matrix based on its size and structure.
+	 *
+	 * @param solverType
+	 *            the solver type.
+	 */
+	public void setSolverType( final LAPSolverType solverType )
+	{
+		this.solverType = solverType;
+	}
+
+	/**
+	 * Sets the token through which the progress of the solve is reported and
+	 * cancellation is checked. When the cost matrix has a single component,
+	 * the token is handed to the solver. Otherwise progress is reported per
+	 * component solved, and cancellation is checked between components. The
+	 * cost matrix creator is not given the token, it must be set on it
+	 * separately.
+	 *
+	 * @param progress
+	 *            the progress token.
+	 */
+	public void setProgress( final LinkingProgress progress )
+	{
+		this.progress = null == progress ? LinkingProgress.NONE : progress;
+	}
+
+	/**
+	 * Sets the dual potentials of the sources, used to warm-start the solve.
+	 * Typically these are the target potentials of the previous problem in a
+	 * sequence, where the sources of this problem were the targets. Sources
+	 * absent from the map get a potential of 0. If <code>null</code>, the
+	 * solve starts from scratch.
+	 *
+	 * @param sourcePotentials
+	 *            the source potentials, or <code>null</code>.
+	 * @see #getTargetPotentials()
+	 */
+	public void setSourcePotentials( final RefDoubleMap< K > sourcePotentials )
+	{
+		this.sourcePotentials = sourcePotentials;
+	}
+
+	/**
+	 * Returns the dual potentials carried by the linked targets after the
+	 * solve. The potential of a target is the one of the row it is linked to,
+	 * that is the linking cost minus the dual of the target column. Targets
+	 * that are not linked are absent from the map.
+	 *
+	 * @return a new map from linked targets to their potentials.
+	 * @see #setSourcePotentials(RefDoubleMap)
+	 */
+	public RefDoubleMap< J > getTargetPotentials()
+	{
+		final RefDoubleMap< J > potentials = RefMaps.createRefDoubleMap( valuePool, Double.NaN );
+		if ( null == rowAssignment )
+			return potentials;
+
+		final J jref = valuePool.createRef();
+		for ( int i = 0; i < rowAssignment.length; i++ )
+			if ( rowAssignment[ i ] >= 0 )
+				potentials.put( matrixCols.get( rowAssignment[ i ], jref ), rowPotentials[ i ] );
+		valuePool.releaseRef( jref );
+		return potentials;
+	}
+
 	/**
 	 * Returns the resulting assignments from this algorithm.
 	 * <p>
@@ -133,14 +259,15 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 		 * Generate the cost matrix
 		 */
 
-		final SparseCostMatrix tl = costMatrixCreator.calculate();
+		final LAPCostMatrix tl = costMatrixCreator.calculate();
 		if ( null == tl )
 		{
 			errorMessage = costMatrixCreator.getErrorMessage();
 			return false;
 		}
 		final RefList< K > matrixRows = costMatrixCreator.getSourceList();
-		final RefList< J > matrixCols = costMatrixCreator.getTargetList();
+		matrixCols = costMatrixCreator.getTargetList();
+		rowAssignment = null;
 
 		assignments = RefMaps.createRefRefMap( keyPool, valuePool );
 		costs = RefMaps.createRefDoubleMap( keyPool, Double.NaN );
@@ -160,33 +287,18 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 		final int nRows = tl.getNRows();
 
 		/*
-		 * Top right
+		 * Alternative costs for the top right and bottom left blocks.
 		 */
 
-		final double[] cctr = new double[ nRows ];
-		final int[] kktr = new int[ nRows ];
+		final K kref = keyPool.createRef();
+		final double[] sourceAltCosts = new double[ nRows ];
 		for ( int i = 0; i < nRows; i++ )
-		{
-			kktr[ i ] = i;
-			cctr[ i ] = costMatrixCreator.getAlternativeCostForSource( matrixRows.get( i ) );
-		}
-		final int[] numbertr = new int[ nRows ];
-		Arrays.fill( numbertr, 1 );
-		final SparseCostMatrix tr = new SparseCostMatrix( cctr, kktr, numbertr, nRows );
+			sourceAltCosts[ i ] = costMatrixCreator.getAlternativeCostForSource( matrixRows.get( i, kref ) );
 
-		/*
-		 * Bottom left
-		 */
-		final double[] ccbl = new double[ nCols ];
-		final int[] kkbl = new int[ nCols ];
-		for ( int i = 0; i < kkbl.length; i++ )
-		{
-			kkbl[ i ] = i;
-			ccbl[ i ] = costMatrixCreator.getAlternativeCostForTarget( matrixCols.get( i ) );
-		}
-		final int[] numberbl = new int[ nCols ];
-		Arrays.fill( numberbl, 1 );
-		final SparseCostMatrix bl = new SparseCostMatrix( ccbl, kkbl, numberbl, nCols );
+		final J jref = valuePool.createRef();
+		final double[] targetAltCosts = new double[ nCols ];
+		for ( int j = 0; j < nCols; j++ )
+			targetAltCosts[ j ] = costMatrixCreator.getAlternativeCostForTarget( matrixCols.get( j, jref ) );
 
 		/*
 		 * Bottom right.
@@ -194,39 +306,50 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 		 * Alt. cost is the overall min of alternative costs. This deviate or
 		 * extend a bit the u-track code.
 		 */
-		final double minCost = Math.min( Util.min( ccbl ), Util.min( cctr ) );
-		final SparseCostMatrix br = tl.transpose();
-		br.fillWith( minCost );
+		final double minCost = Math.min( Util.min( targetAltCosts ), Util.min( sourceAltCosts ) );
 
 		/*
-		 * Stitch them together
+		 * Potentials of the sources, to warm-start the solve.
 		 */
-		final SparseCostMatrix full = ( tl.hcat( tr ) ).vcat( bl.hcat( br ) );
+		double[] sourceDuals = null;
+		if ( null != sourcePotentials )
+		{
+			sourceDuals = new double[ nRows ];
+			for ( int i = 0; i < nRows; i++ )
+			{
+				final double p = sourcePotentials.get( matrixRows.get( i, kref ) );
+				sourceDuals[ i ] = Double.isNaN( p ) ? 0. : p;
+			}
+		}
 
 		/*
-		 * Solve the full cost matrix.
+		 * Solve each connected component of the cost matrix.
 		 */
-		final LAPJV solver = new LAPJV( full );
-		if ( !solver.checkInput() || !solver.process() )
+		rowAssignment = new int[ nRows ];
+		rowPotentials = new double[ nRows ];
+		if ( !solve( tl, sourceAltCosts, targetAltCosts, minCost, sourceDuals, rowAssignment, rowPotentials ) )
 		{
-			errorMessage = solver.getErrorMessage();
+			rowAssignment = null;
+			keyPool.releaseRef( kref );
+			valuePool.releaseRef( jref );
 			return false;
 		}
 
-		final int[] assgn = solver.getResult();
-		for ( int i = 0; i < assgn.length; i++ )
+		for ( int i = 0; i < nRows; i++ )
 		{
-			final int j = assgn[ i ];
-			if ( i < matrixRows.size() && j < matrixCols.size() )
+			final int j = rowAssignment[ i ];
+			if ( j >= 0 )
 			{
-				final K source = matrixRows.get( i );
-				final J target = matrixCols.get( j );
+				final K source = matrixRows.get( i, kref );
+				final J target = matrixCols.get( j, jref );
 				assignments.put( source, target );
 
-				final double cost = full.get( i, j, Double.POSITIVE_INFINITY );
-				costs.put( source, Double.valueOf( cost ) );
+				final double cost = tl.get( i, j, Double.POSITIVE_INFINITY );
+				costs.put( source, cost );
 			}
 		}
+		keyPool.releaseRef( kref );
+		valuePool.releaseRef( jref );
 
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
@@ -234,6 +357,303 @@ public class JaqamanLinker< K, J > extends BenchmarkAlgorithm implements OutputA
 		return true;
 	}
 
+	/**
+	 * Solves the Jaqaman LAP built on the specified linking matrix, one
+	 * connected component at a time, or at once if the matrix is stored out of
+	 * the heap. Writes in <code>rowAssignment</code> the
+	 * column assigned to each row of the linking matrix, or -1 if the row is
+	 * not linked, and in <code>rowPotentials</code> the dual potential of
+	 * each linked row. The solve is warm-started from
+	 * <code>sourceDuals</code> if not <code>null</code>.
+	 */
+	private boolean solve( final LAPCostMatrix tl, final double[] sourceAltCosts, final double[] targetAltCosts, final double minCost,
+			final double[] sourceDuals, final int[] rowAssignment, final double[] rowPotentials )
+	{
+		final int nRows = tl.getNRows();
+		final int nCols = tl.getNCols();
+
+		// Label rows (0 to nRows-1) and columns (nRows to nRows+nCols-1).
+		final boolean mapped = tl instanceof MappedSparseCostMatrix;
+		final int[] component = mapped ? null : new int[ nRows + nCols ];
+		final int nComponents = mapped ? 1 : components( tl, component );
+		if ( nComponents == 1 )
+		{
+			final JaqamanCostMatrix cm;
+			try
+			{
+				cm = new JaqamanCostMatrix( tl, sourceAltCosts, targetAltCosts, minCost );
+			}
+			catch ( final UncheckedIOException e )
+			{
+				errorMessage = "[JaqamanLinker] Could not store the cost matrix transpose: " + e.getMessage();
+				return false;
+			}
+			final LAPSolver solver = solverType.create( cm, executorService, warmStartDuals( cm, sourceDuals ) );
+			solver.setProgress( progress );
+			if ( !solver.checkInput() || !solver.process() )
+			{
+				errorMessage = solver.getErrorMessage();
+				return false;
+			}
+			final int[] assgn = solver.getResult();
+			final double[] v = solver.getColumnDuals();
+			for ( int i = 0; i < nRows; i++ )
+			{
+				final int j = assgn[ i ];
+				rowAssignment[ i ] = j < nCols ? j : -1;
+				if ( j < nCols )
+					rowPotentials[ i ] = cm.cost( i, cm.indexOf( i, j ) ) - v[ j ];
+			}
+			return true;
+		}
+
+		// Group rows and columns by component, in increasing order.
+		final int[] rowStart = new int[ nComponents + 1 ];
+		final int[] rows = groupBy( component, 0, nRows, nComponents, rowStart );
+		final int[] colStart = new int[ nComponents + 1 ];
+		final int[] cols = groupBy( component, nRows, nRows + nCols, nComponents, colStart );
+		final int[] localCol = new int[ nCols ];
+		for ( int c = 0; c < nComponents; c++ )
+			for ( int p = colStart[ c ]; p < colStart[ c + 1 ]; p++ )
+				localCol[ cols[ p ] ] = p - colStart[ c ];
+
+		final AtomicReference< String > error = new AtomicReference<>();
+		final AtomicInteger nSolved = new AtomicInteger();
+		final List< Future< ? > > futures = new ArrayList<>();
+		int c0 = 0;
+		int size = 0;
+		for ( int c = 0; c < nComponents; c++ )
+		{
+			for ( int p = rowStart[ c ]; p < rowStart[ c + 1 ]; p++ )
+				size += tl.rowSize( rows[ p ] );
+			if ( size < MIN_TASK_SIZE && c < nComponents - 1 )
+				continue;
+
+			final int from = c0;
+			final int to = c + 1;
+			final Runnable task = () -> {
+				for ( int cc = from; cc < to && null == error.get(); cc++ )
+				{
+					if ( progress.isCanceled() )
+					{
+						error.compareAndSet( null, "[JaqamanLinker] Canceled." );
+						return;
+					}
+					solveComponent( tl, sourceAltCosts, targetAltCosts, minCost, sourceDuals,
+							rows, rowStart[ cc ], rowStart[ cc + 1 ],
+							cols, colStart[ cc ], colStart[ cc + 1 ],
+							localCol, rowAssignment, rowPotentials, error );
+					progress.progress( ( double ) nSolved.incrementAndGet() / nComponents );
+				}
+			};
+			if ( null == executorService )
+				task.run();
+			else
+				futures.add( executorService.submit( task ) );
+			c0 = c + 1;
+			size = 0;
+		}
+
+		for ( final Future< ? > future : futures )
+		{
+			try
+			{
+				future.get();
+			}
+			catch ( final InterruptedException | ExecutionException e )
+			{
+				error.compareAndSet( null, e.getMessage() );
+			}
+		}
+		if ( null != error.get() )
+		{
+			errorMessage = error.get();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Solves the component made of the rows <code>rows[r0..r1)</code> and the
+	 * columns <code>cols[k0..k1)</code> of the linking matrix.
+	 */
+	private void solveComponent( final LAPCostMatrix tl, final double[] sourceAltCosts, final double[] targetAltCosts, final double minCost, final double[] sourceDuals,
+			final int[] rows, final int r0, final int r1, final int[] cols, final int k0, final int k1, final int[] localCol,
+			final int[] rowAssignment, final double[] rowPotentials, final AtomicReference< String > error )
+	{
+		final int nr = r1 - r0;
+		final int nc = k1 - k0;
+		final int[] number = new int[ nr ];
+		int cardinality = 0;
+		for ( int r = 0; r < nr; r++ )
+		{
+			number[ r ] = tl.rowSize( rows[ r0 + r ] );
+			cardinality += number[ r ];
+		}
+
+		// Columns are renumbered in increasing order, so rows stay sorted.
+		final double[] sac = new double[ nr ];
+		for ( int r = 0; r < nr; r++ )
+			sac[ r ] = sourceAltCosts[ rows[ r0 + r ] ];
+		final LAPCostMatrix sub;
+		if ( tl instanceof CompactSparseCostMatrix )
+		{
+			// Keep the component compact, float costs are copied exactly.
+			final float[] cc = new float[ cardinality ];
+			int e = 0;
+			for ( int r = 0; r < nr; r++ )
+			{
+				final int i = rows[ r0 + r ];
+				for ( int k = 0; k < number[ r ]; k++ )
+					cc[ e++ ] = ( float ) tl.cost( i, k );
+			}
+			sub = CompactSparseCostMatrix.trusted( cc, number, nc, ( r, k ) -> localCol[ tl.column( rows[ r0 + r ], k ) ] );
+		}
+		else
+		{
+			final double[] cc = new double[ cardinality ];
+			final int[] kk = new int[ cardinality ];
+			int e = 0;
+			for ( int r = 0; r < nr; r++ )
+			{
+				final int i = rows[ r0 + r ];
+				for ( int k = 0; k < number[ r ]; k++ )
+				{
+					cc[ e ] = tl.cost( i, k );
+					kk[ e++ ] = localCol[ tl.column( i, k ) ];
+				}
+			}
+			sub = SparseCostMatrix.trusted( cc, kk, number, nc );
+		}
+		final double[] tac = new double[ nc ];
+		for ( int c = 0; c < nc; c++ )
+			tac[ c ] = targetAltCosts[ cols[ k0 + c ] ];
+
+		double[] sd = null;
+		if ( null != sourceDuals )
+		{
+			sd = new double[ nr ];
+			for ( int r = 0; r < nr; r++ )
+				sd[ r ] = sourceDuals[ rows[ r0 + r ] ];
+		}
+
+		final JaqamanCostMatrix cm = new JaqamanCostMatrix( sub, sac, tac, minCost );
+		final LAPSolver solver = solverType.create( cm, null, warmStartDuals( cm, sd ) );
+		// Components are solved concurrently, only the overall progress makes sense.
+		solver.setProgress( progress.cancelOnly() );
+		if ( !solver.checkInput() || !solver.process() )
+		{
+			error.compareAndSet( null, solver.getErrorMessage() );
+			return;
+		}
+		final int[] assgn = solver.getResult();
+		final double[] v = solver.getColumnDuals();
+		for ( int r = 0; r < nr; r++ )
+		{
+			final int i = rows[ r0 + r ];
+			final int j = assgn[ r ];
+			rowAssignment[ i ] = j < nc ? cols[ k0 + j ] : -1;
+			if ( j < nc )
+				rowPotentials[ i ] = cm.cost( r, cm.indexOf( r, j ) ) - v[ j ];
+		}
+	}
+
+	/**
+	 * Returns the column duals that warm-start the solve of the specified
+	 * matrix, given the potentials of the rows of the linking matrix, or
+	 * <code>null</code> if these are <code>null</code>. The duals are obtained
+	 * by column reduction with these row potentials: the dual of a column is
+	 * its minimal cost minus row potential. The other rows of the Jaqaman
+	 * matrix have a potential of 0.
+	 */
+	private static double[] warmStartDuals( final LAPCostMatrix cm, final double[] sourceDuals )
+	{
+		if ( null == sourceDuals )
+			return null;
+
+		final double[] v = new double[ cm.getNCols() ];
+		Arrays.fill( v, Double.POSITIVE_INFINITY );
+		for ( int i = 0; i < cm.getNRows(); i++ )
+		{
+			final double u = ( i < sourceDuals.length ) ? sourceDuals[ i ] : 0.;
+			final int n = cm.rowSize( i );
+			for ( int k = 0; k < n; k++ )
+			{
+				final int j = cm.column( i, k );
+				v[ j ] = Math.min( v[ j ], cm.cost( i, k ) - u );
+			}
+		}
+		for ( int j = 0; j < v.length; j++ )
+			if ( v[ j ] == Double.POSITIVE_INFINITY )
+				v[ j ] = 0.;
+		return v;
+	}
+
+	/**
+	 * Labels the connected components of the bipartite graph defined by the
+	 * specified matrix. Rows are nodes <code>0</code> to
+	 * <code>nRows - 1</code>, columns are nodes <code>nRows</code> to
+	 * <code>nRows + nCols - 1</code>. Returns the number of components.
+	 */
+	private static int components( final LAPCostMatrix tl, final int[] label )
+	{
+		// Union-find with path halving.
+		final int[] parent = new int[ label.length ];
+		for ( int n = 0; n < parent.length; n++ )
+			parent[ n ] = n;
+		final int nRows = tl.getNRows();
+		for ( int i = 0; i < nRows; i++ )
+		{
+			final int n = tl.rowSize( i );
+			for ( int k = 0; k < n; k++ )
+			{
+				final int a = find( parent, i );
+				final int b = find( parent, nRows + tl.column( i, k ) );
+				if ( a != b )
+					parent[ Math.max( a, b ) ] = Math.min( a, b );
+			}
+		}
+
+		// Roots have the smallest index of their component, so they are met
+		// first.
+		int n = 0;
+		for ( int node = 0; node < parent.length; node++ )
+		{
+			final int root = find( parent, node );
+			label[ node ] = ( root == node ) ? n++ : label[ root ];
+		}
+		return n;
+	}
+
+	private static int find( final int[] parent, int n )
+	{
+		while ( parent[ n ] != n )
+		{
+			parent[ n ] = parent[ parent[ n ] ];
+			n = parent[ n ];
+		}
+		return n;
+	}
+
+	/**
+	 * Returns the nodes from <code>from</code> to <code>to</code> sorted by
+	 * component, minus <code>from</code>, and writes where each component
+	 * starts in <code>start</code>.
+	 */
+	private static int[] groupBy( final int[] component, final int from, final int to, final int nComponents, final int[] start )
+	{
+		Arrays.fill( start, 0 );
+		for ( int n = from; n < to; n++ )
+			start[ component[ n ] + 1 ]++;
+		for ( int c = 0; c < nComponents; c++ )
+			start[ c + 1 ] += start[ c ];
+		final int[] fill = Arrays.copyOf( start, nComponents );
+		final int[] out = new int[ to - from ];
+		for ( int n = from; n < to; n++ )
+			out[ fill[ component[ n ] ]++ ] = n - from;
+		return out;
+	}
+
 	public String resultToString()
 	{
 		if ( null == assignments ) { return "Not solved yet. Process the algorithm prior to calling this method."; }
@@ -34,15 +34,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
-import net.imglib2.algorithm.Benchmark;
-import net.imglib2.algorithm.OutputAlgorithm;
-import net.imglib2.util.Util;
+import org.mastodon.tracking.linking.LinkingProgress;
 
 /**
  * Implements the Jonker-Volgenant algorithm for linear assignment problems,
  * tailored for sparse cost matrices.
  * <p>
- * We rely on the {@link SparseCostMatrix} class to represent these costs. The
+ * We rely on the {@link LAPCostMatrix} interface to represent these costs. The
  * implementation itself is an unlikely mix between:
  * <ul>
  * <li>my (JYT) limited understanding of the original Volgemant paper (
@@ -60,6 +58,12 @@ import net.imglib2.util.Util;
  * 0.1% to 70%, the computation time increased by a factor ranging from 1.5 to 7
  * compared to the non-sparse version. For a given density, the comparison
  * depends very weakly on the matrix size.
+ * <p>
+ * The solver can be warm-started from the column duals of a similar, already
+ * solved problem. The column reduction and reduction transfer steps are then
+ * replaced by assigning each row to the column of minimal reduced cost, when
+ * this column is still free. With good duals, most rows are assigned there,
+ * and only a few are left to the augmentation steps.
  *
  *
  * @author Jean-Yves Tinevez - 2014
@@ -69,7 +73,7 @@ import net.imglib2.util.Util;
  *      Volgenant
  *      "Linear and semi-assignment problems: A core oriented approach"</a>
  */
-public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
+public class LAPJV implements LAPSolver
 {
 
 	private static final String BASE_ERROR_MESSAGE = "[JonkerVolgenantSparseAlgorithm] ";
@@ -80,7 +84,13 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 
 	private long processingTime;
 
-	private final SparseCostMatrix cm;
+	private double[] duals;
+
+	private final LAPCostMatrix cm;
+
+	private final double[] initialDuals;
+
+	private LinkingProgress progress = LinkingProgress.NONE;
 
 	/**
 	 * Instantiates a new Jonker-Volgenant algorithm for the specified sparse
@@ -89,9 +99,35 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 	 * @param cm
 	 *            the cost matrix of the linear assignment problem to solve.
 	 */
-	public LAPJV( final SparseCostMatrix cm )
+	public LAPJV( final LAPCostMatrix cm )
+	{
+		this( cm, null );
+	}
+
+	/**
+	 * Instantiates a new Jonker-Volgenant algorithm for the specified sparse
+	 * cost matrix, warm-started from the specified column duals.
+	 *
+	 * @param cm
+	 *            the cost matrix of the linear assignment problem to solve.
+	 * @param columnDuals
+	 *            the initial column duals, one per column. If
+	 *            <code>null</code>, the solver starts with column reduction.
+	 */
+	public LAPJV( final LAPCostMatrix cm, final double[] columnDuals )
 	{
 		this.cm = cm;
+		this.initialDuals = columnDuals;
+	}
+
+	/**
+	 * Sets the token through which progress is reported and cancellation is
+	 * checked, during the augmentation steps.
+	 */
+	@Override
+	public void setProgress( final LinkingProgress progress )
+	{
+		this.progress = null == progress ? LinkingProgress.NONE : progress;
 	}
 
 	@Override
@@ -99,91 +135,66 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 	{
 		final long start = System.currentTimeMillis();
 
-		final int[] x = new int[ cm.nRows ];
-		final int[] y = new int[ cm.nCols ];
-		final double[] v = new double[ cm.nCols ];
+		final int nRows = cm.getNRows();
+		final int nCols = cm.getNCols();
+		final int[] x = new int[ nRows ];
+		final int[] y = new int[ nCols ];
+		final double[] v;
 
-		final int[] col = new int[ cm.nCols ];
+		final int[] col = new int[ nCols ];
 		for ( int j = 0; j < col.length; j++ )
 		{
 			col[ j ] = j;
 		}
 
-		/*
-		 * Column reduction
-		 */
-
-		Arrays.fill( v, Double.MAX_VALUE );
-		for ( int i = 0; i < cm.nRows; i++ )
-		{
-			for ( int k = cm.start[ i ]; k < cm.start[ i ] + cm.number[ i ]; k++ )
-			{
-				final int j = cm.kk[ k ];
-				if ( cm.cc[ k ] < v[ j ] )
-				{
-					v[ j ] = cm.cc[ k ];
-					y[ j ] = i + 1;
-				}
-			}
-		}
-
-		for ( int j = cm.nCols - 1; j >= 0; j-- )
-		{
-			final int i = y[ j ] - 1;
-			if ( x[ i ] == 0 )
-			{
-				x[ i ] = j + 1;
-			}
-			else
-			{
-				if ( x[ i ] > 0 )
-				{
-					x[ i ] = -x[ i ];
-				}
-				y[ j ] = 0;
-			}
-		}
-
-		/*
-		 * Reduction transfer.
-		 */
-
 		int f = 0;
-		final int[] free = new int[ cm.nRows ];
-		for ( int i = 0; i < cm.nRows; i++ )
+		final int[] free = new int[ nRows ];
+		if ( null != initialDuals )
 		{
-			if ( x[ i ] == 0 )
-			{
-				// unassigned row in free-array
-				free[ f++ ] = i;
-				continue;
-			}
-			else if ( x[ i ] < 0 )
-			{
-				// no reduction transfer possible
-				x[ i ] = -x[ i ];
-			}
-			else
+			/*
+			 * Warm start: assign each row to its column of minimal reduced
+			 * cost, if free.
+			 */
+
+			v = initialDuals.clone();
+			for ( int i = 0; i < nRows; i++ )
 			{
-				// reduction transfer from assigned row
-				final int j1 = x[ i ] - 1;
 				double min = Double.MAX_VALUE;
-				for ( int k = cm.start[ i ]; k < cm.start[ i ] + cm.number[ i ]; k++ )
+				int j0 = -1;
+				final int n = cm.rowSize( i );
+				for ( int k = 0; k < n; k++ )
 				{
-					final int j = cm.kk[ k ];
-					if ( j != j1 )
+					final int j = cm.column( i, k );
+					final double h = cm.cost( i, k ) - v[ j ];
+					if ( h < min )
 					{
-						if ( cm.cc[ k ] - v[ j ] < min )
-						{
-							min = cm.cc[ k ] - v[ j ];
-						}
+						min = h;
+						j0 = j;
 					}
 				}
-				v[ j1 ] -= min;
+				if ( j0 >= 0 && y[ j0 ] == 0 )
+				{
+					x[ i ] = j0 + 1;
+					y[ j0 ] = i + 1;
+				}
+				else
+				{
+					free[ f++ ] = i;
+				}
 			}
 		}
+		else
+		{
+			v = new double[ nCols ];
+			f = reduce( x, y, v, free );
+		}
 
-		if ( f == 0 ) { return true; }
+		if ( f == 0 )
+		{
+			// All rows are assigned already.
+			prepareOutput( x, v, start );
+			return true;
+		}
 
 		/*
 		 * Augmenting row reduction.
@@ -200,10 +211,11 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 				double v0 = Double.MAX_VALUE;
 				int j0 = 0, j1 = -1;
 				double vj = Double.MAX_VALUE;
-				for ( int kj = cm.start[ i ]; kj < cm.start[ i ] + cm.number[ i ]; kj++ )
+				final int n = cm.rowSize( i );
+				for ( int kj = 0; kj < n; kj++ )
 				{
-					final int j = cm.kk[ kj ];
-					final double h = cm.cc[ kj ] - v[ j ];
+					final int j = cm.column( i, kj );
+					final double h = cm.cost( i, kj ) - v[ j ];
 					if ( h < vj )
 					{
 						if ( h > v0 )
@@ -254,18 +266,25 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 		 */
 
 		final int f0 = f;
-		final double[] d = new double[ cm.nCols ];
-		final int[] pred = new int[ cm.nCols ];
+		final double[] d = new double[ nCols ];
+		final int[] pred = new int[ nCols ];
 		for ( f = 0; f < f0; f++ )
 		{
+			if ( progress.isCanceled() )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Canceled.";
+				return false;
+			}
+			progress.progress( ( double ) f / f0 );
 			final int i1 = free[ f ];
 			int low = 0, up = 0;
 			// initialize d- and pred-array
 			Arrays.fill( d, Double.MAX_VALUE );
-			for ( int k = cm.start[ i1 ]; k < cm.start[ i1 ] + cm.number[ i1 ]; k++ )
+			final int n1 = cm.rowSize( i1 );
+			for ( int k = 0; k < n1; k++ )
 			{
-				final int j = cm.kk[ k ];
-				d[ j ] = cm.cc[ k ] - v[ j ];
+				final int j = cm.column( i1, k );
+				d[ j ] = cm.cost( i1, k ) - v[ j ];
 				pred[ j ] = i1;
 			}
 			int last;
@@ -279,7 +298,7 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 				{
 					last = low;
 					min = d[ col[ up++ ] ];
-					for ( int k = up; k < cm.nCols; k++ )
+					for ( int k = up; k < nCols; k++ )
 					{
 						j = col[ k ];
 						final double h = d[ j ];
@@ -309,23 +328,23 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 					final int j1 = col[ low++ ];
 					i = y[ j1 ] - 1;
 
-					final int kj1 = Arrays.binarySearch( cm.kk, cm.start[ i ], cm.start[ i ] + cm.number[ i ], j1 );
+					final int kj1 = cm.indexOf( i, j1 );
 					if ( kj1 < 0 )
 					{
 						continue;
 					}
 
-					final double u1 = cm.cc[ kj1 ] - v[ j1 ] - min;
-					for ( int k = up; k < cm.nCols; k++ )
+					final double u1 = cm.cost( i, kj1 ) - v[ j1 ] - min;
+					for ( int k = up; k < nCols; k++ )
 					{
 						j = col[ k ];
-						final int kj = Arrays.binarySearch( cm.kk, cm.start[ i ], cm.start[ i ] + cm.number[ i ], j );
+						final int kj = cm.indexOf( i, j );
 						if ( kj < 0 )
 						{
 							continue;
 						}
 
-						final double h = cm.cc[ kj ] - v[ j ] - u1;
+						final double h = cm.cost( i, kj ) - v[ j ] - u1;
 						if ( h < d[ j ] )
 						{
 							d[ j ] = h;
@@ -369,6 +388,103 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 		 * Terminate and prepare outputs.
 		 */
 
+		progress.progress( 1. );
+		prepareOutput( x, v, start );
+		return true;
+	}
+
+	/**
+	 * Column reduction and reduction transfer. Returns the number of rows
+	 * left unassigned, stored in <code>free</code>.
+	 */
+	private int reduce( final int[] x, final int[] y, final double[] v, final int[] free )
+	{
+		final int nRows = x.length;
+		final int nCols = y.length;
+
+		/*
+		 * Column reduction
+		 */
+
+		Arrays.fill( v, Double.MAX_VALUE );
+		for ( int i = 0; i < nRows; i++ )
+		{
+			final int n = cm.rowSize( i );
+			for ( int k = 0; k < n; k++ )
+			{
+				final int j = cm.column( i, k );
+				final double c = cm.cost( i, k );
+				if ( c < v[ j ] )
+				{
+					v[ j ] = c;
+					y[ j ] = i + 1;
+				}
+			}
+		}
+
+		for ( int j = nCols - 1; j >= 0; j-- )
+		{
+			final int i = y[ j ] - 1;
+			if ( x[ i ] == 0 )
+			{
+				x[ i ] = j + 1;
+			}
+			else
+			{
+				if ( x[ i ] > 0 )
+				{
+					x[ i ] = -x[ i ];
+				}
+				y[ j ] = 0;
+			}
+		}
+
+		/*
+		 * Reduction transfer.
+		 */
+
+		int f = 0;
+		for ( int i = 0; i < nRows; i++ )
+		{
+			if ( x[ i ] == 0 )
+			{
+				// unassigned row in free-array
+				free[ f++ ] = i;
+				continue;
+			}
+			else if ( x[ i ] < 0 )
+			{
+				// no reduction transfer possible
+				x[ i ] = -x[ i ];
+			}
+			else
+			{
+				// reduction transfer from assigned row
+				final int j1 = x[ i ] - 1;
+				double min = Double.MAX_VALUE;
+				final int n = cm.rowSize( i );
+				for ( int k = 0; k < n; k++ )
+				{
+					final int j = cm.column( i, k );
+					if ( j != j1 )
+					{
+						final double h = cm.cost( i, k ) - v[ j ];
+						if ( h < min )
+						{
+							min = h;
+						}
+					}
+				}
+				v[ j1 ] -= min;
+			}
+		}
+
+		return f;
+	}
+
+	private void prepareOutput( final int[] x, final double[] v, final long start )
+	{
+		this.duals = v;
 		this.output = new int[ x.length ];
 		for ( int i = 0; i < x.length; i++ )
 		{
@@ -377,7 +493,6 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 
 		final long end = System.currentTimeMillis();
 		processingTime = end - start;
-		return true;
 	}
 
 	/*
@@ -387,20 +502,31 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 	@Override
 	public boolean checkInput()
 	{
-		if ( cm.nRows > cm.nCols )
+		if ( cm.getNRows() > cm.getNCols() )
 		{
-			errorMessage = BASE_ERROR_MESSAGE + "This solver converges only if the cost matrix has more rows than column. Found " + cm.nRows + " rows and " + cm.nCols + " columns.";
+			errorMessage = BASE_ERROR_MESSAGE + "This solver converges only if the cost matrix has more rows than column. Found " + cm.getNRows() + " rows and " + cm.getNCols() + " columns.";
 			return false;
 		}
-		final double minCost = Util.min( cm.cc );
+		final double minCost = cm.minCost();
 		if ( minCost < 0 )
 		{
 			errorMessage = BASE_ERROR_MESSAGE + "This solver only accept positive costs. Found " + minCost + ".";
 			return false;
 		}
+		if ( null != initialDuals && initialDuals.length != cm.getNCols() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The initial duals must have one element per column. Found " + initialDuals.length + " for " + cm.getNCols() + " columns.";
+			return false;
+		}
 		return true;
 	}
 
+	@Override
+	public double[] getColumnDuals()
+	{
+		return duals;
+	}
+
 	@Override
 	public String getErrorMessage()
 	{
@@ -435,13 +561,13 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 	{
 		if ( null == output ) { return "Not solved yet. Process the algorithm prior to calling this method."; }
 
-		final String[] colNames = new String[ cm.nCols ];
+		final String[] colNames = new String[ cm.getNCols() ];
 		// default names
 		for ( int j = 0; j < colNames.length; j++ )
 		{
 			colNames[ j ] = "" + j;
 		}
-		final String[] rowNames = new String[ cm.nRows ];
+		final String[] rowNames = new String[ cm.getNRows() ];
 		for ( int i = 0; i < rowNames.length; i++ )
 		{
 			rowNames[ i ] = "" + i;
@@ -521,7 +647,7 @@ public class LAPJV implements OutputAlgorithm< int[] >, Benchmark
 			}
 			str.append( String.format( " cost = %" + digits + ".1f\n", cost ) );
 		}
-		if ( cm.nCols > cm.nRows )
+		if ( cm.getNCols() > cm.getNRows() )
 		{
 			str.append( "Unassigned columns:\n" );
 			for ( final String ucn : unassignedColNames )
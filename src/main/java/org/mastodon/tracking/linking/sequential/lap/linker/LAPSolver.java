@@ -0,0 +1,73 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import org.mastodon.tracking.linking.LinkingProgress;
+
+import net.imglib2.algorithm.Benchmark;
+import net.imglib2.algorithm.OutputAlgorithm;
+
+/**
+ * Interface for solvers of linear assignment problems specified by a
+ * {@link LAPCostMatrix}.
+ * <p>
+ * The result is the row assignment: row <code>i</code> is assigned to column
+ * <code>getResult()[i]</code>. The matrix must have no more rows than
+ * columns, and all its rows must be assignable.
+ * <p>
+ * Solvers can be warm-started from column duals, see
+ * {@link LAPSolverType#create(LAPCostMatrix, java.util.concurrent.ExecutorService, double[])}.
+ *
+ * @see LAPSolverType
+ */
+public interface LAPSolver extends OutputAlgorithm< int[] >, Benchmark
+{
+
+	/**
+	 * Returns the column duals at the end of the solve, or <code>null</code>
+	 * if the problem has not been solved yet. The reduced cost
+	 * <code>c(i,j) - v[j]</code> of each row is minimal at the column it is
+	 * assigned to (up to epsilon for the auction solver). These duals can be
+	 * used to warm-start the solve of a similar problem.
+	 *
+	 * @return the column duals, one per column.
+	 */
+	public double[] getColumnDuals();
+
+	/**
+	 * Sets the token through which the solver reports its progress and checks
+	 * for cancellation. A canceled solver returns <code>false</code> from
+	 * {@link #process()}. By default, solvers ignore the token.
+	 *
+	 * @param progress
+	 *            the progress token.
+	 */
+	public default void setProgress( final LinkingProgress progress )
+	{}
+}
@@ -0,0 +1,202 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Specify which solver is used for linear assignment problems.
+ */
+public enum LAPSolverType
+{
+	/**
+	 * Pick the solver expected to be the fastest, based on the matrix size,
+	 * density and cost spread.
+	 */
+	AUTO( "automatic" ),
+	/**
+	 * The Jonker-Volgenant solver.
+	 */
+	LAPJV( "Jonker-Volgenant" ),
+	/**
+	 * The auction solver, with epsilon scaling. The assignment is
+	 * epsilon-optimal rather than optimal.
+	 */
+	AUCTION( "auction" ),
+	/**
+	 * Successive shortest augmenting paths on a heap.
+	 */
+	SHORTEST_AUGMENTING_PATH( "shortest augmenting path" );
+
+	/**
+	 * Below this number of rows, the problem is solved with LAPJV whatever its
+	 * structure.
+	 */
+	private static final int SMALL_PROBLEM = 2000;
+
+	/**
+	 * Below this density, large problems are solved with shortest augmenting
+	 * paths.
+	 */
+	private static final double SPARSE = 0.002;
+
+	/**
+	 * Above this density, large square problems are candidates for the
+	 * auction solver.
+	 */
+	private static final double DENSE = 0.05;
+
+	/**
+	 * The auction solver is picked only if the cost spread is smaller than
+	 * this factor times the mean cost.
+	 */
+	private static final double MAX_SPREAD = 10.;
+
+	private final String str;
+
+	LAPSolverType( final String str )
+	{
+		this.str = str;
+	}
+
+	@Override
+	public String toString()
+	{
+		return str;
+	}
+
+	/**
+	 * Creates a solver of this type for the specified cost matrix.
+	 *
+	 * @param cm
+	 *            the cost matrix.
+	 * @param executorService
+	 *            an executor service the solver may use for parallel
+	 *            processing, or <code>null</code>.
+	 * @return a new solver.
+	 */
+	public LAPSolver create( final LAPCostMatrix cm, final ExecutorService executorService )
+	{
+		return create( cm, executorService, null );
+	}
+
+	/**
+	 * Creates a solver of this type for the specified cost matrix,
+	 * warm-started from the specified column duals.
+	 *
+	 * @param cm
+	 *            the cost matrix.
+	 * @param executorService
+	 *            an executor service the solver may use for parallel
+	 *            processing, or <code>null</code>.
+	 * @param columnDuals
+	 *            the initial column duals, one per column, or
+	 *            <code>null</code> to start from scratch.
+	 * @return a new solver.
+	 */
+	public LAPSolver create( final LAPCostMatrix cm, final ExecutorService executorService, final double[] columnDuals )
+	{
+		switch ( this )
+		{
+		case AUTO:
+			return choose( cm ).create( cm, executorService, columnDuals );
+		case AUCTION:
+			return new AuctionLAP( cm, executorService, columnDuals );
+		case SHORTEST_AUGMENTING_PATH:
+			return new ShortestAugmentingPathLAP( cm, columnDuals );
+		case LAPJV:
+		default:
+			return new org.mastodon.tracking.linking.sequential.lap.linker.LAPJV( cm, columnDuals );
+		}
+	}
+
+	/**
+	 * Returns the solver type expected to be the fastest for the specified
+	 * matrix.
+	 * <ul>
+	 * <li>Small problems go to LAPJV, whose initialization heuristics solve
+	 * most of them outright.</li>
+	 * <li>Large, very sparse problems, typical of frame-to-frame linking, go
+	 * to the shortest augmenting path solver, whose searches only visit
+	 * reachable columns.</li>
+	 * <li>Large, dense, square problems with a small cost spread go to the
+	 * auction solver.</li>
+	 * <li>Everything else goes to LAPJV.</li>
+	 * </ul>
+	 *
+	 * @param cm
+	 *            the cost matrix.
+	 * @return a solver type, never {@link #AUTO}.
+	 */
+	public static LAPSolverType choose( final LAPCostMatrix cm )
+	{
+		final int nRows = cm.getNRows();
+		final int nCols = cm.getNCols();
+		if ( nRows < SMALL_PROBLEM )
+			return LAPJV;
+
+		long nnz = 0;
+		for ( int i = 0; i < nRows; i++ )
+			nnz += cm.rowSize( i );
+		final double density = nnz / ( ( double ) nRows * nCols );
+		if ( density < SPARSE )
+			return SHORTEST_AUGMENTING_PATH;
+		if ( density < DENSE || nRows != nCols )
+			return LAPJV;
+
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0.;
+		for ( int i = 0; i < nRows; i++ )
+		{
+			final int size = cm.rowSize( i );
+			for ( int k = 0; k < size; k++ )
+			{
+				final double c = cm.cost( i, k );
+				min = Math.min( min, c );
+				max = Math.max( max, c );
+				sum += c;
+			}
+		}
+		final double mean = sum / nnz;
+		return ( max - min < MAX_SPREAD * mean ) ? AUCTION : LAPJV;
+	}
+
+	public static LAPSolverType getOrDefault( final String name, final LAPSolverType defaultType )
+	{
+		try
+		{
+			return LAPSolverType.valueOf( name );
+		}
+		catch ( final IllegalArgumentException | NullPointerException e )
+		{
+			return defaultType;
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * An array of <code>int</code>s indexed by <code>long</code>, stored out of
+ * the Java heap in a memory-mapped temporary file. Used for the structures
+ * derived from a {@link MappedSparseCostMatrix}, which can have more than
+ * {@link Integer#MAX_VALUE} entries.
+ */
+final class MappedIntArray
+{
+
+	private static final int CHUNK_SHIFT = 26;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final IntBuffer[] chunks;
+
+	private final long size;
+
+	/**
+	 * Creates a new array of the specified size, filled with zeros.
+	 *
+	 * @param size
+	 *            the number of elements.
+	 * @throws IOException
+	 *             if the temporary file cannot be created or mapped.
+	 */
+	MappedIntArray( final long size ) throws IOException
+	{
+		this.size = size;
+		final int nChunks = ( int ) ( ( size + CHUNK_SIZE - 1 ) >>> CHUNK_SHIFT );
+		this.chunks = new IntBuffer[ nChunks ];
+		final File file = File.createTempFile( "costmatrix-transpose-", ".bin" );
+		try (final RandomAccessFile raf = new RandomAccessFile( file, "rw" ))
+		{
+			final FileChannel channel = raf.getChannel();
+			for ( int c = 0; c < nChunks; c++ )
+			{
+				final long from = ( long ) c << CHUNK_SHIFT;
+				final long n = Math.min( CHUNK_SIZE, size - from );
+				chunks[ c ] = channel.map( MapMode.READ_WRITE, from * Integer.BYTES, n * Integer.BYTES ).asIntBuffer();
+			}
+		}
+		finally
+		{
+			// Mappings stay valid after the file is closed and deleted.
+			file.delete();
+		}
+	}
+
+	long size()
+	{
+		return size;
+	}
+
+	int get( final long i )
+	{
+		return chunks[ ( int ) ( i >>> CHUNK_SHIFT ) ].get( ( int ) ( i & CHUNK_MASK ) );
+	}
+
+	void set( final long i, final int value )
+	{
+		chunks[ ( int ) ( i >>> CHUNK_SHIFT ) ].put( ( int ) ( i & CHUNK_MASK ), value );
+	}
+}
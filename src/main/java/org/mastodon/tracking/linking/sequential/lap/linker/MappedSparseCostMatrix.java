@@ -0,0 +1,422 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+
+/**
+ * A sparse cost matrix stored out of the Java heap, in memory-mapped files,
+ * for linear assignment problems too large to fit in memory.
+ * <p>
+ * The matrix follows the row compressed storage convention of
+ * {@link SparseCostMatrix}. The column indices and the costs are stored in two
+ * temporary files, mapped in chunks, so that the operating system pages them
+ * in and out as needed. Only the index of where each row starts is kept on
+ * the heap. Solvers such as {@link LAPJV} access the matrix row by row
+ * through the {@link LAPCostMatrix} interface.
+ * <p>
+ * The matrix is built incrementally, one row at a time, with a
+ * {@link Writer}, so that costs can be written while the candidates are
+ * generated, without ever holding all of them in memory. Empty rows are
+ * skipped, and columns without any cost are removed when the matrix is built.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class MappedSparseCostMatrix implements LAPCostMatrix
+{
+
+	/**
+	 * Log2 of the number of entries per mapped chunk.
+	 */
+	private static final int CHUNK_SHIFT = 26;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+	private static final long CHUNK_MASK = CHUNK_SIZE - 1;
+
+	private final IntBuffer[] kk;
+
+	private final DoubleBuffer[] cc;
+
+	/**
+	 * The index of the first entry of each row, plus the cardinality.
+	 */
+	private final long[] start;
+
+	private final int nRows;
+
+	private final int nCols;
+
+	private final double minCost;
+
+	private MappedSparseCostMatrix( final IntBuffer[] kk, final DoubleBuffer[] cc, final long[] start, final int nCols, final double minCost )
+	{
+		this.kk = kk;
+		this.cc = cc;
+		this.start = start;
+		this.nRows = start.length - 1;
+		this.nCols = nCols;
+		this.minCost = minCost;
+	}
+
+	/**
+	 * Returns the number of non-infinite costs in this matrix.
+	 *
+	 * @return the cardinality.
+	 */
+	public long getCardinality()
+	{
+		return start[ nRows ];
+	}
+
+	@Override
+	public int getNRows()
+	{
+		return nRows;
+	}
+
+	@Override
+	public int getNCols()
+	{
+		return nCols;
+	}
+
+	@Override
+	public int rowSize( final int i )
+	{
+		return ( int ) ( start[ i + 1 ] - start[ i ] );
+	}
+
+	@Override
+	public int column( final int i, final int k )
+	{
+		return columnAt( start[ i ] + k );
+	}
+
+	@Override
+	public double cost( final int i, final int k )
+	{
+		final long e = start[ i ] + k;
+		return cc[ ( int ) ( e >>> CHUNK_SHIFT ) ].get( ( int ) ( e & CHUNK_MASK ) );
+	}
+
+	@Override
+	public int indexOf( final int i, final int j )
+	{
+		long low = start[ i ];
+		long high = start[ i + 1 ] - 1;
+		while ( low <= high )
+		{
+			final long mid = ( low + high ) >>> 1;
+			final int c = columnAt( mid );
+			if ( c < j )
+				low = mid + 1;
+			else if ( c > j )
+				high = mid - 1;
+			else
+				return ( int ) ( mid - start[ i ] );
+		}
+		return -1;
+	}
+
+	@Override
+	public double minCost()
+	{
+		return minCost;
+	}
+
+	private int columnAt( final long e )
+	{
+		return kk[ ( int ) ( e >>> CHUNK_SHIFT ) ].get( ( int ) ( e & CHUNK_MASK ) );
+	}
+
+	@Override
+	public String toString()
+	{
+		return super.toString() + "\n  " + nRows + " × " + nCols + " memory-mapped matrix with " + getCardinality() + " non-null elements.";
+	}
+
+	/**
+	 * Writes a {@link MappedSparseCostMatrix} row by row.
+	 * <p>
+	 * Rows are appended in increasing order with {@link #addRow(int[], double[], int)},
+	 * and the matrix is mapped with {@link #build()}. Rows without costs are
+	 * skipped: {@link #getKeptRows()} returns the index of the rows that made
+	 * it to the matrix, and {@link #getKeptColumns()} the index of the
+	 * columns that have at least one cost.
+	 */
+	public static class Writer
+	{
+
+		/** Size of the write buffers, in entries. */
+		private static final int BUFFER_SIZE = 1 << 16;
+
+		private final int nCols;
+
+		private final File colFile;
+
+		private final File costFile;
+
+		private final RandomAccessFile colRaf;
+
+		private final RandomAccessFile costRaf;
+
+		private final ByteBuffer colBuffer;
+
+		private final ByteBuffer costBuffer;
+
+		private final int[] colHistogram;
+
+		private long[] start = new long[ 1024 ];
+
+		private int[] keptRows = new int[ 1024 ];
+
+		private int nRows = 0;
+
+		private int row = 0;
+
+		private long cardinality = 0;
+
+		private double minCost = Double.POSITIVE_INFINITY;
+
+		private int[] keptColumns;
+
+		/**
+		 * Creates a new writer for a matrix with the specified number of
+		 * columns, storing its data in temporary files in the specified
+		 * directory.
+		 *
+		 * @param nCols
+		 *            the number of columns, before empty columns are removed.
+		 * @param directory
+		 *            the directory for the temporary files, or
+		 *            <code>null</code> to use the default temporary
+		 *            directory.
+		 * @throws IOException
+		 *             if the temporary files cannot be created.
+		 */
+		public Writer( final int nCols, final File directory ) throws IOException
+		{
+			this.nCols = nCols;
+			this.colHistogram = new int[ nCols ];
+			// Files are deleted by build() or discard(), or here on failure.
+			File cols = null;
+			File costs = null;
+			RandomAccessFile colsRaf = null;
+			RandomAccessFile costsRaf = null;
+			try
+			{
+				cols = File.createTempFile( "costmatrix-columns-", ".bin", directory );
+				costs = File.createTempFile( "costmatrix-costs-", ".bin", directory );
+				colsRaf = new RandomAccessFile( cols, "rw" );
+				costsRaf = new RandomAccessFile( costs, "rw" );
+			}
+			catch ( final IOException e )
+			{
+				if ( colsRaf != null )
+					colsRaf.close();
+				if ( cols != null )
+					cols.delete();
+				if ( costs != null )
+					costs.delete();
+				throw e;
+			}
+			this.colFile = cols;
+			this.costFile = costs;
+			this.colRaf = colsRaf;
+			this.costRaf = costsRaf;
+			this.colBuffer = ByteBuffer.allocateDirect( BUFFER_SIZE * Integer.BYTES );
+			this.costBuffer = ByteBuffer.allocateDirect( BUFFER_SIZE * Double.BYTES );
+		}
+
+		/**
+		 * Appends the next row to the matrix. Rows without costs are skipped,
+		 * but still count for the row indices.
+		 *
+		 * @param cols
+		 *            the columns of the costs of the row, in increasing order.
+		 * @param costs
+		 *            the costs of the row.
+		 * @param n
+		 *            the number of costs in the row.
+		 * @throws IOException
+		 *             if the costs cannot be written.
+		 * @throws IllegalArgumentException
+		 *             if the columns are not sorted or out of bounds.
+		 */
+		public void addRow( final int[] cols, final double[] costs, final int n ) throws IOException
+		{
+			final int i = row++;
+			if ( n == 0 )
+				return;
+
+			int previous = -1;
+			for ( int k = 0; k < n; k++ )
+			{
+				final int j = cols[ k ];
+				if ( j <= previous || j >= nCols )
+					throw new IllegalArgumentException( "At row " + i + ", the columns must be sorted and smaller than " + nCols + ". Found " + j + " after " + previous + "." );
+				previous = j;
+				colHistogram[ j ]++;
+				minCost = Math.min( minCost, costs[ k ] );
+
+				if ( !colBuffer.hasRemaining() )
+					flush();
+				colBuffer.putInt( j );
+				costBuffer.putDouble( costs[ k ] );
+			}
+
+			if ( nRows + 1 >= start.length )
+			{
+				start = Arrays.copyOf( start, 2 * start.length );
+				keptRows = Arrays.copyOf( keptRows, 2 * keptRows.length );
+			}
+			keptRows[ nRows ] = i;
+			cardinality += n;
+			start[ ++nRows ] = cardinality;
+		}
+
+		private void flush() throws IOException
+		{
+			colBuffer.flip();
+			while ( colBuffer.hasRemaining() )
+				colRaf.getChannel().write( colBuffer );
+			colBuffer.clear();
+			costBuffer.flip();
+			while ( costBuffer.hasRemaining() )
+				costRaf.getChannel().write( costBuffer );
+			costBuffer.clear();
+		}
+
+		/**
+		 * Returns the index of the rows stored in the matrix, that is of the
+		 * rows that have at least one cost, in the order they were added.
+		 *
+		 * @return the indices of the kept rows.
+		 */
+		public int[] getKeptRows()
+		{
+			return Arrays.copyOf( keptRows, nRows );
+		}
+
+		/**
+		 * Returns the index of the columns stored in the matrix, that is of
+		 * the columns that have at least one cost. Only available after
+		 * {@link #build()}.
+		 *
+		 * @return the indices of the kept columns.
+		 */
+		public int[] getKeptColumns()
+		{
+			return keptColumns;
+		}
+
+		/**
+		 * Finishes writing, and maps the matrix. Columns without costs are
+		 * removed, and the remaining ones renumbered in order.
+		 *
+		 * @return a new memory-mapped matrix.
+		 * @throws IOException
+		 *             if the files cannot be written or mapped.
+		 */
+		public MappedSparseCostMatrix build() throws IOException
+		{
+			flush();
+
+			// Renumber columns, skipping those without costs.
+			final int[] newIndex = new int[ nCols ];
+			int nKept = 0;
+			for ( int j = 0; j < nCols; j++ )
+				newIndex[ j ] = colHistogram[ j ] > 0 ? nKept++ : -1;
+			keptColumns = new int[ nKept ];
+			for ( int j = 0; j < nCols; j++ )
+				if ( newIndex[ j ] >= 0 )
+					keptColumns[ newIndex[ j ] ] = j;
+
+			final int nChunks = ( int ) ( ( cardinality + CHUNK_SIZE - 1 ) >>> CHUNK_SHIFT );
+			final IntBuffer[] kk = new IntBuffer[ nChunks ];
+			final DoubleBuffer[] cc = new DoubleBuffer[ nChunks ];
+			try
+			{
+				final FileChannel colChannel = colRaf.getChannel();
+				final FileChannel costChannel = costRaf.getChannel();
+				for ( int c = 0; c < nChunks; c++ )
+				{
+					final long from = ( long ) c << CHUNK_SHIFT;
+					final long size = Math.min( CHUNK_SIZE, cardinality - from );
+					kk[ c ] = colChannel.map( MapMode.READ_WRITE, from * Integer.BYTES, size * Integer.BYTES ).asIntBuffer();
+					cc[ c ] = costChannel.map( MapMode.READ_ONLY, from * Double.BYTES, size * Double.BYTES ).asDoubleBuffer();
+					if ( nKept < nCols )
+						for ( int k = 0; k < size; k++ )
+							kk[ c ].put( k, newIndex[ kk[ c ].get( k ) ] );
+				}
+			}
+			finally
+			{
+				// Mappings stay valid after the channels are closed.
+				colRaf.close();
+				costRaf.close();
+				// Files can be deleted while mapped on most platforms.
+				colFile.delete();
+				costFile.delete();
+			}
+
+			return new MappedSparseCostMatrix( kk, cc, Arrays.copyOf( start, nRows + 1 ), nKept, minCost );
+		}
+
+		/**
+		 * Stops writing without building the matrix, and deletes the temporary
+		 * files.
+		 *
+		 * @throws IOException
+		 *             if the files cannot be closed.
+		 */
+		public void discard() throws IOException
+		{
+			try
+			{
+				colRaf.close();
+				costRaf.close();
+			}
+			finally
+			{
+				colFile.delete();
+				costFile.delete();
+			}
+		}
+	}
+}
@@ -0,0 +1,364 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.linking.sequential.lap.linker;
+
+import java.util.Arrays;
+
+import org.mastodon.tracking.linking.LinkingProgress;
+
+/**
+ * Solves linear assignment problems with successive shortest augmenting
+ * paths, searched with Dijkstra's algorithm on a binary heap.
+ * <p>
+ * This is the augmentation phase of the Jonker-Volgenant algorithm, without
+ * its initialization heuristics. Unlike {@link LAPJV}, which scans all the
+ * columns to find the next closest one, the search here only visits the
+ * columns reachable through the non-infinite costs, which makes it faster on
+ * large and very sparse matrices.
+ * <p>
+ * The search can be warm-started from column duals, for instance the duals
+ * of a previously solved, similar problem. Any initial duals give the optimal
+ * assignment; good duals make the searches shorter. By default, the duals
+ * are initialized by column reduction.
+ *
+ * @author Jean-Yves Tinevez
+ */
+public class ShortestAugmentingPathLAP implements LAPSolver
+{
+
+	private static final String BASE_ERROR_MESSAGE = "[ShortestAugmentingPathLAP] ";
+
+	private final LAPCostMatrix cm;
+
+	private final double[] initialDuals;
+
+	private int[] output;
+
+	private double[] duals;
+
+	private String errorMessage;
+
+	private long processingTime;
+
+	private LinkingProgress progress = LinkingProgress.NONE;
+
+	/**
+	 * Instantiates a new solver for the specified cost matrix, with duals
+	 * initialized by column reduction.
+	 *
+	 * @param cm
+	 *            the cost matrix of the linear assignment problem to solve.
+	 */
+	public ShortestAugmentingPathLAP( final LAPCostMatrix cm )
+	{
+		this( cm, null );
+	}
+
+	/**
+	 * Instantiates a new solver for the specified cost matrix, warm-started
+	 * from the specified column duals.
+	 *
+	 * @param cm
+	 *            the cost matrix of the linear assignment problem to solve.
+	 * @param columnDuals
+	 *            the initial column duals, one per column. If
+	 *            <code>null</code>, duals are initialized by column
+	 *            reduction.
+	 */
+	public ShortestAugmentingPathLAP( final LAPCostMatrix cm, final double[] columnDuals )
+	{
+		this.cm = cm;
+		this.initialDuals = columnDuals;
+	}
+
+	/**
+	 * Sets the token through which progress is reported and cancellation is
+	 * checked, before each row is assigned.
+	 */
+	@Override
+	public void setProgress( final LinkingProgress progress )
+	{
+		this.progress = null == progress ? LinkingProgress.NONE : progress;
+	}
+
+	@Override
+	public boolean checkInput()
+	{
+		if ( cm.getNRows() > cm.getNCols() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "This solver converges only if the cost matrix has more rows than column. Found " + cm.getNRows() + " rows and " + cm.getNCols() + " columns.";
+			return false;
+		}
+		if ( null != initialDuals && initialDuals.length != cm.getNCols() )
+		{
+			errorMessage = BASE_ERROR_MESSAGE + "The initial duals must have one element per column. Found " + initialDuals.length + " for " + cm.getNCols() + " columns.";
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public boolean process()
+	{
+		final long start = System.currentTimeMillis();
+
+		final int nRows = cm.getNRows();
+		final int nCols = cm.getNCols();
+
+		final double[] v;
+		if ( null != initialDuals )
+		{
+			v = initialDuals.clone();
+		}
+		else
+		{
+			// Column reduction.
+			v = new double[ nCols ];
+			Arrays.fill( v, Double.POSITIVE_INFINITY );
+			for ( int i = 0; i < nRows; i++ )
+			{
+				final int n = cm.rowSize( i );
+				for ( int k = 0; k < n; k++ )
+				{
+					final int j = cm.column( i, k );
+					v[ j ] = Math.min( v[ j ], cm.cost( i, k ) );
+				}
+			}
+			for ( int j = 0; j < nCols; j++ )
+				if ( v[ j ] == Double.POSITIVE_INFINITY )
+					v[ j ] = 0.;
+		}
+
+		final int[] x = new int[ nRows ];
+		Arrays.fill( x, -1 );
+		final int[] y = new int[ nCols ];
+		Arrays.fill( y, -1 );
+
+		final double[] d = new double[ nCols ];
+		final int[] pred = new int[ nCols ];
+		// Search in which d[j] was last set, and in which j was settled.
+		final int[] reached = new int[ nCols ];
+		final int[] settled = new int[ nCols ];
+		final int[] settledList = new int[ nCols ];
+		final Heap heap = new Heap();
+
+		for ( int r = 0; r < nRows; r++ )
+		{
+			if ( progress.isCanceled() )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Canceled.";
+				return false;
+			}
+			progress.progress( ( double ) r / nRows );
+			final int search = r + 1;
+			heap.clear();
+			final int n0 = cm.rowSize( r );
+			for ( int k = 0; k < n0; k++ )
+			{
+				final int j = cm.column( r, k );
+				final double dj = cm.cost( r, k ) - v[ j ];
+				d[ j ] = dj;
+				reached[ j ] = search;
+				pred[ j ] = r;
+				heap.push( dj, j );
+			}
+
+			int sink = -1;
+			double min = 0.;
+			int nSettled = 0;
+			while ( !heap.isEmpty() )
+			{
+				final double dj = heap.topKey();
+				final int j = heap.pop();
+				if ( settled[ j ] == search || dj > d[ j ] )
+					continue;
+
+				settled[ j ] = search;
+				settledList[ nSettled++ ] = j;
+				if ( y[ j ] < 0 )
+				{
+					sink = j;
+					min = dj;
+					break;
+				}
+
+				// Continue the path through the row assigned to j.
+				final int i = y[ j ];
+				final double ui = cm.cost( i, cm.indexOf( i, j ) ) - v[ j ];
+				final int n = cm.rowSize( i );
+				for ( int k = 0; k < n; k++ )
+				{
+					final int jj = cm.column( i, k );
+					if ( settled[ jj ] == search )
+						continue;
+					final double h = dj + cm.cost( i, k ) - v[ jj ] - ui;
+					if ( reached[ jj ] != search || h < d[ jj ] )
+					{
+						d[ jj ] = h;
+						reached[ jj ] = search;
+						pred[ jj ] = i;
+						heap.push( h, jj );
+					}
+				}
+			}
+
+			if ( sink < 0 )
+			{
+				errorMessage = BASE_ERROR_MESSAGE + "Row " + r + " cannot be assigned.";
+				return false;
+			}
+
+			// Update duals of the settled columns.
+			for ( int s = 0; s < nSettled; s++ )
+			{
+				final int j = settledList[ s ];
+				v[ j ] += d[ j ] - min;
+			}
+
+			// Augment along the path.
+			int j = sink;
+			int i;
+			do
+			{
+				i = pred[ j ];
+				y[ j ] = i;
+				final int k = x[ i ];
+				x[ i ] = j;
+				j = k;
+			}
+			while ( i != r );
+		}
+
+		progress.progress( 1. );
+		this.output = x;
+		this.duals = v;
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		return true;
+	}
+
+	@Override
+	public double[] getColumnDuals()
+	{
+		return duals;
+	}
+
+	@Override
+	public int[] getResult()
+	{
+		return output;
+	}
+
+	@Override
+	public String getErrorMessage()
+	{
+		return errorMessage;
+	}
+
+	@Override
+	public long getProcessingTime()
+	{
+		return processingTime;
+	}
+
+	/**
+	 * Binary min-heap of columns, on primitive arrays. Columns whose distance
+	 * decreases are pushed again, and outdated entries are skipped when
+	 * popped.
+	 */
+	private static final class Heap
+	{
+
+		private double[] keys = new double[ 64 ];
+
+		private int[] values = new int[ 64 ];
+
+		private int size = 0;
+
+		void clear()
+		{
+			size = 0;
+		}
+
+		boolean isEmpty()
+		{
+			return size == 0;
+		}
+
+		double topKey()
+		{
+			return keys[ 0 ];
+		}
+
+		void push( final double key, final int value )
+		{
+			if ( size == keys.length )
+			{
+				keys = Arrays.copyOf( keys, 2 * size );
+				values = Arrays.copyOf( values, 2 * size );
+			}
+			int c = size++;
+			while ( c > 0 )
+			{
+				final int p = ( c - 1 ) >>> 1;
+				if ( keys[ p ] <= key )
+					break;
+				keys[ c ] = keys[ p ];
+				values[ c ] = values[ p ];
+				c = p;
+			}
+			keys[ c ] = key;
+			values[ c ] = value;
+		}
+
+		int pop()
+		{
+			final int top = values[ 0 ];
+			final double key = keys[ --size ];
+			final int value = values[ size ];
+			int p = 0;
+			while ( true )
+			{
+				int c = 2 * p + 1;
+				if ( c >= size )
+					break;
+				if ( c + 1 < size && keys[ c + 1 ] < keys[ c ] )
+					c++;
+				if ( key <= keys[ c ] )
+					break;
+				keys[ p ] = keys[ c ];
+				values[ p ] = values[ c ];
+				p = c;
+			}
+			keys[ p ] = key;
+			values[ p ] = value;
+			return top;
+		}
+	}
+}
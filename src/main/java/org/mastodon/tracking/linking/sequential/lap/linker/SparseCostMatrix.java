@@ -57,9 +57,18 @@ import java.util.List;
  *
  * @author Jean-Yves Tinevez - 2014
  */
-public class SparseCostMatrix
+public class SparseCostMatrix implements LAPCostMatrix
 {
 
+	/**
+	 * Name of the system property that, when set to <code>true</code>, makes
+	 * {@link #trusted(double[], int[], int[], int)} validate its arrays like
+	 * the public constructor does.
+	 */
+	public static final String VALIDATE_PROPERTY = "mastodon.tracking.validateCostMatrices";
+
+	private static final boolean VALIDATE = Boolean.getBoolean( VALIDATE_PROPERTY );
+
 	/**
 	 * The linear array of non-infinite costs.
 	 */
@@ -128,6 +137,11 @@ public class SparseCostMatrix
 	 *             0 non-infinite costs.
 	 */
 	public SparseCostMatrix( final double[] cc, final int[] kk, final int[] number, final int nCols )
+	{
+		this( cc, kk, number, nCols, true );
+	}
+
+	private SparseCostMatrix( final double[] cc, final int[] kk, final int[] number, final int nCols, final boolean validate )
 	{
 		this.cc = cc;
 		this.kk = kk;
@@ -147,10 +161,13 @@ public class SparseCostMatrix
 		}
 		for ( int i = 1; i < nRows; i++ )
 		{
-			if ( number[ i ] == 0 ) { throw new IllegalArgumentException( "All the rows must have at least one cost. Row " + i + " have none." ); }
+			if ( validate && number[ i ] == 0 ) { throw new IllegalArgumentException( "All the rows must have at least one cost. Row " + i + " have none." ); }
 			start[ i ] = start[ i - 1 ] + number[ i - 1 ];
 		}
 
+		if ( !validate )
+			return;
+
 		final int[] colHistogram = new int[ nCols ];
 		for ( int i = 0; i < nRows; i++ )
 		{
@@ -173,6 +190,38 @@ public class SparseCostMatrix
 		}
 	}
 
+	/**
+	 * Instantiate a new sparse cost matrix from arrays that are known to be
+	 * properly arranged, skipping the checks performed by the public
+	 * constructor.
+	 * <p>
+	 * This is meant for producers that build the arrays themselves and
+	 * therefore already guarantee that each row and each column has at least
+	 * one cost, and that the column indices are in range and sorted within
+	 * each row: the cost matrix creators, the sub-matrices of independent
+	 * components, and the concatenation and transposition methods of this
+	 * class. The checks cost a full pass over the non-infinite costs, which
+	 * adds up on large problems. They can be re-enabled for debugging by
+	 * setting the <code>{@value #VALIDATE_PROPERTY}</code> system property to
+	 * <code>true</code>.
+	 *
+	 * @param cc
+	 *            the cost array.
+	 * @param kk
+	 *            the column index of each cost.
+	 * @param number
+	 *            the number of element for each row.
+	 * @param nCols
+	 *            the number of columns in the matrix.
+	 * @return a new sparse cost matrix.
+	 * @throws IllegalArgumentException
+	 *             if the cost and column arrays are not of the same size.
+	 */
+	public static SparseCostMatrix trusted( final double[] cc, final int[] kk, final int[] number, final int nCols )
+	{
+		return new SparseCostMatrix( cc, kk, number, nCols, VALIDATE );
+	}
+
 	public SparseCostMatrix()
 	{
 		this.start = new int[] {};
@@ -314,6 +363,7 @@ public class SparseCostMatrix
 	 *            the assignment, specified by row.
 	 * @return the total cost for this assignment.
 	 */
+	@Override
 	public double totalAssignmentCost( final int[] rowAssignment )
 	{
 		double sum = 0;
@@ -368,6 +418,7 @@ public class SparseCostMatrix
 	 *            the specified row and column.
 	 * @return the value.
 	 */
+	@Override
 	public final double get( final int i, final int j, final double missingValue )
 	{
 		final int k = Arrays.binarySearch( kk, start[ i ], start[ i ] + number[ i ], j );
@@ -391,16 +442,53 @@ public class SparseCostMatrix
 		return cc;
 	}
 
+	@Override
 	public int getNCols()
 	{
 		return nCols;
 	}
 
+	@Override
 	public int getNRows()
 	{
 		return nRows;
 	}
 
+	@Override
+	public int rowSize( final int i )
+	{
+		return number[ i ];
+	}
+
+	@Override
+	public int column( final int i, final int k )
+	{
+		return kk[ start[ i ] + k ];
+	}
+
+	@Override
+	public double cost( final int i, final int k )
+	{
+		return cc[ start[ i ] + k ];
+	}
+
+	@Override
+	public int indexOf( final int i, final int j )
+	{
+		final int k = Arrays.binarySearch( kk, start[ i ], start[ i ] + number[ i ], j );
+		return k < 0 ? -1 : k - start[ i ];
+	}
+
+	@Override
+	public double minCost()
+	{
+		double min = Double.POSITIVE_INFINITY;
+		for ( final double c : cc )
+			if ( c < min )
+				min = c;
+		return min;
+	}
+
 	/**
 	 * Returns the vertical concatenation of this matrix with the specified one.
 	 * So that if this matrix is A and the specified matrix is B, you get
@@ -436,7 +524,7 @@ public class SparseCostMatrix
 		System.arraycopy( B.cc, 0, cc2, cardinality, B.cardinality );
 		System.arraycopy( B.number, 0, number2, nRows, B.nRows );
 
-		return new SparseCostMatrix( cc2, kk2, number2, nCols );
+		return trusted( cc2, kk2, number2, nCols );
 	}
 
 	/**
@@ -489,7 +577,7 @@ public class SparseCostMatrix
 			number2[ i ] = number[ i ] + B.number[ i ];
 		}
 
-		return new SparseCostMatrix( cc2, kk2, number2, nCols + B.nCols );
+		return trusted( cc2, kk2, number2, nCols + B.nCols );
 	}
 
 	/**
@@ -551,7 +639,7 @@ public class SparseCostMatrix
 			System.arraycopy( costs[ i ], 0, cc2, index, number2[ i ] );
 			index += number2[ i ];
 		}
-		return new SparseCostMatrix( cc2, kk2, number2, nRows );
+		return trusted( cc2, kk2, number2, nRows );
 	}
 
 	/**
@@ -62,6 +62,13 @@ public abstract class AbstractSpotDetectorOp extends AbstractUnaryHybridCF< List
 	@Parameter( type = ItemIO.BOTH, required = false )
 	protected DetectionQualityFeature qualityFeature;
 
+	/**
+	 * If not <code>null</code>, the detections are sent to this output
+	 * instead of being added to the graph.
+	 */
+	@Parameter( type = ItemIO.INPUT, required = false )
+	protected DetectionCreatorFactory detectionOutput;
+
 	@Parameter( type = ItemIO.OUTPUT )
 	protected String errorMessage;
 
@@ -136,6 +143,9 @@ public abstract class AbstractSpotDetectorOp extends AbstractUnaryHybridCF< List
 	 * Instantiates a default {@link DetectionCreatorFactory} configured to add
 	 * spots to the specified {@link ModelGraph}.
 	 * <p>
+	 * If a detection output was specified, it is returned instead, and the
+	 * graph is left untouched.
+	 * <p>
 	 * If a setting key 'ADD_BEHAVIOR' exists in the {@link #settings} field,
 	 * the corresponding factory will be returned. Otherwise, the factory
 	 * created adds spots to the graph, regardless of possibly pre-existing
@@ -150,6 +160,9 @@ public abstract class AbstractSpotDetectorOp extends AbstractUnaryHybridCF< List
 		/*
 		 * Resolve add detection behavior.
 		 */
+		if ( null != detectionOutput )
+			return detectionOutput;
+
 		final DetectionCreatorFactory detectionCreator;
 		if ( null == sti )
 		{
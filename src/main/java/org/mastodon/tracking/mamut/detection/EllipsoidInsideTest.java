@@ -36,6 +36,10 @@ import net.imglib2.util.LinAlgHelpers;
  * Offers facilities to determine whether a point is inside an ellipsoid, as
  * specified by a <code>double[3][3]</code> covariance matrix like in Mastodon.
  * <p>
+ * The covariance of the spot is inverted for every test. To test many
+ * positions against the spots of a time-point, {@link SpotConflictIndex}
+ * inverts each covariance once when it is built.
+ * <p>
  * Adapted from ScreenVertexMath.
  */
 public class EllipsoidInsideTest
@@ -30,8 +30,6 @@ package org.mastodon.tracking.mamut.detection;
 
 import org.mastodon.collection.RefCollections;
 import org.mastodon.collection.RefList;
-import org.mastodon.collection.RefSet;
-import org.mastodon.kdtree.IncrementalNearestNeighborSearch;
 import org.mastodon.mamut.model.Model;
 import org.mastodon.mamut.model.ModelGraph;
 import org.mastodon.mamut.model.Spot;
@@ -40,8 +38,6 @@ import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.tracking.detection.DetectionCreatorFactory;
 import org.mastodon.tracking.detection.DetectionCreatorFactory.DetectionCreator;
 
-import net.imglib2.RealPoint;
-
 /**
  * Collection of {@link DetectionCreatorFactory}s suitable to be used with a
  * MaMuT {@link Model}.
@@ -142,9 +138,9 @@ public class MamutDetectionCreatorFactories
 
 	/**
 	 * Default detection creator suitable to create {@link Spot} vertices in a
-	 * {@link ModelGraph} from the detection returned by the detector. Takes care of
-	 * acquiring the writing lock before adding all the detections of a time-point
-	 * and returning it after. Also resets and feeds the quality value to a quality
+	 * {@link ModelGraph} from the detection returned by the detector. Buffers the
+	 * detections of a time-point, and adds them all under a single acquisition of
+	 * the writing lock once the time-point is complete. Also resets and feeds the quality value to a quality
 	 * feature.
 	 * <p>
 	 * Add spots to the model, regardless of whether there is an existing one
@@ -184,31 +180,41 @@ public class MamutDetectionCreatorFactories
 
 		protected final ModelGraph graph;
 
+		private final SpotBatch batch;
+
 		private AddDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final int timepoint )
 		{
 			this.graph = graph;
 			this.qualityFeature = qualityFeature;
 			this.timepoint = timepoint;
 			this.ref = graph.vertexRef();
+			this.batch = new SpotBatch();
 		}
 
 		@Override
 		public void preAddition()
 		{
-			graph.getLock().writeLock().lock();
+			batch.clear();
 		}
 
 		@Override
 		public void postAddition()
 		{
-			graph.getLock().writeLock().unlock();
+			graph.getLock().writeLock().lock();
+			try
+			{
+				batch.commit( graph, qualityFeature, timepoint, ref );
+			}
+			finally
+			{
+				graph.getLock().writeLock().unlock();
+			}
 		}
 
 		@Override
 		public void createDetection( final double[] pos, final double radius, final double quality )
 		{
-			final Spot spot = graph.addVertex( ref ).init( timepoint, pos, radius );
-			qualityFeature.set( spot, quality );
+			batch.add( pos, radius, quality );
 		}
 	}
 
@@ -248,6 +254,8 @@ public class MamutDetectionCreatorFactories
 
 		private final Spot ref;
 
+		private final SpotBatch batch;
+
 		public RemoveAllDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final SpatialIndex< Spot > spatialIndex, final int timepoint )
 		{
 			this.graph = graph;
@@ -255,34 +263,40 @@ public class MamutDetectionCreatorFactories
 			this.spatialIndex = spatialIndex;
 			this.timepoint = timepoint;
 			this.ref = graph.vertexRef();
+			this.batch = new SpotBatch();
 		}
 
 		@Override
 		public void preAddition()
 		{
-			graph.getLock().readLock().lock();
-			final RefList< Spot > toRemove = RefCollections.createRefList( graph.vertices() );
-			// Remove all in time-point.
-			for ( final Spot spot : spatialIndex )
-				toRemove.add( spot );
-
-			graph.getLock().readLock().unlock();
-			graph.getLock().writeLock().lock();
-			for ( final Spot spot : toRemove )
-				graph.remove( spot );
+			batch.clear();
 		}
 
 		@Override
 		public void createDetection( final double[] pos, final double radius, final double quality )
 		{
-			final Spot spot = graph.addVertex( ref ).init( timepoint, pos, radius );
-			qualityFeature.set( spot, quality );
+			batch.add( pos, radius, quality );
 		}
 
 		@Override
 		public void postAddition()
 		{
-			graph.getLock().writeLock().unlock();
+			graph.getLock().writeLock().lock();
+			try
+			{
+				final RefList< Spot > toRemove = RefCollections.createRefList( graph.vertices() );
+				// Remove all in time-point.
+				for ( final Spot spot : spatialIndex )
+					toRemove.add( spot );
+				for ( final Spot spot : toRemove )
+					graph.remove( spot );
+
+				batch.commit( graph, qualityFeature, timepoint, ref );
+			}
+			finally
+			{
+				graph.getLock().writeLock().unlock();
+			}
 		}
 	}
 
@@ -312,16 +326,8 @@ public class MamutDetectionCreatorFactories
 	private static class ReplaceDetectionCreator implements DetectionCreator
 	{
 
-		private final IncrementalNearestNeighborSearch< Spot > search;
-
-		private double r2max = 0.;
-
 		private final SpatialIndex< Spot > si;
 
-		private final EllipsoidInsideTest test;
-
-		private final RefSet< Spot > toRemove;
-
 		private final ModelGraph graph;
 
 		private final DetectionQualityFeature qualityFeature;
@@ -330,6 +336,8 @@ public class MamutDetectionCreatorFactories
 
 		private final Spot ref;
 
+		private final SpotBatch batch;
+
 		private ReplaceDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final SpatialIndex< Spot > si, final int timepoint )
 		{
 			this.graph = graph;
@@ -337,52 +345,47 @@ public class MamutDetectionCreatorFactories
 			this.si = si;
 			this.timepoint = timepoint;
 			this.ref = graph.vertexRef();
-			this.search = si.getIncrementalNearestNeighborSearch();
-			this.test = new EllipsoidInsideTest();
-			this.toRemove = RefCollections.createRefSet( graph.vertices() );
+			this.batch = new SpotBatch();
 		}
 
 		@Override
 		public void preAddition()
 		{
-			toRemove.clear();
-			// Measure current max bounding sphere radius squared.
-			graph.getLock().readLock().lock();
-			this.r2max = 0.;
-			for ( final Spot spot : si )
-				if ( spot.getBoundingSphereRadiusSquared() > r2max )
-					r2max = spot.getBoundingSphereRadiusSquared();
-
-			graph.getLock().readLock().unlock();
-			graph.getLock().writeLock().lock();
+			batch.clear();
 		}
 
 		@Override
 		public void createDetection( final double[] pos, final double radius, final double quality )
 		{
-			final Spot spot = graph.addVertex( ref ).init( timepoint, pos, radius );
-			qualityFeature.set( spot, quality );
-			search.search( spot );
-			final double lr2 = Math.max( r2max, radius * radius );
-			while ( search.hasNext() )
-			{
-				final Spot neigbhor = search.next();
-				if ( neigbhor.equals( spot ) )
-					continue;
-				if ( search.getSquareDistance() > lr2 )
-					break;
-				if ( test.areCentersInside( spot, neigbhor ) )
-					toRemove.add( neigbhor );
-			}
+			batch.add( pos, radius, quality );
 		}
 
 		@Override
 		public void postAddition()
 		{
-			for ( final Spot spot : toRemove )
-				graph.remove( spot );
-
-			graph.getLock().writeLock().unlock();
+			graph.getLock().writeLock().lock();
+			try
+			{
+				// Resolve all the detections against the existing spots.
+				final SpotConflictIndex index = new SpotConflictIndex( si, graph );
+				final boolean[] toRemove = new boolean[ index.size() ];
+				final double[] pos = new double[ 3 ];
+				for ( int i = 0; i < batch.size(); i++ )
+				{
+					batch.localize( i, pos );
+					index.forEachConflict( pos, batch.getRadius( i ), j -> toRemove[ j ] = true );
+				}
+
+				for ( int j = 0; j < toRemove.length; j++ )
+					if ( toRemove[ j ] )
+						graph.remove( index.getSpot( j, ref ) );
+
+				batch.commit( graph, qualityFeature, timepoint, ref );
+			}
+			finally
+			{
+				graph.getLock().writeLock().unlock();
+			}
 		}
 	}
 
@@ -412,10 +415,6 @@ public class MamutDetectionCreatorFactories
 	private static class DontAddDetectionCreator implements DetectionCreator
 	{
 
-		private final IncrementalNearestNeighborSearch< Spot > search;
-
-		private double r2max;
-
 		private final ModelGraph graph;
 
 		private final DetectionQualityFeature qualityFeature;
@@ -424,60 +423,54 @@ public class MamutDetectionCreatorFactories
 
 		private final SpatialIndex< Spot > si;
 
-		private final EllipsoidInsideTest test;
-
 		private final Spot ref;
 
-		private final RealPoint center;
+		private final SpotBatch batch;
 
 		private DontAddDetectionCreator( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final SpatialIndex< Spot > si, final int timepoint )
 		{
 			this.graph = graph;
 			this.qualityFeature = qualityFeature;
 			this.si = si;
-			this.search = si.getIncrementalNearestNeighborSearch();
 			this.timepoint = timepoint;
 			this.ref = graph.vertexRef();
-			this.test = new EllipsoidInsideTest();
-			this.center = new RealPoint( 3 );
+			this.batch = new SpotBatch();
 		}
 
 		@Override
 		public void preAddition()
 		{
-			graph.getLock().readLock().lock();
-			this.r2max = 0.;
-			for ( final Spot spot : si )
-				if ( spot.getBoundingSphereRadiusSquared() > r2max )
-					r2max = spot.getBoundingSphereRadiusSquared();
-
-			graph.getLock().readLock().unlock();
-			graph.getLock().writeLock().lock();
+			batch.clear();
 		}
 
 		@Override
 		public void createDetection( final double[] pos, final double radius, final double quality )
 		{
-			center.setPosition( pos );
-			search.search( center );
-			final double lr2 = Math.max( r2max, radius * radius );
-			while ( search.hasNext() )
-			{
-				final Spot neigbhor = search.next();
-				if ( search.getSquareDistance() > lr2 )
-					break;
-				if ( test.isCenterWithin( neigbhor, pos, radius ) || test.isPointInside( pos, neigbhor ) )
-					return;
-			}
-
-			final Spot spot = graph.addVertex( ref ).init( timepoint, pos, radius );
-			qualityFeature.set( spot, quality );
+			batch.add( pos, radius, quality );
 		}
 
 		@Override
 		public void postAddition()
 		{
-			graph.getLock().writeLock().unlock();
+			graph.getLock().writeLock().lock();
+			try
+			{
+				// Resolve all the detections against the existing spots.
+				final SpotConflictIndex index = new SpotConflictIndex( si, graph );
+				final boolean[] keep = new boolean[ batch.size() ];
+				final double[] pos = new double[ 3 ];
+				for ( int i = 0; i < batch.size(); i++ )
+				{
+					batch.localize( i, pos );
+					keep[ i ] = !index.hasConflict( pos, batch.getRadius( i ) );
+				}
+
+				batch.commit( graph, qualityFeature, timepoint, ref, keep );
+			}
+			finally
+			{
+				graph.getLock().writeLock().unlock();
+			}
 		}
 	}
 
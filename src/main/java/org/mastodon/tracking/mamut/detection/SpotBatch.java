@@ -0,0 +1,172 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.mamut.detection;
+
+import java.util.Arrays;
+
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+/**
+ * Buffers the detections of one time-point in primitive arrays, and adds them
+ * to a {@link ModelGraph} in one go.
+ * <p>
+ * Buffering lets the detection creators hold the graph write lock only while
+ * the spots are actually added. The spots are still added one by one: graph
+ * listeners and the spatio-temporal index are notified of each spot, so that
+ * the additions are recorded for undo. Mastodon offers no bulk insertion that
+ * keeps the undo history, so notifications are not grouped per batch.
+ */
+class SpotBatch
+{
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private double[] x = new double[ INITIAL_CAPACITY ];
+
+	private double[] y = new double[ INITIAL_CAPACITY ];
+
+	private double[] z = new double[ INITIAL_CAPACITY ];
+
+	private double[] radius = new double[ INITIAL_CAPACITY ];
+
+	private double[] quality = new double[ INITIAL_CAPACITY ];
+
+	private int size = 0;
+
+	/**
+	 * Empties this batch.
+	 */
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/**
+	 * Adds a detection to this batch.
+	 *
+	 * @param pos
+	 *            the position of the detection.
+	 * @param r
+	 *            the radius of the detection.
+	 * @param q
+	 *            the quality of the detection.
+	 */
+	public void add( final double[] pos, final double r, final double q )
+	{
+		if ( size == x.length )
+		{
+			final int capacity = 2 * size;
+			x = Arrays.copyOf( x, capacity );
+			y = Arrays.copyOf( y, capacity );
+			z = Arrays.copyOf( z, capacity );
+			radius = Arrays.copyOf( radius, capacity );
+			quality = Arrays.copyOf( quality, capacity );
+		}
+		x[ size ] = pos[ 0 ];
+		y[ size ] = pos[ 1 ];
+		z[ size ] = pos[ 2 ];
+		radius[ size ] = r;
+		quality[ size ] = q;
+		size++;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Writes the position of the specified detection in the specified array.
+	 */
+	public void localize( final int i, final double[] pos )
+	{
+		pos[ 0 ] = x[ i ];
+		pos[ 1 ] = y[ i ];
+		pos[ 2 ] = z[ i ];
+	}
+
+	public double getRadius( final int i )
+	{
+		return radius[ i ];
+	}
+
+	public double getQuality( final int i )
+	{
+		return quality[ i ];
+	}
+
+	/**
+	 * Adds the detections of this batch as spots to the graph. Must be
+	 * called with the graph write lock held.
+	 *
+	 * @param graph
+	 *            the graph to add spots to.
+	 * @param qualityFeature
+	 *            the feature to store the detection quality in.
+	 * @param timepoint
+	 *            the time-point of the spots.
+	 * @param ref
+	 *            a spot reference of the graph.
+	 */
+	public void commit( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final int timepoint, final Spot ref )
+	{
+		commit( graph, qualityFeature, timepoint, ref, null );
+	}
+
+	/**
+	 * Adds the detections of this batch for which <code>keep</code> is
+	 * <code>true</code> as spots to the graph. Must be called with the graph
+	 * write lock held.
+	 *
+	 * @param graph
+	 *            the graph to add spots to.
+	 * @param qualityFeature
+	 *            the feature to store the detection quality in.
+	 * @param timepoint
+	 *            the time-point of the spots.
+	 * @param ref
+	 *            a spot reference of the graph.
+	 * @param keep
+	 *            which detections to add. If <code>null</code>, all the
+	 *            detections are added.
+	 */
+	public void commit( final ModelGraph graph, final DetectionQualityFeature qualityFeature, final int timepoint, final Spot ref, final boolean[] keep )
+	{
+		final double[] pos = new double[ 3 ];
+		for ( int i = 0; i < size; i++ )
+		{
+			if ( null != keep && !keep[ i ] )
+				continue;
+			localize( i, pos );
+			final Spot spot = graph.addVertex( ref ).init( timepoint, pos, radius[ i ] );
+			qualityFeature.set( spot, quality[ i ] );
+		}
+	}
+}
@@ -0,0 +1,359 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.mamut.detection;
+
+import java.util.function.IntConsumer;
+
+import org.mastodon.collection.RefCollections;
+import org.mastodon.collection.RefList;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+
+import net.imglib2.util.LinAlgHelpers;
+
+/**
+ * A static index of the spots of a time-point, used to find the existing
+ * spots that conflict with new detections.
+ * <p>
+ * A new detection, specified by a position and a radius, conflicts with an
+ * existing spot if the center of the spot is within the detection radius, or
+ * if the detection position is inside the spot ellipsoid. This is the test
+ * made by {@link EllipsoidInsideTest#areCentersInside(Spot, Spot)} between a
+ * spherical detection and a spot.
+ * <p>
+ * The positions, precision matrices and bounding-sphere radii of the spots
+ * are copied in primitive arrays when the index is built, so that resolving
+ * does not inspect the graph anymore. The spots are stored in a balanced
+ * KD-tree in which every node records the bounding box and the largest
+ * bounding-sphere radius of its subtree. A query only visits the subtrees
+ * that could contain a conflicting spot, so a few large spots in the
+ * time-point do not widen the search for all the detections.
+ * <p>
+ * The index must be built with at least the graph read lock held, and
+ * becomes stale as soon as the spots it indexes are modified.
+ */
+final class SpotConflictIndex
+{
+
+	private final int n;
+
+	/** The spots, in tree order. */
+	private final RefList< Spot > spots;
+
+	/** Spot positions, 3 per spot, in tree order. */
+	private final double[] pos;
+
+	/**
+	 * Spot precision matrices, 6 per spot (xx, xy, xz, yy, yz, zz), in tree
+	 * order.
+	 */
+	private final double[] precision;
+
+	/** Spot bounding-sphere radii, in tree order. */
+	private final double[] radius;
+
+	/** Bounding box of the subtree rooted at each node, 6 per node. */
+	private final double[] bbox;
+
+	/** Largest bounding-sphere radius in the subtree rooted at each node. */
+	private final double[] maxRadius;
+
+	/**
+	 * Builds an index of the specified spots.
+	 *
+	 * @param spots
+	 *            the spots to index.
+	 * @param graph
+	 *            the graph the spots belong to.
+	 */
+	public SpotConflictIndex( final Iterable< Spot > spots, final ModelGraph graph )
+	{
+		final RefList< Spot > list = RefCollections.createRefList( graph.vertices() );
+		for ( final Spot spot : spots )
+			list.add( spot );
+		this.n = list.size();
+
+		final double[] p = new double[ 3 * n ];
+		final double[] prec = new double[ 6 * n ];
+		final double[] r = new double[ n ];
+		final double[][] cov = new double[ 3 ][ 3 ];
+		final double[][] P = new double[ 3 ][ 3 ];
+		final Spot ref = graph.vertexRef();
+		for ( int i = 0; i < n; i++ )
+		{
+			final Spot spot = list.get( i, ref );
+			p[ 3 * i ] = spot.getDoublePosition( 0 );
+			p[ 3 * i + 1 ] = spot.getDoublePosition( 1 );
+			p[ 3 * i + 2 ] = spot.getDoublePosition( 2 );
+			spot.getCovariance( cov );
+			LinAlgHelpers.invertSymmetric3x3( cov, P );
+			prec[ 6 * i ] = P[ 0 ][ 0 ];
+			prec[ 6 * i + 1 ] = P[ 0 ][ 1 ];
+			prec[ 6 * i + 2 ] = P[ 0 ][ 2 ];
+			prec[ 6 * i + 3 ] = P[ 1 ][ 1 ];
+			prec[ 6 * i + 4 ] = P[ 1 ][ 2 ];
+			prec[ 6 * i + 5 ] = P[ 2 ][ 2 ];
+			r[ i ] = Math.sqrt( spot.getBoundingSphereRadiusSquared() );
+		}
+
+		// Sort the spots in tree order.
+		final int[] order = new int[ n ];
+		for ( int i = 0; i < n; i++ )
+			order[ i ] = i;
+		build( order, p, 0, n );
+
+		this.spots = RefCollections.createRefList( graph.vertices(), n );
+		this.pos = new double[ 3 * n ];
+		this.precision = new double[ 6 * n ];
+		this.radius = new double[ n ];
+		for ( int i = 0; i < n; i++ )
+		{
+			final int o = order[ i ];
+			spots.add( list.get( o, ref ) );
+			System.arraycopy( p, 3 * o, pos, 3 * i, 3 );
+			System.arraycopy( prec, 6 * o, precision, 6 * i, 6 );
+			radius[ i ] = r[ o ];
+		}
+		graph.releaseRef( ref );
+
+		this.bbox = new double[ 6 * n ];
+		this.maxRadius = new double[ n ];
+		if ( n > 0 )
+			bounds( 0, n );
+	}
+
+	/**
+	 * Returns the number of spots in this index.
+	 *
+	 * @return the number of spots.
+	 */
+	public int size()
+	{
+		return n;
+	}
+
+	/**
+	 * Returns the spot with the specified index.
+	 *
+	 * @param i
+	 *            the index of the spot, as passed to
+	 *            {@link #forEachConflict(double[], double, IntConsumer)}.
+	 * @param ref
+	 *            a spot reference.
+	 * @return the spot.
+	 */
+	public Spot getSpot( final int i, final Spot ref )
+	{
+		return spots.get( i, ref );
+	}
+
+	/**
+	 * Returns <code>true</code> if a spot of this index conflicts with the
+	 * specified detection.
+	 *
+	 * @param p
+	 *            the detection position.
+	 * @param r
+	 *            the detection radius.
+	 * @return <code>true</code> if there is a conflict.
+	 */
+	public boolean hasConflict( final double[] p, final double r )
+	{
+		return search( p, r, 0, n, null );
+	}
+
+	/**
+	 * Calls the specified consumer with the index of every spot that
+	 * conflicts with the specified detection.
+	 *
+	 * @param p
+	 *            the detection position.
+	 * @param r
+	 *            the detection radius.
+	 * @param consumer
+	 *            the consumer, called with spot indices.
+	 */
+	public void forEachConflict( final double[] p, final double r, final IntConsumer consumer )
+	{
+		search( p, r, 0, n, consumer );
+	}
+
+	/**
+	 * Searches the subtree over <code>[lo, hi)</code>. Returns at the first
+	 * conflict if the consumer is <code>null</code>.
+	 */
+	private boolean search( final double[] p, final double r, final int lo, final int hi, final IntConsumer consumer )
+	{
+		if ( lo >= hi )
+			return false;
+
+		final int m = ( lo + hi ) >>> 1;
+		final double bound = Math.max( r, maxRadius[ m ] );
+		double d2 = 0.;
+		for ( int d = 0; d < 3; d++ )
+		{
+			final double x = p[ d ];
+			final double min = bbox[ 6 * m + d ];
+			final double max = bbox[ 6 * m + 3 + d ];
+			final double dx = x < min ? min - x : ( x > max ? x - max : 0. );
+			d2 += dx * dx;
+		}
+		if ( d2 >= bound * bound )
+			return false;
+
+		if ( isConflict( m, p, r ) )
+		{
+			if ( null == consumer )
+				return true;
+			consumer.accept( m );
+		}
+		return search( p, r, lo, m, consumer ) || search( p, r, m + 1, hi, consumer );
+	}
+
+	private boolean isConflict( final int i, final double[] p, final double r )
+	{
+		final double dx = p[ 0 ] - pos[ 3 * i ];
+		final double dy = p[ 1 ] - pos[ 3 * i + 1 ];
+		final double dz = p[ 2 ] - pos[ 3 * i + 2 ];
+		final double d2 = dx * dx + dy * dy + dz * dz;
+		if ( d2 < r * r )
+			return true;
+		if ( d2 >= radius[ i ] * radius[ i ] )
+			return false;
+
+		final int o = 6 * i;
+		final double m2 = precision[ o ] * dx * dx
+				+ precision[ o + 3 ] * dy * dy
+				+ precision[ o + 5 ] * dz * dz
+				+ 2. * ( precision[ o + 1 ] * dx * dy
+						+ precision[ o + 2 ] * dx * dz
+						+ precision[ o + 4 ] * dy * dz );
+		return m2 < 1.;
+	}
+
+	/**
+	 * Orders the specified range so that the median along the dimension with
+	 * the largest extent is in the middle, recursively.
+	 */
+	private static void build( final int[] order, final double[] p, final int lo, final int hi )
+	{
+		if ( hi - lo < 2 )
+			return;
+
+		int dim = 0;
+		double extent = -1.;
+		for ( int d = 0; d < 3; d++ )
+		{
+			double min = Double.POSITIVE_INFINITY;
+			double max = Double.NEGATIVE_INFINITY;
+			for ( int i = lo; i < hi; i++ )
+			{
+				final double x = p[ 3 * order[ i ] + d ];
+				min = Math.min( min, x );
+				max = Math.max( max, x );
+			}
+			if ( max - min > extent )
+			{
+				extent = max - min;
+				dim = d;
+			}
+		}
+
+		final int m = ( lo + hi ) >>> 1;
+		select( order, p, dim, lo, hi - 1, m );
+		build( order, p, lo, m );
+		build( order, p, m + 1, hi );
+	}
+
+	/**
+	 * Partially sorts <code>order[lo..hi]</code> so that the element at
+	 * <code>k</code> is the one that would be there if the range was sorted
+	 * along <code>dim</code>.
+	 */
+	private static void select( final int[] order, final double[] p, final int dim, int lo, int hi, final int k )
+	{
+		while ( hi > lo )
+		{
+			final double pivot = p[ 3 * order[ ( lo + hi ) >>> 1 ] + dim ];
+			int i = lo;
+			int j = hi;
+			while ( i <= j )
+			{
+				while ( p[ 3 * order[ i ] + dim ] < pivot )
+					i++;
+				while ( p[ 3 * order[ j ] + dim ] > pivot )
+					j--;
+				if ( i <= j )
+				{
+					final int tmp = order[ i ];
+					order[ i ] = order[ j ];
+					order[ j ] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if ( k <= j )
+				hi = j;
+			else if ( k >= i )
+				lo = i;
+			else
+				return;
+		}
+	}
+
+	/**
+	 * Computes the bounding box and largest radius of the subtree over
+	 * <code>[lo, hi)</code>, and returns the index of its root.
+	 */
+	private int bounds( final int lo, final int hi )
+	{
+		final int m = ( lo + hi ) >>> 1;
+		for ( int d = 0; d < 3; d++ )
+		{
+			bbox[ 6 * m + d ] = pos[ 3 * m + d ];
+			bbox[ 6 * m + 3 + d ] = pos[ 3 * m + d ];
+		}
+		maxRadius[ m ] = radius[ m ];
+		if ( lo < m )
+			merge( m, bounds( lo, m ) );
+		if ( m + 1 < hi )
+			merge( m, bounds( m + 1, hi ) );
+		return m;
+	}
+
+	private void merge( final int node, final int child )
+	{
+		for ( int d = 0; d < 3; d++ )
+		{
+			bbox[ 6 * node + d ] = Math.min( bbox[ 6 * node + d ], bbox[ 6 * child + d ] );
+			bbox[ 6 * node + 3 + d ] = Math.max( bbox[ 6 * node + 3 + d ], bbox[ 6 * child + 3 + d ] );
+		}
+		maxRadius[ node ] = Math.max( maxRadius[ node ], maxRadius[ child ] );
+	}
+}
@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.mamut.linking;
+
+import java.util.Map;
+
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.ModelGraph;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.spatial.SpatioTemporalIndex;
+import org.mastodon.tracking.linking.LinkingUtils;
+import org.mastodon.tracking.linking.graph.DirtyRegions;
+import org.mastodon.tracking.linking.graph.lap.IncrementalSparseLAPLinker;
+import org.scijava.plugin.Plugin;
+
+import net.imagej.ops.special.inplace.Inplaces;
+
+/**
+ * Links again the parts of the model graph edited since it was last linked
+ * with the LAP linker. See {@link IncrementalSparseLAPLinker}.
+ * <p>
+ * This linker is not offered in the wizard. It is used by
+ * {@link org.mastodon.tracking.mamut.trackmate.TrackMate#execIncrementalParticleLinking()}.
+ */
+@Plugin( type = IncrementalSparseLAPLinkerMamut.class )
+public class IncrementalSparseLAPLinkerMamut extends AbstractSpotLinkerOp
+{
+
+	private DirtyRegions< Spot, Link > dirtyRegions;
+
+	/**
+	 * Sets the edits to link again.
+	 *
+	 * @param dirtyRegions
+	 *            the edits.
+	 */
+	public void setDirtyRegions( final DirtyRegions< Spot, Link > dirtyRegions )
+	{
+		this.dirtyRegions = dirtyRegions;
+	}
+
+	@Override
+	public void mutate1( final ModelGraph graph, final SpatioTemporalIndex< Spot > spots )
+	{
+		ok = false;
+		if ( null == linkCostFeature )
+			linkCostFeature = new LinkCostFeature( graph.edges().getRefPool() );
+
+		final long start = System.currentTimeMillis();
+
+		@SuppressWarnings( { "rawtypes", "unchecked" } )
+		final IncrementalSparseLAPLinker< Spot, Link > linker = ( IncrementalSparseLAPLinker ) Inplaces.binary1( ops(), IncrementalSparseLAPLinker.class,
+				graph, spots,
+				settings, featureModel,
+				spotComparator(), edgeCreator( graph ) );
+		linker.setLogger( logger );
+		linker.setStatusService( statusService );
+		linker.setDirtyRegions( dirtyRegions );
+		this.cancelable = linker;
+		linker.mutate1( graph, spots );
+
+		ok = linker.isSuccessful();
+		errorMessage = linker.getErrorMessage();
+
+		final long end = System.currentTimeMillis();
+		processingTime = end - start;
+		cancelable = null;
+	}
+
+	@Override
+	public Map< String, Object > getDefaultSettings()
+	{
+		return LinkingUtils.getDefaultLAPSettingsMap();
+	}
+}
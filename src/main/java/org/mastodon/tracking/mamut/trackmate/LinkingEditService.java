@@ -0,0 +1,181 @@
+/*-
+ * #%L
+ * mastodon-tracking
+ * %%
+ * Copyright (C) 2017 - 2025 Tobias Pietzsch, Jean-Yves Tinevez
+ * %%
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice,
+ *    this list of conditions and the following disclaimer.
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDERS OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ * #L%
+ */
+package org.mastodon.tracking.mamut.trackmate;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.mastodon.mamut.ProjectModel;
+import org.mastodon.mamut.model.Link;
+import org.mastodon.mamut.model.Model;
+import org.mastodon.mamut.model.Spot;
+import org.mastodon.tracking.linking.graph.DirtyRegions;
+import org.mastodon.tracking.mamut.linking.SpotLinkerOp;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.SciJavaService;
+import org.scijava.service.Service;
+
+/**
+ * Records the spots edited in a model since its last particle-linking, so
+ * that it can be linked again incrementally. See
+ * {@link TrackMate#execIncrementalParticleLinking()}.
+ * <p>
+ * There is one {@link DirtyRegions} per model, created at the first
+ * particle-linking of the model. It also remembers the linker and settings
+ * of this linking, since incremental linking only makes sense with the same
+ * ones. The regions stop listening to the model when it is forgotten, when
+ * its project is closed, or when this service is disposed.
+ */
+@Plugin( type = Service.class )
+public class LinkingEditService extends AbstractService implements SciJavaService
+{
+
+	private final Map< Model, Tracker > trackers = new HashMap<>();
+
+	/** The models whose project is watched for closing. */
+	private final Set< Model > watched = new HashSet<>();
+
+	/**
+	 * Returns the spots edited in the specified model since it was last
+	 * linked with the specified linker and settings, or <code>null</code> if
+	 * it was not linked yet or was linked with another linker or other
+	 * settings.
+	 *
+	 * @param model
+	 *            the model.
+	 * @param linker
+	 *            the linker class.
+	 * @param settings
+	 *            the linker settings.
+	 * @return the edits, or <code>null</code>.
+	 */
+	public synchronized DirtyRegions< Spot, Link > getDirtyRegions( final Model model, final Class< ? extends SpotLinkerOp > linker, final Map< String, Object > settings )
+	{
+		final Tracker tracker = trackers.get( model );
+		if ( null == tracker || !tracker.linker.equals( linker ) || !tracker.settings.equals( copy( settings ) ) )
+			return null;
+		return tracker.dirtyRegions;
+	}
+
+	/**
+	 * Declares that the specified model was just linked with the specified
+	 * linker and settings. Edits are recorded from now on.
+	 *
+	 * @param model
+	 *            the model.
+	 * @param linker
+	 *            the linker class.
+	 * @param settings
+	 *            the linker settings.
+	 */
+	public synchronized void linked( final Model model, final Class< ? extends SpotLinkerOp > linker, final Map< String, Object > settings )
+	{
+		Tracker tracker = trackers.get( model );
+		if ( null == tracker )
+		{
+			tracker = new Tracker( new DirtyRegions<>( model.getGraph() ) );
+			trackers.put( model, tracker );
+		}
+		tracker.dirtyRegions.clear();
+		tracker.linker = linker;
+		tracker.settings = copy( settings );
+	}
+
+	/**
+	 * Stops recording the edits of the model of the specified project when
+	 * the project is closed.
+	 *
+	 * @param appModel
+	 *            the project.
+	 */
+	public synchronized void forgetOnClose( final ProjectModel appModel )
+	{
+		final Model model = appModel.getModel();
+		if ( watched.add( model ) )
+			appModel.projectClosedListeners().add( () -> forget( model ) );
+	}
+
+	/**
+	 * Stops recording the edits of the specified model.
+	 *
+	 * @param model
+	 *            the model.
+	 */
+	public synchronized void forget( final Model model )
+	{
+		watched.remove( model );
+		final Tracker tracker = trackers.remove( model );
+		if ( null != tracker )
+			tracker.dirtyRegions.close();
+	}
+
+	@Override
+	public synchronized void dispose()
+	{
+		for ( final Tracker tracker : trackers.values() )
+			tracker.dirtyRegions.close();
+		trackers.clear();
+		watched.clear();
+	}
+
+	/**
+	 * Copies a settings map, and the maps it contains, so that later changes
+	 * to the settings are detected.
+	 */
+	private static Map< String, Object > copy( final Map< String, Object > settings )
+	{
+		final Map< String, Object > copy = new HashMap<>();
+		if ( null == settings )
+			return copy;
+		for ( final Map.Entry< String, Object > entry : settings.entrySet() )
+		{
+			final Object value = entry.getValue();
+			copy.put( entry.getKey(), value instanceof Map ? new HashMap<>( ( Map< ?, ? > ) value ) : value );
+		}
+		return copy;
+	}
+
+	private static final class Tracker
+	{
+
+		private final DirtyRegions< Spot, Link > dirtyRegions;
+
+		private Class< ? extends SpotLinkerOp > linker;
+
+		private Map< String, Object > settings;
+
+		private Tracker( final DirtyRegions< Spot, Link > dirtyRegions )
+		{
+			this.dirtyRegions = dirtyRegions;
+		}
+	}
+}
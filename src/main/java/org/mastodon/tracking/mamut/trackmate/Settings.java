@@ -32,6 +32,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.mastodon.tracking.detection.DetectionCreatorFactory;
 import org.mastodon.tracking.detection.DetectionUtil;
 import org.mastodon.tracking.linking.LinkingUtils;
 import org.mastodon.tracking.mamut.detection.DoGDetectorMamut;
@@ -68,6 +69,22 @@ public class Settings
 		return this;
 	}
 
+	/**
+	 * Sets the output of the detection step. If not <code>null</code>, the
+	 * detections are sent to this output instead of being added as spots to
+	 * the model graph.
+	 *
+	 * @param detectionOutput
+	 *            the detection output, or <code>null</code> to add the
+	 *            detections to the model graph.
+	 * @return this settings instance.
+	 */
+	public Settings detectionOutput( final DetectionCreatorFactory detectionOutput )
+	{
+		values.detectionOutput = detectionOutput;
+		return this;
+	}
+
 	public Settings linker( final Class< ? extends SpotLinkerOp > linker )
 	{
 		values.linker = linker;
@@ -105,6 +122,8 @@ public class Settings
 		str.append( " - detector settings: @" + values.detectorSettings.hashCode() + "\n" );
 		for ( final String key : values.detectorSettings.keySet() )
 			str.append( "    - " + key + " = " + values.detectorSettings.get( key ) + "\n" );
+		if ( null != values.detectionOutput )
+			str.append( " - detection output: " + values.detectionOutput + "\n" );
 		str.append( " - linker: " + values.linker + "\n" );
 		str.append( " - linker settings: @" + values.linkerSettings.hashCode() + "\n" );
 		for ( final String key : values.linkerSettings.keySet() )
@@ -121,6 +140,8 @@ public class Settings
 
 		private Map< String, Object > detectorSettings = DetectionUtil.getDefaultDetectorSettingsMap();
 
+		private DetectionCreatorFactory detectionOutput = null;
+
 		private Class< ? extends SpotLinkerOp > linker = SimpleSparseLAPLinkerMamut.class;
 
 		private Map< String, Object > linkerSettings = LinkingUtils.getDefaultLAPSettingsMap();
@@ -136,6 +157,7 @@ public class Settings
 			v.sources = sources;
 			v.detector = detector;
 			v.detectorSettings = new HashMap<>( detectorSettings );
+			v.detectionOutput = detectionOutput;
 			v.linker = linker;
 			v.linkerSettings = new HashMap<>( linkerSettings );
 			return v;
@@ -146,6 +168,11 @@ public class Settings
 			return detectorSettings;
 		}
 
+		public DetectionCreatorFactory getDetectionOutput()
+		{
+			return detectionOutput;
+		}
+
 		public Class< ? extends SpotLinkerOp > getLinker()
 		{
 			return linker;
@@ -36,6 +36,7 @@ import java.util.List;
 import java.util.Map;
 
 import org.mastodon.HasErrorMessage;
+import org.mastodon.collection.RefList;
 import org.mastodon.graph.algorithm.RootFinder;
 import org.mastodon.mamut.model.Link;
 import org.mastodon.mamut.model.Model;
@@ -44,9 +45,16 @@ import org.mastodon.mamut.model.Spot;
 import org.mastodon.model.SelectionModel;
 import org.mastodon.spatial.SpatioTemporalIndex;
 import org.mastodon.spatial.SpatioTemporalIndexSelection;
+import org.mastodon.tracking.detection.DetectionCreatorFactory;
+import org.mastodon.tracking.detection.DetectionUtil;
+import org.mastodon.tracking.linking.graph.DirtyRegions;
+import org.mastodon.tracking.linking.graph.lap.IncrementalSparseLAPLinker;
 import org.mastodon.tracking.mamut.detection.DetectionQualityFeature;
 import org.mastodon.tracking.mamut.detection.SpotDetectorOp;
+import org.mastodon.tracking.mamut.linking.IncrementalSparseLAPLinkerMamut;
 import org.mastodon.tracking.mamut.linking.LinkCostFeature;
+import org.mastodon.tracking.mamut.linking.SimpleSparseLAPLinkerMamut;
+import org.mastodon.tracking.mamut.linking.SparseLAPLinkerMamut;
 import org.mastodon.tracking.mamut.linking.SpotLinkerOp;
 import org.scijava.Cancelable;
 import org.scijava.app.StatusService;
@@ -70,6 +78,9 @@ public class TrackMate extends ContextCommand implements HasErrorMessage
 	@Parameter
 	private StatusService statusService;
 
+	@Parameter( required = false )
+	private LinkingEditService linkingEditService;
+
 	@Parameter(required = false)
 	private Logger logger = new StderrLogService();
 
@@ -134,6 +145,9 @@ public class TrackMate extends ContextCommand implements HasErrorMessage
 			return false;
 		}
 
+		// Source transforms might have been edited since the last run.
+		DetectionUtil.invalidateMetadata( sources );
+
 		/*
 		 * Exec detection (or not).
 		 */
@@ -150,11 +164,13 @@ public class TrackMate extends ContextCommand implements HasErrorMessage
 		final DetectionQualityFeature qualityFeature = DetectionQualityFeature.getOrRegister(
 				model.getFeatureModel(), graph.vertices().getRefPool() );
 
+		final DetectionCreatorFactory detectionOutput = settings.values.getDetectionOutput();
 		final SpotDetectorOp detector = ( SpotDetectorOp ) Hybrids.unaryCF( ops, cl,
 				graph, sources,
 				detectorSettings,
 				model.getSpatioTemporalIndex(),
-				qualityFeature );
+				qualityFeature,
+				detectionOutput );
 		detector.setLogger( logger );
 		detector.setStatusService( statusService );
 		this.currentOp = detector;
@@ -170,6 +186,15 @@ public class TrackMate extends ContextCommand implements HasErrorMessage
 		}
 		currentOp = null;
 
+		if ( null != detectionOutput )
+		{
+			// Detections were streamed elsewhere, the model is unchanged.
+			final long end = System.currentTimeMillis();
+			logger.info( String.format( "Detection completed in %.1f s.\n", ( end - start ) / 1000. ) );
+			logger.info( "Detections sent to " + detectionOutput + ".\n" );
+			return true;
+		}
+
 		model.getFeatureModel().declareFeature(  detector.getQualityFeature() );
 		final long end = System.currentTimeMillis();
 		logger.info( String.format( "Detection completed in %.1f s.\n", ( end - start ) / 1000. ) );
@@ -292,11 +317,114 @@ public class TrackMate extends ContextCommand implements HasErrorMessage
 		final int nTracks = RootFinder.getRoots( model.getGraph() ).size();
 		logger.info( String.format( "There is now %d tracks.\n", nTracks ) );
 
+		// Record edits from now on, to link them incrementally.
+		if ( null != linkingEditService && !doLinkSelection && !isCanceled() )
+			linkingEditService.linked( model, linkerCl, linkerSettings );
+
 		model.setUndoPoint();
 		model.getGraph().notifyGraphChanged();
 		return true;
 	}
 
+	/**
+	 * Links again the spots edited since the last particle-linking, keeping
+	 * all the other links. Only the frame pairs where spots were added,
+	 * removed or moved are linked again, with the segments that can reach
+	 * them. See {@link IncrementalSparseLAPLinker}.
+	 * <p>
+	 * This is only possible with the LAP linkers, when linking all the spots,
+	 * and after a first particle-linking of the model with the same linker
+	 * and settings, recorded by the {@link LinkingEditService}. Otherwise,
+	 * all the spots are linked again with {@link #execParticleLinking()}.
+	 *
+	 * @return <code>true</code> if linking was successful.
+	 */
+	public boolean execIncrementalParticleLinking()
+	{
+		succesful = true;
+		errorMessage = null;
+		if ( isCanceled() )
+			return true;
+
+		final Class< ? extends SpotLinkerOp > linkerCl = settings.values.getLinker();
+		final Map< String, Object > linkerSettings = settings.values.getLinkerSettings();
+		final Object dls = null == linkerSettings ? null : linkerSettings.get( KEY_DO_LINK_SELECTION );
+		final boolean doLinkSelection = ( null == dls ) ? false : ( boolean ) dls;
+		final boolean lapLinker = SparseLAPLinkerMamut.class.equals( linkerCl ) || SimpleSparseLAPLinkerMamut.class.equals( linkerCl );
+		final DirtyRegions< Spot, Link > dirtyRegions = null == linkingEditService
+				? null
+				: linkingEditService.getDirtyRegions( model, linkerCl, linkerSettings );
+		if ( null == dirtyRegions || dirtyRegions.isAllDirty() || doLinkSelection || !lapLinker )
+		{
+			logger.info( "Cannot link incrementally. Linking all spots.\n" );
+			return execParticleLinking();
+		}
+		if ( dirtyRegions.isEmpty() )
+		{
+			logger.info( "No spot edited since the last particle-linking. Skipping linking.\n" );
+			return true;
+		}
+
+		/*
+		 * Remove the links to redo.
+		 */
+
+		final ModelGraph graph = model.getGraph();
+		final SpatioTemporalIndex< Spot > index = model.getSpatioTemporalIndex();
+		graph.getLock().writeLock().lock();
+		try
+		{
+			final RefList< Link > links = IncrementalSparseLAPLinker.linksToRemove( graph, index, dirtyRegions, linkerSettings );
+			for ( final Link link : links )
+				graph.remove( link );
+		}
+		finally
+		{
+			graph.getLock().writeLock().unlock();
+		}
+
+		/*
+		 * Exec particle linking.
+		 */
+
+		final long start = System.currentTimeMillis();
+		final LinkCostFeature linkCostFeature = LinkCostFeature.getOrRegister(
+				model.getFeatureModel(), graph.edges().getRefPool() );
+
+		final IncrementalSparseLAPLinkerMamut linker =
+				( IncrementalSparseLAPLinkerMamut ) Inplaces.binary1( ops, IncrementalSparseLAPLinkerMamut.class, graph, index,
+						linkerSettings,
+						model.getFeatureModel(),
+						linkCostFeature );
+		linker.setLogger( logger );
+		linker.setStatusService( statusService );
+		linker.setDirtyRegions( dirtyRegions );
+
+		logger.info( "Incremental particle-linking with " + linkerCl.getSimpleName() + '\n' );
+		this.currentOp = linker;
+		linker.mutate1( graph, index );
+		if ( !linker.isSuccessful() )
+		{
+			logger.error( "Particle-linking failed:\n" + linker.getErrorMessage() + '\n' );
+			succesful = false;
+			errorMessage = linker.getErrorMessage();
+			return false;
+		}
+
+		currentOp = null;
+		if ( !isCanceled() )
+			dirtyRegions.clear();
+		model.getFeatureModel().declareFeature( linker.getLinkCostFeature() );
+		final long end = System.currentTimeMillis();
+		logger.info( String.format( "Particle-linking completed in %.1f s.\n", ( end - start ) / 1000. ) );
+		final int nTracks = RootFinder.getRoots( graph ).size();
+		logger.info( String.format( "There is now %d tracks.\n", nTracks ) );
+
+		model.setUndoPoint();
+		graph.notifyGraphChanged();
+		return true;
+	}
+
 	@Override
 	public void run()
 	{
@@ -191,6 +191,9 @@ public class SemiAutomaticTracker
 		final double neighborhoodFactor = Math.max( NEIGHBORHOOD_FACTOR, distanceFactor + 1. );
 		final boolean detectSpots = ( boolean ) settings.get( KEY_DETECT_SPOT );
 
+		// Source transforms might have been edited since the last run.
+		DetectionUtil.invalidateMetadata( sources );
+
 		/*
 		 * Units.
 		 */
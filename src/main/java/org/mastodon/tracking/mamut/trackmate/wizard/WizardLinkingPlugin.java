@@ -38,6 +38,7 @@ import org.mastodon.mamut.KeyConfigScopes;
 import org.mastodon.mamut.ProjectModel;
 import org.mastodon.tracking.detection.DetectionUtil;
 import org.mastodon.tracking.linking.LinkingUtils;
+import org.mastodon.tracking.mamut.trackmate.LinkingEditService;
 import org.mastodon.tracking.mamut.trackmate.Settings;
 import org.mastodon.tracking.mamut.trackmate.TrackMate;
 import org.mastodon.ui.keymap.KeyConfigContexts;
@@ -89,6 +90,9 @@ public class WizardLinkingPlugin extends WizardPlugin
 		settings.sources( sources );
 		final TrackMate trackmate = new TrackMate( settings, appModel.getModel(), appModel.getSelectionModel() );
 		getContext().inject( trackmate );
+		final LinkingEditService linkingEditService = getContext().getService( LinkingEditService.class );
+		if ( null != linkingEditService )
+			linkingEditService.forgetOnClose( appModel );
 		trackmate.setLogger( wizard.getLogService() );
 		trackmate.setStatusService( wizard.getLogService() );
 		return new LinkingSequence( trackmate, appModel, wizard.getLogService() );
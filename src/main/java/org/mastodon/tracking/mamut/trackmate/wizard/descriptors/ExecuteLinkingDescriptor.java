@@ -57,8 +57,8 @@ public class ExecuteLinkingDescriptor extends WizardPanelDescriptor
 			{
 				// Reset cancel status.
 				trackmate.cancel( null );
-				// Run detection.
-				trackmate.execParticleLinking();
+				// Run linking, only where spots were edited if possible.
+				trackmate.execIncrementalParticleLinking();
 			}
 		};
 	}
@@ -328,6 +328,8 @@ public class WizardUtils
 		if ( sources == null )
 			return "No data.";
 
+		// Source transforms might have been edited since the last call.
+		DetectionUtil.invalidateMetadata( sources );
 		final int nDims = DetectionUtil.numDimensions( sources, setupID, 0 );
 		final Source< ? > source = sources.get( setupID ).getSpimSource();
 		final RandomAccessibleInterval< ? > ra0 = source.getSource( 0, 0 );
@@ -383,6 +385,8 @@ public class WizardUtils
 	 */
 	public static final String echoDetectorConfigInfo( final List< SourceAndConverter< ? > > sources, final double minSizePixel, final int timepoint, final int setupID, final double radius, final double threshold )
 	{
+		// Source transforms might have been edited since the last call.
+		DetectionUtil.invalidateMetadata( sources );
 		final int level = DetectionUtil.determineOptimalResolutionLevel( sources, radius, minSizePixel, timepoint, setupID );
 		final AffineTransform3D mipmapTransform = DetectionUtil.getMipmapTransform( sources, timepoint, setupID, level );
 		final double sx = Affine3DHelpers.extractScale( mipmapTransform, 0 );